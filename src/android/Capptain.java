@@ -5,26 +5,100 @@
  
 package com.del7a.capptain;
 
+import java.util.HashMap;
 import java.util.Iterator;
-import android.content.Context;
-import android.content.Intent;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CordovaActivity;
 import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Bundle;
 import com.ubikod.capptain.android.sdk.CapptainAgent;
-import com.ubikod.capptain.utils.CapptainUtils;
+import com.ubikod.capptain.android.sdk.reach.CapptainDataPush;
+import com.ubikod.capptain.android.sdk.reach.CapptainReachAgent;
+import com.ubikod.capptain.android.sdk.reach.CapptainReachContent;
+import com.ubikod.capptain.android.sdk.reach.CapptainReachInteractiveContent;
 
 public class Capptain extends CordovaPlugin {
     private CordovaInterface cordova;
-    private String previousActivityName = null;
-    private String lastRedirect = null;
-	private final String pluginVersion = "1.0.4";
+    private CapptainAgent agent;
+    private volatile String previousActivityName = null;
+    private volatile String lastRedirect = null;
+	private final String pluginVersion = "1.0.4";
+	// Version of the bundled capptain.jar (its manifest Implementation-Version), the jar exposes only its API level at runtime
+	private final String capptainVersion = "2.4.1";
+
+    // Built once, the device id is added when resolved
+    private final JSONObject status = new JSONObject();
+
+    // Events waiting for the js subscriber, in order, keyed so that a newer event can replace an older one
+    private static final int MAX_PENDING_EVENTS = 50;
+    private final LinkedHashMap<String, JSONObject> pendingEvents = new LinkedHashMap<String, JSONObject>();
+    private CallbackContext eventChannel;
+    private boolean webViewPaused;
+    private int droppedEvents;
+    private long eventSequence;
+
+    // Forwards data pushes and notification actions to the event channel
+    private final BroadcastReceiver reachReceiver = new BroadcastReceiver() {
+        public void onReceive(Context context, Intent intent) {
+            try {
+                if (CapptainDataPush.INTENT_ACTION.equals(intent.getAction()))
+                    onDataPush(intent);
+                else
+                    onNotificationAction(context, intent);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    // Handles one action, called on a background thread with the raw json arguments
+    private interface ActionHandler {
+        void execute(String rawArgs, CallbackContext callbackContext) throws JSONException;
+    }
+
+    private final Map<String, ActionHandler> actions = new HashMap<String, ActionHandler>();
+
+    // Runs the actions one at a time on the cordova thread pool, in the order they were received
+    private final Executor serialExecutor = new Executor() {
+        private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+        private Runnable active;
+
+        public synchronized void execute(final Runnable task) {
+            tasks.offer(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if (active == null)
+                scheduleNext();
+        }
+
+        private synchronized void scheduleNext() {
+            active = tasks.poll();
+            if (active != null)
+                cordova.getThreadPool().execute(active);
+        }
+    };
 
     public void initialize(CordovaInterface _cordova, CordovaWebView webView) {
 
@@ -33,178 +107,383 @@ public class Capptain extends CordovaPlugin {
     	if(invokeString != "" && invokeString != null)
     	{
     		lastRedirect = invokeString;
-    		System.out.println("Preparing Redirect to "+lastRedirect);
     	}
         super.initialize(_cordova, webView);
         cordova = _cordova;
+        agent = CapptainAgent.getInstance(cordova.getActivity());
 
         Bundle b = new Bundle();   
 		b.putString("CDVCapptainVersion",pluginVersion);
-	    CapptainAgent.getInstance(cordova.getActivity()).sendAppInfo( b); 
+	    agent.sendAppInfo( b); 
+
+        initStatus();
+        registerActions();
+
+        IntentFilter filter = new IntentFilter(CapptainDataPush.INTENT_ACTION);
+        filter.addAction(CapptainReachAgent.INTENT_ACTION_ACTION_NOTIFICATION);
+        cordova.getActivity().registerReceiver(reachReceiver, filter);
     }
 
-    private Bundle stringToBundle(String _param)
-    {
-		JSONObject jObj;
-		try {
-			jObj = new JSONObject(_param);
-			Bundle b = new Bundle();   
-			
-			@SuppressWarnings("unchecked")
-			Iterator<String> keys = jObj.keys();
-			    while(keys.hasNext()){
-			        String key = keys.next();
-			        String val = jObj.getString(key);
-			        b.putString(key, val);
-			    }
-			return b;
-			
-		} catch (JSONException e) {
-			return null;
-		}
+    // Data pushes are acknowledged once handed to the plugin, delivered to js now or when the page comes back
+    private void onDataPush(Intent intent) throws JSONException {
+        String category = intent.getStringExtra("category");
+        String body = intent.getStringExtra("body");
+        if (body == null)
+            return;
+        JSONObject event = new JSONObject();
+        event.put("type", "dataPush");
+        event.put("category", category == null ? JSONObject.NULL : category);
+        event.put("contentType", intent.getStringExtra("type"));
+        event.put("body", body);
+
+        // when the page is paused, only the latest data push of each category is kept
+        postEvent("dataPush:" + category, event);
+        if (reachReceiver.isOrderedBroadcast())
+            reachReceiver.setResultCode(Activity.RESULT_OK);
     }
-   
-    public boolean execute(String action, JSONArray args, CallbackContext callbackContext)   {
-    
-    	if (action.equals("checkRedirect")) {
-    		callbackContext.success(lastRedirect);
-    		lastRedirect=null;
-	        return true;
-	    }
-	    if (action.equals("getStatus")) {
-	    	JSONObject j;
-        	String response = "{";
-            response = "{"+
-	            "\"pluginVersion\": \""+pluginVersion+"\","+
-	            "\"capptainVersion\": \"2.4.1\","+
-	            "\"deviceId\": \"?\""+ 	            
-            "}";
-      
-	        try {
-	            callbackContext.success(new JSONObject(response));
-	        } catch (JSONException e) {
-	            e.printStackTrace();
-	            callbackContext.error("could not retrieve status");
-	       	}
-	       	return true;
-   		}
-	    else
-    	if (action.equals("startActivity")) {
-        	String activityName;
-			try {
-				activityName = args.getString(0);
-				String param = args.getString(1);
-	        	Bundle b = stringToBundle(param);
-	        	if (b==null)
-	        	{
-	        		callbackContext.error("invalid param for startActivity");
-	        		return true;
-	        	}
-	        	previousActivityName = activityName;
-	        	CapptainAgent.getInstance(cordova.getActivity()).startActivity(cordova.getActivity(), activityName, b); 
-	        	callbackContext.success();
-			} catch (JSONException e) {
-				callbackContext.error("invalid args for startActivity");
-			}
-			return true;
-        }
-        else
-        if (action.equals("endActivity")) {
-	        CapptainAgent.getInstance(cordova.getActivity()).endActivity();
-	        previousActivityName= null;
-	        callbackContext.success();
-	        return true;
+
+    private void onNotificationAction(Context context, Intent intent) throws JSONException {
+        JSONObject event = new JSONObject();
+        event.put("type", "notificationAction");
+        event.put("contentId", intent.getLongExtra(CapptainReachAgent.INTENT_EXTRA_CONTENT_ID, 0));
+        CapptainReachContent content = CapptainReachAgent.getInstance(context).getContent(intent);
+        if (content != null) {
+            event.put("category", content.getCategory() == null ? JSONObject.NULL : content.getCategory());
+            if (content instanceof CapptainReachInteractiveContent)
+                event.put("title", ((CapptainReachInteractiveContent) content).getTitle());
         }
-        else
-        if (action.equals("sendEvent")) {
-    		
-        	String eventName;
-			try {
-				eventName = args.getString(0);
-				String param = args.getString(1);
-	        	Bundle b = stringToBundle(param);
-	        	if (b==null)
-	        	{
-	        		callbackContext.error("invalid param for sendEvent");
-	        		return true;
-	        	}
-
-	        	CapptainAgent.getInstance(cordova.getActivity()).sendEvent(eventName, b); 
-	        	callbackContext.success();
-	      	} catch (JSONException e) {
-				callbackContext.error("invalid args for sendEvent");
-			}
-			return true;
+        postEvent(null, event);
+    }
+
+    // Queues an event, replacing the pending one with the same key, and sends it if the page can receive it.
+    // Only events that were not delivered are ever queued, coalesced or dropped.
+    private void postEvent(String key, JSONObject event) {
+        synchronized (pendingEvents) {
+            if (key == null)
+                key = "event:" + eventSequence++;
+            else
+                pendingEvents.remove(key);
+            pendingEvents.put(key, event);
+
+            // backpressure: the oldest events are dropped, the subscriber is told how many
+            if (pendingEvents.size() > MAX_PENDING_EVENTS) {
+                Iterator<String> eldest = pendingEvents.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+                droppedEvents++;
+            }
+            flushEvents();
         }
-        else
-        if (action.equals("startJob")) {
-    		
-        	String jobName;
-			try {
-				jobName = args.getString(0);
-	        	String param = args.getString(1);
-	        	Bundle b = stringToBundle(param);
-	        	if (b==null)
-	        	{
-	        		callbackContext.error("invalid param for start Job");
-	        		return true;
-	        	}
-        		CapptainAgent.getInstance(cordova.getActivity()).startJob(jobName, b); 
-        	} 
-        	catch (JSONException e) {
-				callbackContext.error("invalid args for start Job");
-			}
-			return true;
+    }
+
+    // Sends all pending events in one message, must be called with the pendingEvents lock
+    private void flushEvents() {
+        if (eventChannel == null || webViewPaused || pendingEvents.isEmpty())
+            return;
+        JSONArray events = new JSONArray();
+        if (droppedEvents > 0) {
+            try {
+                JSONObject overflow = new JSONObject();
+                overflow.put("type", "overflow");
+                overflow.put("dropped", droppedEvents);
+                events.put(overflow);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+            droppedEvents = 0;
         }
-        else
-        if (action.equals("endJob")) {
-    		
-        	String jobName;
-			try {
-				jobName = args.getString(0);
-				CapptainAgent.getInstance(cordova.getActivity()).endJob(jobName ); 
-	        	callbackContext.success();
-	        } catch (JSONException e) {
-				callbackContext.error("invalid args for end Job");
-			}
-			return true;
+        for (JSONObject event : pendingEvents.values())
+            events.put(event);
+        pendingEvents.clear();
+        PluginResult result = new PluginResult(PluginResult.Status.OK, events);
+        result.setKeepCallback(true);
+        eventChannel.sendPluginResult(result);
+    }
+
+    private void postRedirect(String url) {
+        try {
+            JSONObject event = new JSONObject();
+            event.put("type", "redirect");
+            event.put("url", url);
+            postEvent("redirect", event);
+        } catch (JSONException e) {
+            e.printStackTrace();
         }
-        else
-        if (action.equals("sendAppInfo")) {
-        	String param;
-			try {
-				param = args.getString(0);
-				Bundle b = stringToBundle(param);
-				if (b==null)
-				{
-					callbackContext.error("invalid param for sendAppInfo");
-		        	return true;
-				}
-	        	CapptainAgent.getInstance(cordova.getActivity()).sendAppInfo( b); 
-	        	callbackContext.success();
-	        	
-			} catch (JSONException e) {
-				callbackContext.error("invalid args for sendAppInfo");
-			}
-			return true;
+    }
+
+    private void initStatus() {
+        try {
+            status.put("pluginVersion", pluginVersion);
+            status.put("capptainVersion", capptainVersion);
+            status.put("capptainApiLevel", com.ubikod.capptain.Capptain.API_LEVEL);
+            status.put("deviceId", JSONObject.NULL);
+        } catch (JSONException e) {
+            e.printStackTrace();
         }
-		else
-        if (action.equals("registerForPushNotification")) {
-        	// does nothing on Android
-	        callbackContext.success();
-	        return true;
+
+        // Asked once to the agent of the bundled jar, then kept in the status for the lifetime of the plugin
+        agent.getDeviceId(new CapptainAgent.Callback<String>() {
+            public void onResult(String deviceId) {
+                synchronized (status) {
+                    try {
+                        status.put("deviceId", deviceId);
+                    } catch (JSONException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    private void registerActions() {
+
+        actions.put("checkRedirect", new ActionHandler() {
+            public void execute(String rawArgs, CallbackContext callbackContext) {
+                String redirect;
+                synchronized (pendingEvents) {
+                    redirect = lastRedirect;
+                    lastRedirect = null;
+                }
+                callbackContext.success(redirect);
+            }
+        });
+
+        actions.put("subscribe", new ActionHandler() {
+            public void execute(String rawArgs, CallbackContext callbackContext) {
+                synchronized (pendingEvents) {
+                    eventChannel = callbackContext;
+                    PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+                    result.setKeepCallback(true);
+                    callbackContext.sendPluginResult(result);
+
+                    // the url the application was launched with is the first event
+                    if (lastRedirect != null) {
+                        postRedirect(lastRedirect);
+                        lastRedirect = null;
+                    }
+                    flushEvents();
+                }
+            }
+        });
+
+        actions.put("getStatus", new ActionHandler() {
+            public void execute(String rawArgs, CallbackContext callbackContext) throws JSONException {
+                synchronized (status) {
+                    // the result is serialized right away, the object can be updated afterwards
+                    callbackContext.success(status);
+                }
+            }
+        });
+
+        actions.put("startActivity", new ActionHandler() {
+            public void execute(String rawArgs, CallbackContext callbackContext) throws JSONException {
+                JSONArray args = new JSONArray(rawArgs);
+                String activityName = args.getString(0);
+                Bundle b = JsonBundleDecoder.decode(args.getString(1));
+                if (b==null) {
+                    callbackContext.error("invalid param for startActivity");
+                    return;
+                }
+                previousActivityName = activityName;
+                agent.startActivity(cordova.getActivity(), activityName, b);
+                callbackContext.success();
+            }
+        });
+
+        actions.put("endActivity", new ActionHandler() {
+            public void execute(String rawArgs, CallbackContext callbackContext) {
+                agent.endActivity();
+                previousActivityName = null;
+                callbackContext.success();
+            }
+        });
+
+        actions.put("sendEvent", new ActionHandler() {
+            public void execute(String rawArgs, CallbackContext callbackContext) throws JSONException {
+                JSONArray args = new JSONArray(rawArgs);
+                String eventName = args.getString(0);
+                Bundle b = JsonBundleDecoder.decode(args.getString(1));
+                if (b==null) {
+                    callbackContext.error("invalid param for sendEvent");
+                    return;
+                }
+                agent.sendEvent(eventName, b);
+                callbackContext.success();
+            }
+        });
+
+        actions.put("startJob", new ActionHandler() {
+            public void execute(String rawArgs, CallbackContext callbackContext) throws JSONException {
+                JSONArray args = new JSONArray(rawArgs);
+                String jobName = args.getString(0);
+                Bundle b = JsonBundleDecoder.decode(args.getString(1));
+                if (b==null) {
+                    callbackContext.error("invalid param for startJob");
+                    return;
+                }
+                agent.startJob(jobName, b);
+                callbackContext.success();
+            }
+        });
+
+        actions.put("endJob", new ActionHandler() {
+            public void execute(String rawArgs, CallbackContext callbackContext) throws JSONException {
+                JSONArray args = new JSONArray(rawArgs);
+                agent.endJob(args.getString(0));
+                callbackContext.success();
+            }
+        });
+
+        actions.put("sendAppInfo", new ActionHandler() {
+            public void execute(String rawArgs, CallbackContext callbackContext) throws JSONException {
+                JSONArray args = new JSONArray(rawArgs);
+                Bundle b = JsonBundleDecoder.decode(args.getString(0));
+                if (b==null) {
+                    callbackContext.error("invalid param for sendAppInfo");
+                    return;
+                }
+                agent.sendAppInfo(b);
+                callbackContext.success();
+            }
+        });
+
+        actions.put("sendBatch", new ActionHandler() {
+            public void execute(String rawArgs, CallbackContext callbackContext) {
+                // Commands buffered by the js side, decoded from the raw arguments and dispatched in order
+                Bundle[] commands = JsonBundleDecoder.decodeBatch(rawArgs);
+                if (commands == null) {
+                    callbackContext.error("invalid args for sendBatch");
+                    return;
+                }
+                JSONArray failures = new JSONArray();
+                for (int i = 0; i < commands.length; i++) {
+                    try {
+                        if (commands[i] == null || !executeBatchCommand(commands[i]))
+                            failures.put(i);
+                    } catch (Exception e) {
+                        // reported as a failed command, the next ones still run
+                        e.printStackTrace();
+                        failures.put(i);
+                    }
+                }
+                if (failures.length() == 0)
+                    callbackContext.success();
+                else
+                    callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, failures));
+            }
+        });
+
+        actions.put("registerForPushNotification", new ActionHandler() {
+            public void execute(String rawArgs, CallbackContext callbackContext) {
+                // does nothing on Android
+                callbackContext.success();
+            }
+        });
+    }
+
+    // Dispatches one command of a sendBatch array, returns false if it is invalid
+    private boolean executeBatchCommand(Bundle _cmd)
+    {
+    	String type = _cmd.getString("type");
+    	String name = _cmd.getString("name");
+    	Bundle b = _cmd.getBundle("extras");
+    	if (type == null)
+    		return false;
+    	if (type.equals("startActivity")) {
+    		previousActivityName = name;
+    		agent.startActivity(cordova.getActivity(), name, b);
+    	}
+    	else
+    	if (type.equals("endActivity")) {
+    		agent.endActivity();
+    		previousActivityName = null;
+    	}
+    	else
+    	if (type.equals("sendEvent") && name != null)
+    		agent.sendEvent(name, b);
+    	else
+    	if (type.equals("startJob") && name != null)
+    		agent.startJob(name, b);
+    	else
+    	if (type.equals("endJob") && name != null)
+    		agent.endJob(name);
+    	else
+    	if (type.equals("sendAppInfo") && b != null)
+    		agent.sendAppInfo(b);
+    	else
+    		return false;
+    	return true;
+    }
+
+    // Looks the action up and returns immediately, arguments are parsed and the action run in the background
+    public boolean execute(final String action, final String rawArgs, final CallbackContext callbackContext) {
+        final ActionHandler handler = actions.get(action);
+        if (handler == null) {
+            callbackContext.error("unrecognized command :"+action);
+            return false;
         }
-        callbackContext.error("unrecognized command :"+action);
-        return false;
+        serialExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    handler.execute(rawArgs, callbackContext);
+                } catch (JSONException e) {
+                    callbackContext.error("invalid args for "+action);
+                } catch (Exception e) {
+                    // a failing action must not leave the js side waiting forever
+                    e.printStackTrace();
+                    callbackContext.error(action+" failed: "+e);
+                }
+            }
+        });
+        return true;
     }
 
+    // Activity changes go through the serial executor, after the js commands already queued
     public void onPause(boolean multitasking) {
-    	CapptainAgent.getInstance(cordova.getActivity()).endActivity();
+    	serialExecutor.execute(new Runnable() {
+    		public void run() {
+    			agent.endActivity();
+    		}
+    	});
+    	synchronized (pendingEvents) {
+    		webViewPaused = true;
+    	}
 	}
 
     public void onResume(boolean multitasking) {
-    	if (previousActivityName!=null)
-    		CapptainAgent.getInstance(cordova.getActivity()).startActivity(cordova.getActivity(), previousActivityName, null);
+    	serialExecutor.execute(new Runnable() {
+    		public void run() {
+    			if (previousActivityName!=null)
+    				agent.startActivity(cordova.getActivity(), previousActivityName, null);
+    		}
+    	});
+    	synchronized (pendingEvents) {
+    		webViewPaused = false;
+    		flushEvents();
+    	}
+    }
+
+    public void onNewIntent(Intent intent) {
+    	String url = intent.getDataString();
+    	if (url == null || url.length() == 0)
+    		return;
+    	synchronized (pendingEvents) {
+    		if (eventChannel == null)
+    			lastRedirect = url;
+    		else
+    			postRedirect(url);
+    	}
+    }
+
+    // The page is reloaded: its subscription is gone, events are kept for the next one
+    public void onReset() {
+    	synchronized (pendingEvents) {
+    		eventChannel = null;
+    	}
+    }
+
+    public void onDestroy() {
+    	cordova.getActivity().unregisterReceiver(reachReceiver);
     }
 
   
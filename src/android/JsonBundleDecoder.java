@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) Microsoft Corporation.  All rights reserved.
+ * Licensed under the MIT license. See License.txt in the project root for license information.
+ */
+
+package com.del7a.capptain;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONException;
+import android.os.Bundle;
+
+/**
+ * Single pass JSON decoder writing typed values straight into a Bundle.
+ * Integers are stored as long, other numbers as double and booleans as boolean. Arrays whose elements
+ * are all numbers, all booleans or all strings are stored as long[], double[], boolean[] or String[].
+ * Nested objects and other arrays (mixed, with nulls, objects or arrays) are stored as their JSON
+ * text, as the plugin always did: only flat values are known to be accepted by the agent.
+ */
+public final class JsonBundleDecoder {
+    private final String json;
+    private int pos;
+
+    private JsonBundleDecoder(String _json) {
+        json = _json;
+    }
+
+    /**
+     * Decode a JSON object.
+     * @return the Bundle, null if the string is not a valid JSON object.
+     */
+    public static Bundle decode(String _json) {
+        if (_json == null)
+            return null;
+        try {
+            JsonBundleDecoder decoder = new JsonBundleDecoder(_json);
+            Bundle b = decoder.readObject(0);
+            decoder.expectEnd();
+            return b;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decode the raw arguments of the sendBatch action: an array whose first element is the array of
+     * commands.
+     * @return one Bundle per command, null for the elements that are not objects, or null if the
+     * arguments are not valid JSON. The extras of a command are a Bundle decoded as by decode().
+     */
+    public static Bundle[] decodeBatch(String _rawArgs) {
+        if (_rawArgs == null)
+            return null;
+        try {
+            JsonBundleDecoder decoder = new JsonBundleDecoder(_rawArgs);
+            decoder.expect('[');
+            decoder.expect('[');
+            List<Bundle> commands = new ArrayList<Bundle>();
+            if (!decoder.consume(']')) {
+                do {
+                    if (decoder.peek() == '{')
+                        commands.add(decoder.readObject(1));
+                    else {
+                        decoder.readValue(0);
+                        commands.add(null);
+                    }
+                } while (decoder.consume(','));
+                decoder.expect(']');
+            }
+            while (decoder.consume(','))
+                decoder.readValue(0);
+            decoder.expect(']');
+            decoder.expectEnd();
+            return commands.toArray(new Bundle[commands.size()]);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    // Objects nested deeper than _bundleDepth levels are kept as JSON text
+    private Bundle readObject(int _bundleDepth) throws JSONException {
+        expect('{');
+        Bundle b = new Bundle();
+        if (consume('}'))
+            return b;
+        do {
+            if (peek() != '"')
+                throw error("expected a key");
+            String key = readString();
+            expect(':');
+            put(b, key, readValue(_bundleDepth));
+        } while (consume(','));
+        expect('}');
+        return b;
+    }
+
+    // Returns a Long, Double, Boolean, String, null, a Bundle for the objects within _bundleDepth
+    // levels, a List for flat arrays, or the JSON text of the other objects and arrays
+    private Object readValue(int _bundleDepth) throws JSONException {
+        char c = peek();
+        switch (c) {
+        case '{':
+            if (_bundleDepth > 0)
+                return readObject(_bundleDepth - 1);
+            int start = pos;
+            readObject(0);
+            return json.substring(start, pos);
+        case '[':
+            return readArray();
+        case '"':
+            return readString();
+        case 't':
+            readLiteral("true");
+            return Boolean.TRUE;
+        case 'f':
+            readLiteral("false");
+            return Boolean.FALSE;
+        case 'n':
+            readLiteral("null");
+            return null;
+        default:
+            if (c == '-' || (c >= '0' && c <= '9'))
+                return readNumber();
+            throw error("unexpected character");
+        }
+    }
+
+    // Returns a List if the elements are all numbers, all booleans or all strings, the JSON text otherwise
+    private Object readArray() throws JSONException {
+        int start = pos;
+        expect('[');
+        List<Object> values = new ArrayList<Object>();
+        if (consume(']'))
+            return values;
+        boolean flat = true;
+        Class<?> kind = null;
+        do {
+            char c = peek();
+            Object value = readValue(0);
+            if (c == '{' || c == '[' || value == null)
+                flat = false;
+            else {
+                Class<?> valueKind = value instanceof Double ? Long.class : value.getClass();
+                if (kind == null)
+                    kind = valueKind;
+                else if (kind != valueKind)
+                    flat = false;
+            }
+            values.add(value);
+        } while (consume(','));
+        expect(']');
+        return flat ? values : json.substring(start, pos);
+    }
+
+    private String readString() throws JSONException {
+        pos++;
+        int start = pos;
+        StringBuilder sb = null;
+        while (pos < json.length()) {
+            char c = json.charAt(pos++);
+            if (c == '"') {
+                if (sb == null)
+                    return json.substring(start, pos - 1);
+                return sb.append(json, start, pos - 1).toString();
+            }
+            if (c != '\\')
+                continue;
+
+            // escape: copy what precedes it then decode it
+            if (sb == null)
+                sb = new StringBuilder();
+            sb.append(json, start, pos - 1);
+            if (pos >= json.length())
+                break;
+            c = json.charAt(pos++);
+            switch (c) {
+            case 'b': sb.append('\b'); break;
+            case 'f': sb.append('\f'); break;
+            case 'n': sb.append('\n'); break;
+            case 'r': sb.append('\r'); break;
+            case 't': sb.append('\t'); break;
+            case 'u':
+                if (pos + 4 > json.length())
+                    throw error("invalid escape");
+                int code = 0;
+                for (int end = pos + 4; pos < end; pos++) {
+                    int digit = Character.digit(json.charAt(pos), 16);
+                    if (digit < 0)
+                        throw error("invalid escape");
+                    code = (code << 4) | digit;
+                }
+                sb.append((char) code);
+                break;
+            case '"':
+            case '\\':
+            case '/':
+                sb.append(c);
+                break;
+            default:
+                pos--;
+                throw error("invalid escape");
+            }
+            start = pos;
+        }
+        throw error("unterminated string");
+    }
+
+    // Follows the JSON grammar: no leading zero, digits required after '.' and in the exponent
+    private Object readNumber() throws JSONException {
+        int start = pos;
+        boolean integer = true;
+        if (at('-'))
+            pos++;
+        if (at('0'))
+            pos++;
+        else if (skipDigits() == 0)
+            throw error("invalid number");
+        if (at('.')) {
+            pos++;
+            integer = false;
+            if (skipDigits() == 0)
+                throw error("invalid number");
+        }
+        if (at('e') || at('E')) {
+            pos++;
+            integer = false;
+            if (at('+') || at('-'))
+                pos++;
+            if (skipDigits() == 0)
+                throw error("invalid number");
+        }
+        String number = json.substring(start, pos);
+        try {
+            if (integer) {
+                try {
+                    return Long.valueOf(number);
+                } catch (NumberFormatException e) {
+                    // too large for a long
+                }
+            }
+            return Double.valueOf(number);
+        } catch (NumberFormatException e) {
+            throw error("invalid number");
+        }
+    }
+
+    private boolean at(char _c) {
+        return pos < json.length() && json.charAt(pos) == _c;
+    }
+
+    private int skipDigits() {
+        int start = pos;
+        while (pos < json.length() && json.charAt(pos) >= '0' && json.charAt(pos) <= '9')
+            pos++;
+        return pos - start;
+    }
+
+    private void readLiteral(String _literal) throws JSONException {
+        if (!json.startsWith(_literal, pos))
+            throw error("unexpected character");
+        pos += _literal.length();
+    }
+
+    private static void put(Bundle _b, String _key, Object _value) {
+        if (_value instanceof Long)
+            _b.putLong(_key, (Long) _value);
+        else if (_value instanceof Double)
+            _b.putDouble(_key, (Double) _value);
+        else if (_value instanceof Boolean)
+            _b.putBoolean(_key, (Boolean) _value);
+        else if (_value instanceof Bundle)
+            _b.putBundle(_key, (Bundle) _value);
+        else if (_value instanceof List)
+            putArray(_b, _key, (List<?>) _value);
+        else
+            _b.putString(_key, (String) _value);
+    }
+
+    // The values are all numbers, all booleans or all strings, see readArray()
+    private static void putArray(Bundle _b, String _key, List<?> _values) {
+        int size = _values.size();
+        Class<?> kind = null;
+        for (Object value : _values) {
+            if (kind == null)
+                kind = value.getClass();
+            else if (kind != value.getClass())
+                kind = Double.class;
+        }
+
+        if (kind == null || kind == String.class) {
+            _b.putStringArray(_key, _values.toArray(new String[size]));
+        }
+        else if (kind == Long.class) {
+            long[] array = new long[size];
+            for (int i = 0; i < size; i++)
+                array[i] = (Long) _values.get(i);
+            _b.putLongArray(_key, array);
+        }
+        else if (kind == Double.class) {
+            double[] array = new double[size];
+            for (int i = 0; i < size; i++)
+                array[i] = ((Number) _values.get(i)).doubleValue();
+            _b.putDoubleArray(_key, array);
+        }
+        else {
+            boolean[] array = new boolean[size];
+            for (int i = 0; i < size; i++)
+                array[i] = (Boolean) _values.get(i);
+            _b.putBooleanArray(_key, array);
+        }
+    }
+
+    private char peek() throws JSONException {
+        skipWhitespace();
+        if (pos >= json.length())
+            throw error("unexpected end");
+        return json.charAt(pos);
+    }
+
+    private boolean consume(char _c) throws JSONException {
+        if (peek() != _c)
+            return false;
+        pos++;
+        return true;
+    }
+
+    private void expect(char _c) throws JSONException {
+        if (!consume(_c))
+            throw error("expected '" + _c + "'");
+    }
+
+    private void expectEnd() throws JSONException {
+        skipWhitespace();
+        if (pos < json.length())
+            throw error("trailing characters");
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+                return;
+            pos++;
+        }
+    }
+
+    private JSONException error(String _message) {
+        return new JSONException(_message + " at character " + pos);
+    }
+}
@@ -55,11 +55,11 @@ public class CapptainActivityManager
    */
   private WeakReference<Activity> mNullActivity = new WeakReference<Activity>(null);
 
-  /** Current activity weak reference */
-  private WeakReference<Activity> mCurrentActivity = mNullActivity;
+  /** Current activity weak reference, volatile as the agent reads it from its own thread */
+  private volatile WeakReference<Activity> mCurrentActivity = mNullActivity;
 
-  /** Current activity alias (name) */
-  private String mCurrentActivityAlias;
+  /** Current activity alias (name), volatile as the agent reads it from its own thread */
+  private volatile String mCurrentActivityAlias;
 
   /** Current activity listeners */
   private Map<Listener, Object> mListeners = new ConcurrentHashMap<Listener, Object>();
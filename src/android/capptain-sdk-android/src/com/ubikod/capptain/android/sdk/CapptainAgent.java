@@ -17,13 +17,23 @@
 package com.ubikod.capptain.android.sdk;
 
 import static android.content.Context.BIND_AUTO_CREATE;
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.Set;
 
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -31,16 +41,22 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.content.res.Configuration;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.ubikod.capptain.CapptainConfiguration;
 import com.ubikod.capptain.CapptainNativePushToken;
 import com.ubikod.capptain.ICapptainService;
+import com.ubikod.capptain.utils.CapptainMetaData;
 import com.ubikod.capptain.utils.CapptainUtils;
 
 /**
@@ -66,6 +82,11 @@ import com.ubikod.capptain.utils.CapptainUtils;
  * <li>To configure the session timeout (which is set to 10s by default), add
  * {@code <meta-data android:name="capptain:sessionTimeout" android:value="<duration_in_millis>"/>},
  * see {@link #endActivity()}.</li>
+ * <li>An activity ended then started again with the same name within 1s (e.g. on rotation) is not
+ * reported to the service, unless another call is made in between. To configure that grace
+ * period, add
+ * {@code <meta-data android:name="capptain:activityDebounce" android:value="<duration_in_millis>"/>},
+ * 0 disables it.</li>
  * <li>To enable lazy area location report, add {@code <meta-data android:name="capptain:locationReport:lazyArea"
  * android:value="true"/>}.</li>
  * <li>To enable real time location report, add {@code <meta-data android:name="capptain:locationReport:realTime"
@@ -92,15 +113,42 @@ public class CapptainAgent
   /** Agent created action */
   public static final String INTENT_ACTION_AGENT_CREATED = "com.ubikod.capptain.intent.action.AGENT_CREATED";
 
-  /** Maximum pending commands to keep while not bound to a service */
+  /** Maximum pending commands to keep in memory while not bound to a service */
   private static final int MAX_COMMANDS = 200;
 
-  /** Unbind timeout */
-  private static final long BINDER_TIMEOUT = 30000;
+  /** Prefix of the files spooling pending commands, in the application files directory */
+  private static final String SPOOL_FILE = "capptain.agent.spool";
+
+  /** Spool file suffix of each lane, indexed by lane */
+  private static final String[] LANE_NAMES = { "control", "session", "events", "errors" };
+
+  /** Capacity of each lane, indexed by lane */
+  private static final int[] LANE_CAPACITIES = { 0, 100, MAX_COMMANDS, 50 };
+
+  /**
+   * Overflow policy of each lane, indexed by lane: control commands are never dropped, for errors
+   * the first ones are the most relevant. The session lane capacity is applied by the agent which
+   * drops new starts along with their ends so that no end is kept without its start.
+   */
+  private static final int[] LANE_POLICIES = { CapptainCommandSpool.NEVER_DROP,
+    CapptainCommandSpool.NEVER_DROP, CapptainCommandSpool.DROP_OLDEST,
+    CapptainCommandSpool.DROP_NEWEST };
+
+  /** Default grace period during which an ended activity can be started again silently */
+  private static final int ACTIVITY_DEBOUNCE = 1000;
+
+  /** Agent thread message carrying a command */
+  private static final int MSG_COMMAND = 1;
+
+  /** Agent thread message carrying a committed event recorder */
+  private static final int MSG_RECORDER = 2;
 
   /** Setting key, prefixed in case of shared integration */
   private static final String ENABLED = "capptain:enabled";
 
+  /** Setting key of the last known device identifier */
+  private static final String DEVICE_ID = "capptain:deviceId";
+
   /** Unique instance */
   private static CapptainAgent sInstance;
 
@@ -150,6 +198,31 @@ public class CapptainAgent
   /** True if crash are reported */
   private final boolean mReportCrash;
 
+  /** Grace period during which an ended activity can be started again silently, 0 if disabled */
+  private final long mActivityDebounce;
+
+  /** True if an activity was started and not ended yet from the service point of view */
+  private boolean mActivityRunning;
+
+  /** Start activity command of the last started activity, null if none */
+  private CapptainCommand mRunningStart;
+
+  /** End activity command waiting for the grace period, null if none */
+  private CapptainCommand mDeferredEnd;
+
+  /** Task sending the deferred end activity command once the grace period elapsed */
+  private final Runnable mEndActivityTask = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      flushDeferredEnd();
+    }
+  };
+
+  /** Number of activity transitions not reported to the service */
+  private volatile int mSuppressedTransitions;
+
   /** Capptain service binder */
   private ICapptainService mCapptainService;
 
@@ -165,8 +238,35 @@ public class CapptainAgent
   /** Context used for binding to the Capptain service */
   private final Context mContext;
 
-  /** Calls made before the service was bound */
-  private final Queue<Runnable> mPendingCmds = new LinkedList<Runnable>();
+  /** Calls made before the service was bound that cannot be serialized */
+  private final Queue<CapptainCommand> mPendingCmds = new LinkedList<CapptainCommand>();
+
+  /**
+   * Calls made before the service was bound, by lane, surviving process death unless the files
+   * cannot be used. Each lane has its own capacity and overflow policy.
+   */
+  private final CapptainCommandSpool[] mLanes = new CapptainCommandSpool[CapptainCommand.LANES];
+
+  /** Sequence number of the next spooled command, orders commands across lanes */
+  private long mNextSequence;
+
+  /** Type of the last command spooled in the session lane by this process, 0 if none */
+  private int mLastSessionCmd;
+
+  /** Last activity start spooled in the session lane by this process */
+  private CapptainCommand mLastSpooledStart;
+
+  /** True if the start of the current activity was dropped, its end must be dropped as well */
+  private boolean mActivityStartDropped;
+
+  /** Names of the jobs whose start was dropped, their end must be dropped as well */
+  private final Set<String> mDroppedJobs = new HashSet<String>();
+
+  /** Number of pending commands dropped from memory because the queue was full */
+  private volatile int mDroppedCmds;
+
+  /** Number of pending commands sent once bound, including the ones spooled by older processes */
+  private volatile int mReplayedCmds;
 
   /** Unbind task */
   private final Runnable mUnbindTask = new Runnable()
@@ -178,11 +278,15 @@ public class CapptainAgent
       if (mCapptainService == null || !mUnbindScheduled)
         return;
 
+      /* Report the deferred end activity if any */
+      flushDeferredEnd();
+
       /* Unbind from Capptain service */
       mContext.unbindService(mServiceConnection);
 
       /* Store unbound state */
       mCapptainService = null;
+      mBindPolicy.onUnbound(SystemClock.elapsedRealtime());
 
       /* Task done */
       mUnbindScheduled = false;
@@ -192,78 +296,197 @@ public class CapptainAgent
   /** True if unbind has been scheduled */
   private boolean mUnbindScheduled;
 
+  /** Unbind delay policy and binding metrics */
+  private final CapptainBindPolicy mBindPolicy = new CapptainBindPolicy();
+
   /** Not null if binding, value is the component name describe the specific service */
   private ComponentName mBindingService;
 
-  /** Handler for unbind timeouts */
+  /**
+   * Handler of the agent thread: binding state, pending commands and service calls are only
+   * accessed from that thread so that the UI thread never runs IPC.
+   */
   private final Handler mHandler;
 
-  /** Service connection */
+  /** Main thread handler, used to deliver results */
+  private final Handler mMainHandler;
+
+  /** Service connection, callbacks are forwarded to the agent thread */
   private final ServiceConnection mServiceConnection = new ServiceConnection()
   {
     @Override
-    public void onServiceConnected(ComponentName name, IBinder service)
+    public void onServiceConnected(final ComponentName name, final IBinder service)
+    {
+      mHandler.post(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          onConnected(name, service);
+        }
+      });
+    }
+
+    @Override
+    public void onServiceDisconnected(final ComponentName name)
     {
-      /* Cast the binder into the proper API and keep a reference */
-      mCapptainService = ICapptainService.Stub.asInterface(service);
+      mHandler.post(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          onDisconnected(name);
+        }
+      });
+    }
+  };
 
-      /* We are not binding anymore */
-      mBindingService = null;
+  /**
+   * Service call returning a result: concurrent requests share a single call and the result can be
+   * cached. Results are delivered on the main thread.
+   */
+  private class CoalescedCall<T> implements Callback<T>
+  {
+    /** Command type */
+    private final int mType;
 
-      /* Be sure to submit configuration again if we changed service during this process lifetime */
-      if (!name.equals(mLastBoundService)
-        && (mCapptainConfiguration != null || mCapptainConfigurationSentAsNull))
-        configure(mCapptainConfiguration);
-      mLastBoundService = name;
+    /** Callbacks waiting for the result, only accessed from the agent thread */
+    private final List<Callback<T>> mCallbacks = new ArrayList<Callback<T>>();
 
-      /* Send pending commands */
-      for (Runnable cmd : mPendingCmds)
-        cmd.run();
-      mPendingCmds.clear();
+    /** True if the call has been sent and the result not received yet */
+    private boolean mInFlight;
 
-      /* Schedule unbind (if not in session) */
-      scheduleUnbind();
-    }
+    /** Cached result, null if none */
+    private volatile T mResult;
 
-    @Override
-    public void onServiceDisconnected(ComponentName name)
+    /**
+     * Init call.
+     * @param type command type.
+     */
+    CoalescedCall(int type)
     {
-      /* We are not bound anymore */
-      mCapptainService = null;
-
-      /*
-       * Simulate disconnected intent targeting the current package name since the capptain process
-       * has been killed.
-       */
-      Intent disconnectedIntent = new Intent("com.ubikod.capptain.intent.action.DISCONNECTED");
-      disconnectedIntent.putExtra("com.ubikod.capptain.intent.extra.SERVICE_PACKAGE",
-        name.getPackageName());
-      disconnectedIntent.setPackage(mContext.getPackageName());
-      mContext.sendBroadcast(disconnectedIntent);
+      mType = type;
+    }
 
-      /* If the service is still resolvable */
-      Intent intent = CapptainUtils.resolveCapptainService(mContext);
-      if (intent != null)
+    /**
+     * Get the result, from cache if available.
+     * @param callback callback receiving the result on the main thread.
+     */
+    void get(final Callback<T> callback)
+    {
+      /* Use cache without switching thread */
+      T result = mResult;
+      if (result != null)
       {
-        /* Mark we are binding to it */
-        mBindingService = intent.getComponent();
+        onMainThread(callback).onResult(result);
+        return;
+      }
 
-        /* If it's a different one, bind to it */
-        if (!mBindingService.equals(name))
+      /* Otherwise wait for the result, sending the call only once */
+      mHandler.post(new Runnable()
+      {
+        @Override
+        public void run()
         {
-          cancelUnbind();
-          mContext.unbindService(mServiceConnection);
-          mContext.bindService(intent, mServiceConnection, BIND_AUTO_CREATE);
+          T result = mResult;
+          if (result != null)
+            onMainThread(callback).onResult(result);
+          else if (isEnabled())
+          {
+            mCallbacks.add(callback);
+            request();
+          }
+          else
+            onMainThread(callback).onResult(null);
         }
+      });
+    }
+
+    /** Send the call if not already in flight, must be called on the agent thread */
+    void request()
+    {
+      if (!mInFlight)
+      {
+        mInFlight = true;
+        sendCapptainCommand(new CapptainCommand(mType, this));
+      }
+    }
+
+    /**
+     * Set the cached result.
+     * @param result result, null to clear the cache.
+     */
+    void setResult(T result)
+    {
+      mResult = result;
+    }
+
+    /**
+     * Complete waiting callbacks with a null result, the call stays in flight if it was. Must be
+     * called on the agent thread.
+     */
+    void fail()
+    {
+      for (Callback<T> callback : mCallbacks)
+        onMainThread(callback).onResult(null);
+      mCallbacks.clear();
+    }
+
+    /** Fail waiting callbacks and forget the call, must be called on the agent thread */
+    void cancel()
+    {
+      fail();
+      mInFlight = false;
+    }
 
-        /*
-         * If it's the same: either it will be reconnected automatically if it has been killed, or
-         * we wait for its re-installation to be complete (bind will fail before).
-         */
+    @Override
+    public void onResult(T result)
+    {
+      /* On failure, complete waiting callbacks with null, the next request will try again */
+      mInFlight = false;
+      if (result == null)
+      {
+        fail();
+        return;
       }
+
+      /* Cache and deliver result */
+      mResult = result;
+      onCached(result);
+      for (Callback<T> callback : mCallbacks)
+        onMainThread(callback).onResult(result);
+      mCallbacks.clear();
+    }
+
+    /**
+     * Called on the agent thread when a new result has been received.
+     * @param result result.
+     */
+    void onCached(T result)
+    {
+      /* Nothing to do by default */
+    }
+  }
+
+  /** Device identifier, persisted so that later processes don't wait for the service */
+  private final CoalescedCall<String> mDeviceIdCall = new CoalescedCall<String>(
+    CapptainCommand.GET_DEVICE_ID)
+  {
+    @Override
+    void onCached(String deviceId)
+    {
+      if (!deviceId.equals(mSettings.getString(DEVICE_ID, null)))
+        mSettings.edit().putString(DEVICE_ID, deviceId).commit();
     }
   };
 
+  /** True once the device identifier has been refreshed from the service in this process */
+  private boolean mDeviceIdRefreshed;
+
+  /** Service information, cached while bound to the same service */
+  private final CoalescedCall<Bundle> mInfoCall = new CoalescedCall<Bundle>(
+    CapptainCommand.GET_INFO);
+
   /** Interface for retrieving results via callback */
   public interface Callback<T>
   {
@@ -283,12 +506,35 @@ public class CapptainAgent
     /* Store application context, we'll use this to bind */
     mContext = context;
 
-    /* Create main thread handler */
-    mHandler = new Handler(Looper.getMainLooper());
+    /* Create agent thread and main thread handlers */
+    HandlerThread thread = new HandlerThread("CapptainAgent", THREAD_PRIORITY_BACKGROUND);
+    thread.start();
+    mHandler = new Handler(thread.getLooper(), new Handler.Callback()
+    {
+      @Override
+      public boolean handleMessage(Message msg)
+      {
+        switch (msg.what)
+        {
+          case MSG_COMMAND:
+            dispatch((CapptainCommand) msg.obj);
+            return true;
+
+          case MSG_RECORDER:
+            dispatch(new CapptainCommand((CapptainEventRecorder) msg.obj));
+            return true;
+
+          default:
+            return false;
+        }
+      }
+    });
+    mMainHandler = new Handler(Looper.getMainLooper());
 
     /* Retrieve configuration */
-    Bundle config = CapptainUtils.getMetaData(context);
+    CapptainMetaData config = CapptainUtils.getMetaDataSnapshot(context);
     mReportCrash = config.getBoolean("capptain:reportCrash", true);
+    mActivityDebounce = Math.max(0, config.getInt("capptain:activityDebounce", ACTIVITY_DEBOUNCE));
     String settingsFile = config.getString("capptain:agent:settings:name");
     int settingsMode = config.getInt("capptain:agent:settings:mode", 0);
     if (TextUtils.isEmpty(settingsFile))
@@ -303,14 +549,49 @@ public class CapptainAgent
       {
         /* Cancel all commands and unbind if agent disabled */
         if (ENABLED.equals(key) && !isEnabled())
-        {
-          mPendingCmds.clear();
-          scheduleUnbind();
-        }
+          mHandler.post(new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              mPendingCmds.clear();
+              for (CapptainCommandSpool lane : mLanes)
+                lane.clear();
+              mLastSessionCmd = 0;
+              mActivityStartDropped = false;
+              mDroppedJobs.clear();
+              mHandler.removeCallbacks(mEndActivityTask);
+              mDeferredEnd = null;
+              mActivityRunning = false;
+              mDeviceIdCall.cancel();
+              mInfoCall.cancel();
+              scheduleUnbind();
+            }
+          });
       }
     };
     mSettings.registerOnSharedPreferenceChangeListener(mSettingsListener);
 
+    /* Restore device identifier resolved by a previous process */
+    mDeviceIdCall.setResult(mSettings.getString(DEVICE_ID, null));
+
+    /*
+     * Open command lanes on the agent thread as their files are locked and mapped, before any
+     * command is dispatched there.
+     */
+    mHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        openLanes();
+      }
+    });
+
+    /* Report the deferred end activity as soon as the application goes to background */
+    if (mActivityDebounce > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+      registerBackgroundCallback();
+
     /* Install Capptain crash handler if enabled */
     if (mReportCrash)
       Thread.setDefaultUncaughtExceptionHandler(mCapptainCrashHandler);
@@ -323,6 +604,9 @@ public class CapptainAgent
       @Override
       public void onReceive(Context context, Intent intent)
       {
+        /* A better service may be available now */
+        CapptainUtils.invalidateCapptainServiceCache();
+
         /* If we were targeting this package */
         String packageName = intent.getData().getSchemeSpecificPart();
         if (mBindingService != null && packageName.equals(mBindingService.getPackageName()))
@@ -331,10 +615,10 @@ public class CapptainAgent
           mBindingService = null;
 
         /* Try to bind to the Capptain service if needed */
-        if (mCapptainService == null && mPendingCmds.size() > 0 && isEnabled())
+        if (mCapptainService == null && hasPendingCommands() && isEnabled())
           bind();
       }
-    }, installIntentFilter);
+    }, installIntentFilter, null, mHandler);
 
     /* Broadcast intent for Capptain modules */
     Intent agentCreatedIntent = new Intent(INTENT_ACTION_AGENT_CREATED);
@@ -342,6 +626,86 @@ public class CapptainAgent
     context.sendBroadcast(agentCreatedIntent);
   }
 
+  /**
+   * Open command lanes, a lane is kept in memory only if its file cannot be used. Commands spooled
+   * by older versions in a single file are moved to the lanes once. Then bind to deliver the
+   * commands spooled by a previous process, if any.
+   */
+  private void openLanes()
+  {
+    for (int lane = 0; lane < mLanes.length; lane++)
+    {
+      try
+      {
+        File file = new File(mContext.getFilesDir(), SPOOL_FILE + "." + LANE_NAMES[lane]);
+        mLanes[lane] = new CapptainCommandSpool(file, LANE_CAPACITIES[lane], LANE_POLICIES[lane]);
+      }
+      catch (IOException e)
+      {
+        /* Another process of the application uses it or storage is not available */
+        mLanes[lane] = new CapptainCommandSpool(LANE_CAPACITIES[lane], LANE_POLICIES[lane]);
+      }
+      mNextSequence = Math.max(mNextSequence, mLanes[lane].getLastSequence() + 1);
+    }
+
+    /* Migrate the single spool file of older versions, unless another process still uses it */
+    File legacy = new File(mContext.getFilesDir(), SPOOL_FILE);
+    try
+    {
+      for (byte[] record : CapptainCommandSpool.readLegacy(legacy))
+      {
+        CapptainCommand cmd = CapptainCommand.unmarshall(record);
+        if (cmd == null)
+          mDroppedCmds++;
+        else
+          spool(cmd);
+      }
+      legacy.delete();
+    }
+    catch (IOException e)
+    {
+      /* Try again next time */
+    }
+
+    /* Deliver commands spooled by a previous process */
+    if (mCapptainService == null && hasPendingCommands() && isEnabled())
+      bind();
+  }
+
+  /** Flush the deferred end activity when the application UI is hidden */
+  @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+  private void registerBackgroundCallback()
+  {
+    mContext.registerComponentCallbacks(new ComponentCallbacks2()
+    {
+      @Override
+      public void onTrimMemory(int level)
+      {
+        if (level >= TRIM_MEMORY_UI_HIDDEN)
+          mHandler.post(new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              flushDeferredEnd();
+            }
+          });
+      }
+
+      @Override
+      public void onLowMemory()
+      {
+        /* Nothing to do */
+      }
+
+      @Override
+      public void onConfigurationChanged(Configuration newConfig)
+      {
+        /* Nothing to do */
+      }
+    });
+  }
+
   /**
    * Get the unique instance.
    * @param context any valid context
@@ -359,6 +723,123 @@ public class CapptainAgent
     return mBindingService;
   }
 
+  /**
+   * Called on the agent thread when bound to the Capptain service.
+   * @param name service component.
+   * @param service service binder.
+   */
+  private void onConnected(ComponentName name, IBinder service)
+  {
+    /* Cast the binder into the proper API and keep a reference */
+    mCapptainService = ICapptainService.Stub.asInterface(service);
+    mBindPolicy.onConnected(SystemClock.elapsedRealtime());
+
+    /* We are not binding anymore */
+    mBindingService = null;
+
+    /* Information is related to the service */
+    if (!name.equals(mLastBoundService))
+      mInfoCall.setResult(null);
+
+    /* Be sure to submit configuration again if we changed service during this process lifetime */
+    if (!name.equals(mLastBoundService)
+      && (mCapptainConfiguration != null || mCapptainConfigurationSentAsNull))
+      configure(mCapptainConfiguration);
+    mLastBoundService = name;
+
+    /* Send spooled commands in submission order by merging lanes on sequence numbers */
+    mLastSessionCmd = 0;
+    while (true)
+    {
+      CapptainCommandSpool next = null;
+      for (CapptainCommandSpool lane : mLanes)
+        if (lane.size() > 0 && (next == null || lane.peekSequence() < next.peekSequence()))
+          next = lane;
+      if (next == null)
+        break;
+
+      /* Remove before sending: a command crashing the process must not be replayed forever */
+      byte[] record = next.peek();
+      next.remove();
+      CapptainCommand cmd = CapptainCommand.unmarshall(record);
+      if (cmd == null)
+        mDroppedCmds++;
+      else
+      {
+        execute(cmd);
+        mReplayedCmds++;
+      }
+    }
+
+    /* Then commands that could not be serialized */
+    for (CapptainCommand cmd : mPendingCmds)
+    {
+      execute(cmd);
+      mReplayedCmds++;
+    }
+    mPendingCmds.clear();
+
+    /* Check once per process that the persisted device identifier is still valid */
+    if (!mDeviceIdRefreshed)
+    {
+      mDeviceIdRefreshed = true;
+      mDeviceIdCall.request();
+    }
+
+    /* Schedule unbind (if not in session) */
+    scheduleUnbind();
+  }
+
+  /**
+   * Called on the agent thread when the Capptain service process died.
+   * @param name service component.
+   */
+  private void onDisconnected(ComponentName name)
+  {
+    /* We are not bound anymore */
+    mCapptainService = null;
+    mBindPolicy.onUnbound(SystemClock.elapsedRealtime());
+
+    /* Service may come back with different information */
+    mInfoCall.setResult(null);
+
+    /* Don't let callers wait for the service to come back */
+    mDeviceIdCall.fail();
+    mInfoCall.fail();
+
+    /*
+     * Simulate disconnected intent targeting the current package name since the capptain process
+     * has been killed.
+     */
+    Intent disconnectedIntent = new Intent("com.ubikod.capptain.intent.action.DISCONNECTED");
+    disconnectedIntent.putExtra("com.ubikod.capptain.intent.extra.SERVICE_PACKAGE",
+      name.getPackageName());
+    disconnectedIntent.setPackage(mContext.getPackageName());
+    mContext.sendBroadcast(disconnectedIntent);
+
+    /* If the service is still resolvable */
+    Intent intent = CapptainUtils.resolveCapptainService(mContext);
+    if (intent != null)
+    {
+      /* Mark we are binding to it */
+      mBindingService = intent.getComponent();
+
+      /* If it's a different one, bind to it */
+      if (!mBindingService.equals(name))
+      {
+        cancelUnbind();
+        mContext.unbindService(mServiceConnection);
+        mContext.bindService(intent, mServiceConnection, BIND_AUTO_CREATE);
+        mBindPolicy.onBind(SystemClock.elapsedRealtime());
+      }
+
+      /*
+       * If it's the same: either it will be reconnected automatically if it has been killed, or
+       * we wait for its re-installation to be complete (bind will fail before).
+       */
+    }
+  }
+
   /**
    * Bind the agent to the Capptain service if not already done. This method opens the connection to
    * the Capptain service. Calling this method is required before calling any of the other methods
@@ -377,14 +858,15 @@ public class CapptainAgent
       {
         mBindingService = intent.getComponent();
         mContext.bindService(intent, mServiceConnection, BIND_AUTO_CREATE);
+        mBindPolicy.onBind(SystemClock.elapsedRealtime());
       }
     }
   }
 
   /**
-   * The service is automatically unbound when not used after a timeout. This method starts the
-   * timer. Calling {@link #bind()} will cancel the timer. This method has no effect if the user is
-   * in an session.
+   * The service is automatically unbound when not used after a timeout adapted to the rate of
+   * commands, see {@link CapptainBindPolicy}. This method starts the timer. Calling
+   * {@link #bind()} will cancel the timer. This method has no effect if the user is in an session.
    */
   private void scheduleUnbind()
   {
@@ -392,7 +874,7 @@ public class CapptainAgent
     if (!mUnbindScheduled && (!isInSession() || !isEnabled()))
     {
       /* Schedule unbind */
-      mHandler.postDelayed(mUnbindTask, BINDER_TIMEOUT);
+      mHandler.postDelayed(mUnbindTask, mBindPolicy.getUnbindTimeout());
       mUnbindScheduled = true;
     }
   }
@@ -417,85 +899,300 @@ public class CapptainAgent
 
   /**
    * Call the Capptain Service API if bound, otherwise keep the call for later use.
-   * @param cmd the task using the Capptain Service API.
+   * @param cmd the Capptain Service API call.
+   */
+  private void sendCapptainCommand(CapptainCommand cmd)
+  {
+    /* The command needs to run on the agent thread to avoid race conditions */
+    if (Looper.myLooper() == mHandler.getLooper())
+      dispatch(cmd);
+    else
+      mHandler.obtainMessage(MSG_COMMAND, cmd).sendToTarget();
+  }
+
+  /**
+   * Call the Capptain Service API if bound, otherwise keep the call for later use. Must be called
+   * on the agent thread.
+   * @param cmd the Capptain Service API call.
    */
-  private void sendCapptainCommand(final Runnable cmd)
+  private void dispatch(CapptainCommand cmd)
   {
-    /* The command needs to run on the main thread to avoid race conditions */
-    runOnMainThread(new Runnable()
+    /* Nothing to do if disabled */
+    if (!isEnabled())
+      return;
+
+    /* Debounce activity transitions */
+    switch (cmd.getType())
     {
-      @Override
-      public void run()
-      {
-        /* Nothing to do if disabled */
-        if (!isEnabled())
-          return;
+      case CapptainCommand.END_ACTIVITY:
 
-        /* Bind if needed */
-        bind();
+        /* Nothing to match (e.g. first call of this process): report it as is */
+        if (!mActivityRunning)
+        {
+          flushDeferredEnd();
+          break;
+        }
+        mActivityRunning = false;
 
-        /* If we are not bound, spool command */
-        if (mCapptainService == null)
+        /* Wait for the grace period before reporting it */
+        if (mActivityDebounce > 0)
         {
-          mPendingCmds.offer(cmd);
-          if (mPendingCmds.size() > MAX_COMMANDS)
-            mPendingCmds.remove();
+          mDeferredEnd = cmd;
+          mHandler.postDelayed(mEndActivityTask, mActivityDebounce);
+          return;
         }
+        break;
 
-        /* Otherwise call API and set unbind timer */
-        else
+      case CapptainCommand.START_ACTIVITY:
+
+        /* The same activity with the same extras started again during the grace period goes on */
+        mActivityRunning = true;
+        if (mDeferredEnd != null && TextUtils.equals(cmd.getName(), mRunningStart.getName())
+          && cmd.hasSameExtras(mRunningStart))
         {
-          cmd.run();
-          scheduleUnbind();
+          mHandler.removeCallbacks(mEndActivityTask);
+          mDeferredEnd = null;
+          mSuppressedTransitions++;
+          return;
         }
-      }
-    });
+
+        /* Otherwise report the end of the previous activity first */
+        flushDeferredEnd();
+        mRunningStart = cmd;
+        break;
+
+      default:
+
+        /* Keep submission order: the deferred end happened before this command */
+        flushDeferredEnd();
+        break;
+    }
+    deliver(cmd);
   }
 
-  /** Check calling thread, if main, run now, otherwise post in main thread */
-  private void runOnMainThread(Runnable task)
+  /** Report the end activity command waiting for its grace period, if any */
+  private void flushDeferredEnd()
   {
-    if (Thread.currentThread() == mHandler.getLooper().getThread())
-      task.run();
-    else
-      mHandler.post(task);
+    mHandler.removeCallbacks(mEndActivityTask);
+    CapptainCommand cmd = mDeferredEnd;
+    if (cmd != null)
+    {
+      mDeferredEnd = null;
+      if (isEnabled())
+        deliver(cmd);
+    }
   }
 
   /**
-   * Notify the start of a new activity within the current session. A session being a sequence of
-   * activities, this call sets the current activity within the current session. If there is no
-   * current session, this call starts a new session.
-   * @param activity current activity instance, may be null. Capptain modules may need to watch
-   *          activity changes and may want to add content to the current view, passing null will
-   *          prevent these modules to behave like expected.
-   * @param activityName the name of the current activity for the current session, can be null for
-   *          default name (but cannot be empty). Name is limited to 64 characters.
-   * @param extras the extra details associated with the activity. Keys must match the
-   *          <tt>^[a-zA-Z][a-zA-Z_0-9]*</tt> regular expression. Extras are encoded into JSON
-   *          before being sent to the server, the encoded limit is 1024 characters.
-   * @see #endActivity()
+   * Call the Capptain Service API if bound, otherwise keep the call for later use. Must be called
+   * on the agent thread, once debouncing was applied.
+   * @param cmd the Capptain Service API call.
    */
-  public void startActivity(Activity activity, final String activityName, final Bundle extras)
+  private void deliver(CapptainCommand cmd)
   {
-    CapptainActivityManager.getInstance().setCurrentActivity(activity, activityName);
-    sendCapptainCommand(new Runnable()
+    /* Drop the end of an activity or job whose start was dropped */
+    int type = cmd.getType();
+    if (type == CapptainCommand.END_ACTIVITY && mActivityStartDropped)
     {
-      @Override
-      public void run()
-      {
-        try
-        {
-          mCapptainService.startActivity(activityName, extras);
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
-  }
+      mActivityStartDropped = false;
+      mDroppedCmds++;
+      return;
+    }
+    if (type == CapptainCommand.END_JOB && mDroppedJobs.remove(cmd.getName()))
+    {
+      mDroppedCmds++;
+      return;
+    }
 
-  /**
+    /* Feed unbind delay policy */
+    mBindPolicy.onCommand(SystemClock.elapsedRealtime());
+
+    /* Bind if needed */
+    bind();
+
+    /* If we are not bound, spool command */
+    if (mCapptainService == null)
+      spool(cmd);
+
+    /* Otherwise call API and set unbind timer */
+    else
+    {
+      execute(cmd);
+      scheduleUnbind();
+    }
+  }
+
+  /**
+   * Send a committed event recorder, the command is allocated on the agent thread.
+   * @param recorder committed recorder.
+   */
+  void commit(CapptainEventRecorder recorder)
+  {
+    if (Looper.myLooper() == mHandler.getLooper())
+      dispatch(new CapptainCommand(recorder));
+    else
+      mHandler.obtainMessage(MSG_RECORDER, recorder).sendToTarget();
+  }
+
+  /**
+   * Wrap a callback so that the result is delivered on the main thread.
+   * @param callback callback to wrap.
+   * @return callback that can be invoked from the agent thread.
+   */
+  private <T> Callback<T> onMainThread(final Callback<T> callback)
+  {
+    return new Callback<T>()
+    {
+      @Override
+      public void onResult(final T result)
+      {
+        mMainHandler.post(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            callback.onResult(result);
+          }
+        });
+      }
+    };
+  }
+
+  /**
+   * Keep a command until the service is bound, in its lane if possible.
+   * @param cmd command.
+   */
+  private void spool(CapptainCommand cmd)
+  {
+    /* Commands with callbacks cannot survive the process, keep them in memory */
+    int type = cmd.getType();
+    if (cmd.isPersistable())
+    {
+      /* Fold end then start of the same activity with the same extras: the activity just goes on */
+      int lane = cmd.getLane();
+      if (type == CapptainCommand.START_ACTIVITY
+        && mLastSessionCmd == CapptainCommand.END_ACTIVITY && mLastSpooledStart != null
+        && TextUtils.equals(cmd.getName(), mLastSpooledStart.getName())
+        && cmd.hasSameExtras(mLastSpooledStart)
+        && mLanes[CapptainCommand.LANE_SESSION].removeLast())
+      {
+        mLastSessionCmd = CapptainCommand.START_ACTIVITY;
+        return;
+      }
+
+      /* Session lane full: drop the new start, its end will be dropped as well */
+      if (type == CapptainCommand.START_ACTIVITY)
+        mActivityStartDropped = false;
+      else if (type == CapptainCommand.START_JOB)
+        mDroppedJobs.remove(cmd.getName());
+      if ((type == CapptainCommand.START_ACTIVITY || type == CapptainCommand.START_JOB)
+        && mLanes[lane].size() >= LANE_CAPACITIES[lane])
+      {
+        if (type == CapptainCommand.START_ACTIVITY)
+          mActivityStartDropped = true;
+        else
+          mDroppedJobs.add(cmd.getName());
+        mDroppedCmds++;
+        return;
+      }
+
+      /* Append to lane, its overflow policy may drop a command */
+      try
+      {
+        mLanes[lane].append(mNextSequence++, cmd.marshall());
+        if (lane == CapptainCommand.LANE_SESSION)
+        {
+          mLastSessionCmd = type;
+          if (type == CapptainCommand.START_ACTIVITY)
+            mLastSpooledStart = cmd;
+        }
+        return;
+      }
+      catch (Exception e)
+      {
+        /* Not serializable (e.g. a binder in extras) or disk full: keep it in memory */
+      }
+    }
+
+    /* Checking incoming messages is only about binding, once is enough */
+    if (type == CapptainCommand.CHECK_INCOMING_MESSAGES)
+      for (CapptainCommand pending : mPendingCmds)
+        if (pending.getType() == type)
+          return;
+
+    /* Keep in memory, dropping the oldest command that is not a control one if too many */
+    mPendingCmds.offer(cmd);
+    if (mPendingCmds.size() > MAX_COMMANDS)
+      for (Iterator<CapptainCommand> it = mPendingCmds.iterator(); it.hasNext();)
+      {
+        CapptainCommand pending = it.next();
+        if (pending.getLane() != CapptainCommand.LANE_CONTROL)
+        {
+          it.remove();
+          pending.fail();
+          mDroppedCmds++;
+          break;
+        }
+      }
+  }
+
+  /**
+   * Check if some commands are waiting for the service to be bound.
+   * @return true if commands are pending.
+   */
+  private boolean hasPendingCommands()
+  {
+    if (!mPendingCmds.isEmpty())
+      return true;
+    for (CapptainCommandSpool lane : mLanes)
+      if (lane.size() > 0)
+        return true;
+    return false;
+  }
+
+  /**
+   * Call the Capptain service API, the service must be bound.
+   * @param cmd command.
+   */
+  private void execute(CapptainCommand cmd)
+  {
+    try
+    {
+      cmd.execute(mCapptainService);
+      if (cmd.getType() == CapptainCommand.CONFIGURE)
+      {
+        mCapptainConfiguration = (CapptainConfiguration) cmd.getParcelable();
+        mCapptainConfigurationSentAsNull = mCapptainConfiguration == null;
+      }
+    }
+    catch (Exception e)
+    {
+      e.printStackTrace();
+      cmd.fail();
+    }
+  }
+
+  /**
+   * Notify the start of a new activity within the current session. A session being a sequence of
+   * activities, this call sets the current activity within the current session. If there is no
+   * current session, this call starts a new session.
+   * @param activity current activity instance, may be null. Capptain modules may need to watch
+   *          activity changes and may want to add content to the current view, passing null will
+   *          prevent these modules to behave like expected.
+   * @param activityName the name of the current activity for the current session, can be null for
+   *          default name (but cannot be empty). Name is limited to 64 characters.
+   * @param extras the extra details associated with the activity. Keys must match the
+   *          <tt>^[a-zA-Z][a-zA-Z_0-9]*</tt> regular expression. Extras are encoded into JSON
+   *          before being sent to the server, the encoded limit is 1024 characters.
+   * @see #endActivity()
+   */
+  public void startActivity(Activity activity, String activityName, Bundle extras)
+  {
+    CapptainActivityManager.getInstance().setCurrentActivity(activity, activityName);
+    sendCapptainCommand(new CapptainCommand(CapptainCommand.START_ACTIVITY, extras, activityName));
+  }
+
+  /**
    * Notify the end of the current activity within the current session. A session being a sequence
    * of activities, this call sets the current session idle. The current session is ended only if no
    * call to {@link #startActivity(Activity, String, Bundle)} follows this call within a time equal
@@ -508,21 +1205,7 @@ public class CapptainAgent
   public void endActivity()
   {
     CapptainActivityManager.getInstance().removeCurrentActivity();
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          mCapptainService.endActivity();
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    sendCapptainCommand(new CapptainCommand(CapptainCommand.END_ACTIVITY));
   }
 
   /**
@@ -535,23 +1218,9 @@ public class CapptainAgent
    *          before being sent to the server, the encoded limit is 1024 characters.
    * @see #endJob(String)
    */
-  public void startJob(final String name, final Bundle extras)
+  public void startJob(String name, Bundle extras)
   {
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          mCapptainService.startJob(name, extras);
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    sendCapptainCommand(new CapptainCommand(CapptainCommand.START_JOB, extras, name));
   }
 
   /**
@@ -560,23 +1229,9 @@ public class CapptainAgent
    *          startJob}
    * @see #startJob(String, Bundle)
    */
-  public void endJob(final String name)
+  public void endJob(String name)
   {
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          mCapptainService.endJob(name);
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    sendCapptainCommand(new CapptainCommand(CapptainCommand.END_JOB, null, name));
   }
 
   /**
@@ -586,23 +1241,21 @@ public class CapptainAgent
    *          <tt>^[a-zA-Z][a-zA-Z_0-9]*</tt> regular expression. Extras are encoded into JSON
    *          before being sent to the server, the encoded limit is 1024 characters.
    */
-  public void sendEvent(final String name, final Bundle extras)
+  public void sendEvent(String name, Bundle extras)
   {
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          mCapptainService.sendEvent(name, extras);
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    sendCapptainCommand(new CapptainCommand(CapptainCommand.SEND_EVENT, extras, name));
+  }
+
+  /**
+   * Record an event unrelated to any session or job, this is an alternative to
+   * {@link #sendEvent(String, Bundle)} that does not allocate on the calling thread once recorders
+   * have been recycled.
+   * @param name event name/tag. Name is limited to 64 characters and cannot be empty.
+   * @return recorder to fill with extras, then {@link CapptainEventRecorder#commit()}.
+   */
+  public CapptainEventRecorder recordEvent(String name)
+  {
+    return CapptainEventRecorder.obtain(this, CapptainCommand.SEND_EVENT, name, null);
   }
 
   /**
@@ -613,23 +1266,20 @@ public class CapptainAgent
    *          <tt>^[a-zA-Z][a-zA-Z_0-9]*</tt> regular expression. Extras are encoded into JSON
    *          before being sent to the server, the encoded limit is 1024 characters.
    */
-  public void sendSessionEvent(final String name, final Bundle extras)
+  public void sendSessionEvent(String name, Bundle extras)
   {
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          mCapptainService.sendSessionEvent(name, extras);
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    sendCapptainCommand(new CapptainCommand(CapptainCommand.SEND_SESSION_EVENT, extras, name));
+  }
+
+  /**
+   * Record an event related to the current session, see {@link #recordEvent(String)}. This has no
+   * effect if the session has not been started.
+   * @param name event name/tag. Name is limited to 64 characters and cannot be empty.
+   * @return recorder to fill with extras, then {@link CapptainEventRecorder#commit()}.
+   */
+  public CapptainEventRecorder recordSessionEvent(String name)
+  {
+    return CapptainEventRecorder.obtain(this, CapptainCommand.SEND_SESSION_EVENT, name, null);
   }
 
   /**
@@ -641,23 +1291,22 @@ public class CapptainAgent
    *          <tt>^[a-zA-Z][a-zA-Z_0-9]*</tt> regular expression. Extras are encoded into JSON
    *          before being sent to the server, the encoded limit is 1024 characters.
    */
-  public void sendJobEvent(final String eventName, final String jobName, final Bundle extras)
+  public void sendJobEvent(String eventName, String jobName, Bundle extras)
   {
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          mCapptainService.sendJobEvent(eventName, jobName, extras);
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    sendCapptainCommand(new CapptainCommand(CapptainCommand.SEND_JOB_EVENT, extras, eventName,
+      jobName));
+  }
+
+  /**
+   * Record an event related to a running job, see {@link #recordEvent(String)}. This has no effect
+   * if no job is running for the specified name.
+   * @param eventName event name/tag. Name is limited to 64 characters and cannot be empty.
+   * @param jobName job name.
+   * @return recorder to fill with extras, then {@link CapptainEventRecorder#commit()}.
+   */
+  public CapptainEventRecorder recordJobEvent(String eventName, String jobName)
+  {
+    return CapptainEventRecorder.obtain(this, CapptainCommand.SEND_JOB_EVENT, eventName, jobName);
   }
 
   /**
@@ -667,23 +1316,9 @@ public class CapptainAgent
    *          <tt>^[a-zA-Z][a-zA-Z_0-9]*</tt> regular expression. Extras are encoded into JSON
    *          before being sent to the server, the encoded limit is 1024 characters.
    */
-  public void sendError(final String name, final Bundle extras)
+  public void sendError(String name, Bundle extras)
   {
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          mCapptainService.sendError(name, extras);
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    sendCapptainCommand(new CapptainCommand(CapptainCommand.SEND_ERROR, extras, name));
   }
 
   /**
@@ -694,23 +1329,9 @@ public class CapptainAgent
    *          <tt>^[a-zA-Z][a-zA-Z_0-9]*</tt> regular expression. Extras are encoded into JSON
    *          before being sent to the server, the encoded limit is 1024 characters.
    */
-  public void sendSessionError(final String name, final Bundle extras)
+  public void sendSessionError(String name, Bundle extras)
   {
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          mCapptainService.sendSessionError(name, extras);
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    sendCapptainCommand(new CapptainCommand(CapptainCommand.SEND_SESSION_ERROR, extras, name));
   }
 
   /**
@@ -722,23 +1343,10 @@ public class CapptainAgent
    *          <tt>^[a-zA-Z][a-zA-Z_0-9]*</tt> regular expression. Extras are encoded into JSON
    *          before being sent to the server, the encoded limit is 1024 characters.
    */
-  public void sendJobError(final String eventName, final String jobName, final Bundle extras)
+  public void sendJobError(String eventName, String jobName, Bundle extras)
   {
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          mCapptainService.sendJobError(eventName, jobName, extras);
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    sendCapptainCommand(new CapptainCommand(CapptainCommand.SEND_JOB_ERROR, extras, eventName,
+      jobName));
   }
 
   /**
@@ -755,23 +1363,9 @@ public class CapptainAgent
    *          namespaces and values are the corresponding XML strings.</li>
    *          </ul>
    */
-  public void sendXMPPMessage(final Bundle msg)
+  public void sendXMPPMessage(Bundle msg)
   {
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          mCapptainService.sendXMPPMessage(msg);
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    sendCapptainCommand(new CapptainCommand(CapptainCommand.SEND_XMPP_MESSAGE, msg));
   }
 
   /**
@@ -787,47 +1381,23 @@ public class CapptainAgent
    *          Android one, the application ID must be passed instead of the package name. Don't pass
    *          application ID for Android applications.
    */
-  public void sendMessageToDevice(final String deviceId, final String payload,
-    final String packageName)
+  public void sendMessageToDevice(String deviceId, String payload,
+    String packageName)
   {
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          mCapptainService.sendMessageToDevice(deviceId, payload, packageName);
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    sendCapptainCommand(new CapptainCommand(CapptainCommand.SEND_MESSAGE_TO_DEVICE, null,
+      deviceId, payload, packageName));
   }
 
   /**
-   * Get the identifier used by Capptain to identify this device.
-   * @param callback a callback to retrieve the result.
+   * Get the identifier used by Capptain to identify this device. The identifier is persisted once
+   * resolved, later calls don't wait for the Capptain service. Concurrent calls share a single
+   * request to the service.
+   * @param callback a callback to retrieve the result, called on the main thread with null if the
+   *          service could not be reached or the agent is disabled.
    */
-  public void getDeviceId(final Callback<String> callback)
+  public void getDeviceId(Callback<String> callback)
   {
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          callback.onResult(mCapptainService.getDeviceId());
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    mDeviceIdCall.get(callback);
   }
 
   /**
@@ -836,46 +1406,20 @@ public class CapptainAgent
    *          <tt>^[a-zA-Z][a-zA-Z_0-9]*</tt> regular expression. Extras are encoded into JSON
    *          before being sent to the server, the encoded limit is 1024 characters.
    */
-  public void sendAppInfo(final Bundle appInfo)
+  public void sendAppInfo(Bundle appInfo)
   {
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          mCapptainService.sendAppInfo(appInfo);
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    sendCapptainCommand(new CapptainCommand(CapptainCommand.SEND_APP_INFO, appInfo));
   }
 
   /**
-   * Get information that the Capptain service sends.
-   * @param callback a callback to retrieve the result.
+   * Get information that the Capptain service sends. The information is cached while bound to the
+   * same service, concurrent calls share a single request to the service.
+   * @param callback a callback to retrieve the result, called on the main thread with null if the
+   *          service could not be reached or the agent is disabled.
    */
-  public void getInfo(final Callback<Bundle> callback)
+  public void getInfo(Callback<Bundle> callback)
   {
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          callback.onResult(mCapptainService.getInfo());
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    mInfoCall.get(callback);
   }
 
   /**
@@ -885,24 +1429,11 @@ public class CapptainAgent
    * @param status feedback status e.g. ok or cancelled.
    * @param extras extra information like poll answers.
    */
-  public void sendReachFeedback(final String kind, final String contentId, final String status,
-    final Bundle extras)
+  public void sendReachFeedback(String kind, String contentId, String status,
+    Bundle extras)
   {
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          mCapptainService.sendReachFeedback(kind, contentId, status, extras);
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    sendCapptainCommand(new CapptainCommand(CapptainCommand.SEND_REACH_FEEDBACK, extras, kind,
+      contentId, status));
   }
 
   /**
@@ -915,48 +1446,18 @@ public class CapptainAgent
    * configuration by submitting an empty configuration object.
    * @param configuration full configuration.
    */
-  public void configure(final CapptainConfiguration configuration)
+  public void configure(CapptainConfiguration configuration)
   {
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          mCapptainService.configure(configuration);
-          mCapptainConfiguration = configuration;
-          mCapptainConfigurationSentAsNull = configuration == null;
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    sendCapptainCommand(new CapptainCommand(configuration));
   }
 
   /**
    * Register this device for Native Push.
    * @param token native push token (describing registration identifier and service type).
    */
-  public void registerNativePush(final CapptainNativePushToken token)
+  public void registerNativePush(CapptainNativePushToken token)
   {
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        try
-        {
-          mCapptainService.registerNativePush(token);
-        }
-        catch (Exception e)
-        {
-          e.printStackTrace();
-        }
-      }
-    });
+    sendCapptainCommand(new CapptainCommand(token));
   }
 
   /**
@@ -970,17 +1471,75 @@ public class CapptainAgent
     /*
      * Needed by Reach when the device boots or when C2DM wakes up the application. We bind to the
      * service to force it to connect, fetch and deliver messages to this application. We'll only
-     * stay bound for 30s unless someone else use the API. If we declare the binder persistent in
-     * AndroidManifest.xml, the service will stay connected.
+     * stay bound for a few seconds unless someone else use the API. If we declare the binder
+     * persistent in AndroidManifest.xml, the service will stay connected.
      */
-    sendCapptainCommand(new Runnable()
-    {
-      @Override
-      public void run()
-      {
-        /* Nothing to do */
-      }
-    });
+    sendCapptainCommand(new CapptainCommand(CapptainCommand.CHECK_INCOMING_MESSAGES));
+  }
+
+  /**
+   * Get the number of commands dropped while not bound to the Capptain service since the process
+   * started, either because their lane was full or because a command spooled by a previous process
+   * could not be decoded. Control commands (configuration, application information, native push
+   * registration, reach feedback) are never dropped.
+   * @return number of dropped commands.
+   */
+  public int getDroppedCommandCount()
+  {
+    int dropped = mDroppedCmds;
+    for (CapptainCommandSpool lane : mLanes)
+      if (lane != null)
+        dropped += lane.getDroppedCount();
+    return dropped;
+  }
+
+  /**
+   * Get the number of activity transitions that were not reported to the Capptain service since the
+   * process started: an activity ended then started again with the same name and extras within
+   * the grace period counts as one.
+   * @return number of suppressed activity transitions.
+   */
+  public int getSuppressedTransitionCount()
+  {
+    return mSuppressedTransitions;
+  }
+
+  /**
+   * Get the number of pending commands sent once bound to the Capptain service since the process
+   * started, including the commands spooled by previous processes.
+   * @return number of replayed commands.
+   */
+  public int getReplayedCommandCount()
+  {
+    return mReplayedCmds;
+  }
+
+  /**
+   * Get the number of times the agent requested to bind to the Capptain service since the process
+   * started.
+   * @return number of bind requests.
+   */
+  public int getBindCount()
+  {
+    return mBindPolicy.getBindCount();
+  }
+
+  /**
+   * Get the average time between a bind request and the connection to the Capptain service.
+   * @return average bind latency in milliseconds, 0 if never bound.
+   */
+  public long getAverageBindLatency()
+  {
+    return mBindPolicy.getAverageBindLatency();
+  }
+
+  /**
+   * Get the total time the agent was bound to the Capptain service since the process started.
+   * @return time bound in milliseconds.
+   */
+  public long getBoundTime()
+  {
+    return mBindPolicy.getBoundTime(SystemClock.elapsedRealtime());
   }
 
   /**
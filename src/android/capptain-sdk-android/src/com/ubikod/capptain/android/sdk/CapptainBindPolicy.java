@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.android.sdk;
+
+/**
+ * Adaptive keep-alive policy deciding how long the agent stays bound to the Capptain service
+ * outside a session. The delay follows an exponential moving average of the gaps between commands
+ * so that applications sending bursts every few seconds stay bound between bursts, while rare
+ * commands release the service quickly. A hysteresis band prevents the delay from flapping. Also
+ * collects binding metrics. Must be used from the agent thread, metrics can be read from any
+ * thread.
+ */
+final class CapptainBindPolicy
+{
+  /** Minimum unbind delay */
+  private static final long MIN_TIMEOUT = 5000;
+
+  /** Maximum unbind delay, above this staying bound is not worth it */
+  private static final long MAX_TIMEOUT = 120000;
+
+  /** Initial unbind delay, before gaps are known */
+  private static final long DEFAULT_TIMEOUT = 30000;
+
+  /** Gaps shorter than this are between commands of the same burst and are not averaged */
+  private static final long BURST_GAP = 1000;
+
+  /** Weight of the last gap in the moving average */
+  private static final double ALPHA = 0.2;
+
+  /** The delay covers this many average gaps */
+  private static final double GAP_FACTOR = 3;
+
+  /** Relative change of the target delay needed to change the current delay */
+  private static final double HYSTERESIS = 0.25;
+
+  /** Moving average of gaps between commands in ms, negative if unknown */
+  private double mAverageGap = -1;
+
+  /** Time of the last command, 0 if none */
+  private long mLastCommandTime;
+
+  /** Current unbind delay */
+  private long mTimeout = DEFAULT_TIMEOUT;
+
+  /** Time of the last bind request, 0 if not binding */
+  private long mBindTime;
+
+  /** Time the service was bound, 0 if not bound */
+  private volatile long mBoundSince;
+
+  /** Number of bind requests */
+  private volatile int mBindCount;
+
+  /** Number of established connections */
+  private volatile int mConnectionCount;
+
+  /** Total time between bind requests and connections */
+  private volatile long mTotalBindLatency;
+
+  /** Total time bound, excluding the current connection */
+  private volatile long mTotalBoundTime;
+
+  /**
+   * Record a command.
+   * @param now current time in ms.
+   */
+  void onCommand(long now)
+  {
+    /* Update average gap, the service stays bound within a burst anyway */
+    long gap = mLastCommandTime > 0 ? now - mLastCommandTime : 0;
+    mLastCommandTime = now;
+    if (gap >= BURST_GAP)
+    {
+      if (mAverageGap < 0)
+        mAverageGap = gap;
+      else
+        mAverageGap = ALPHA * gap + (1 - ALPHA) * mAverageGap;
+    }
+
+    /* Stay bound a few average gaps, or release quickly if commands are too rare */
+    if (mAverageGap >= 0)
+    {
+      long target = (long) (mAverageGap * GAP_FACTOR);
+      if (target > MAX_TIMEOUT)
+        target = MIN_TIMEOUT;
+      else if (target < MIN_TIMEOUT)
+        target = MIN_TIMEOUT;
+      if (Math.abs(target - mTimeout) > mTimeout * HYSTERESIS)
+        mTimeout = target;
+    }
+  }
+
+  /**
+   * Get the delay before unbinding when not in session.
+   * @return delay in ms.
+   */
+  long getUnbindTimeout()
+  {
+    return mTimeout;
+  }
+
+  /**
+   * Record a bind request.
+   * @param now current time in ms.
+   */
+  void onBind(long now)
+  {
+    mBindTime = now;
+    mBindCount++;
+  }
+
+  /**
+   * Record an established connection.
+   * @param now current time in ms.
+   */
+  void onConnected(long now)
+  {
+    if (mBindTime > 0)
+    {
+      mTotalBindLatency += now - mBindTime;
+      mConnectionCount++;
+      mBindTime = 0;
+    }
+    if (mBoundSince == 0)
+      mBoundSince = now;
+  }
+
+  /**
+   * Record the end of a connection.
+   * @param now current time in ms.
+   */
+  void onUnbound(long now)
+  {
+    if (mBoundSince > 0)
+    {
+      mTotalBoundTime += now - mBoundSince;
+      mBoundSince = 0;
+    }
+  }
+
+  /**
+   * Get the number of bind requests.
+   * @return number of bind requests.
+   */
+  int getBindCount()
+  {
+    return mBindCount;
+  }
+
+  /**
+   * Get the average time between a bind request and the connection.
+   * @return average bind latency in ms, 0 if no connection was established.
+   */
+  long getAverageBindLatency()
+  {
+    int connections = mConnectionCount;
+    return connections == 0 ? 0 : mTotalBindLatency / connections;
+  }
+
+  /**
+   * Get the total time bound, including the current connection.
+   * @param now current time in ms.
+   * @return time bound in ms.
+   */
+  long getBoundTime(long now)
+  {
+    long boundSince = mBoundSince;
+    return mTotalBoundTime + (boundSince > 0 ? now - boundSince : 0);
+  }
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.android.sdk;
+
+import java.util.Arrays;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.RemoteException;
+
+import com.ubikod.capptain.CapptainConfiguration;
+import com.ubikod.capptain.CapptainNativePushToken;
+import com.ubikod.capptain.ICapptainService;
+import com.ubikod.capptain.android.sdk.CapptainAgent.Callback;
+
+/**
+ * A call to the Capptain service API. Commands without a callback can be serialized so that they
+ * can be spooled on disk while the agent is not bound to the service.
+ */
+final class CapptainCommand
+{
+  /** {@link ICapptainService#startActivity(String, Bundle)} */
+  static final int START_ACTIVITY = 1;
+
+  /** {@link ICapptainService#endActivity()} */
+  static final int END_ACTIVITY = 2;
+
+  /** {@link ICapptainService#startJob(String, Bundle)} */
+  static final int START_JOB = 3;
+
+  /** {@link ICapptainService#endJob(String)} */
+  static final int END_JOB = 4;
+
+  /** {@link ICapptainService#sendEvent(String, Bundle)} */
+  static final int SEND_EVENT = 5;
+
+  /** {@link ICapptainService#sendSessionEvent(String, Bundle)} */
+  static final int SEND_SESSION_EVENT = 6;
+
+  /** {@link ICapptainService#sendJobEvent(String, String, Bundle)} */
+  static final int SEND_JOB_EVENT = 7;
+
+  /** {@link ICapptainService#sendError(String, Bundle)} */
+  static final int SEND_ERROR = 8;
+
+  /** {@link ICapptainService#sendSessionError(String, Bundle)} */
+  static final int SEND_SESSION_ERROR = 9;
+
+  /** {@link ICapptainService#sendJobError(String, String, Bundle)} */
+  static final int SEND_JOB_ERROR = 10;
+
+  /** {@link ICapptainService#sendXMPPMessage(Bundle)} */
+  static final int SEND_XMPP_MESSAGE = 11;
+
+  /** {@link ICapptainService#sendMessageToDevice(String, String, String)} */
+  static final int SEND_MESSAGE_TO_DEVICE = 12;
+
+  /** {@link ICapptainService#sendAppInfo(Bundle)} */
+  static final int SEND_APP_INFO = 13;
+
+  /** {@link ICapptainService#sendReachFeedback(String, String, String, Bundle)} */
+  static final int SEND_REACH_FEEDBACK = 14;
+
+  /** {@link ICapptainService#configure(CapptainConfiguration)} */
+  static final int CONFIGURE = 15;
+
+  /** {@link ICapptainService#registerNativePush(CapptainNativePushToken)} */
+  static final int REGISTER_NATIVE_PUSH = 16;
+
+  /** No API call, just binds to the service */
+  static final int CHECK_INCOMING_MESSAGES = 17;
+
+  /** {@link ICapptainService#getDeviceId()} */
+  static final int GET_DEVICE_ID = 18;
+
+  /** {@link ICapptainService#getInfo()} */
+  static final int GET_INFO = 19;
+
+  /** Lane of commands that must never be dropped: configuration, registrations and results */
+  static final int LANE_CONTROL = 0;
+
+  /** Lane of session and job transitions */
+  static final int LANE_SESSION = 1;
+
+  /** Lane of events and messages */
+  static final int LANE_EVENTS = 2;
+
+  /** Lane of errors */
+  static final int LANE_ERRORS = 3;
+
+  /** Number of lanes */
+  static final int LANES = 4;
+
+  /** Command type */
+  private final int mType;
+
+  /** String arguments in API order, null if none */
+  private final String[] mArgs;
+
+  /** Bundle argument, if any */
+  private Bundle mExtras;
+
+  /** Recorder holding the extras until the command is sent, if any */
+  private CapptainEventRecorder mRecorder;
+
+  /** Parcelable argument (configuration or native push token), if any */
+  private final Parcelable mParcelable;
+
+  /** Result callback, if any */
+  private final Callback<?> mCallback;
+
+  /**
+   * Init a command.
+   * @param type command type.
+   * @param args string arguments in API order, null if none.
+   * @param extras bundle argument, if any.
+   * @param parcelable parcelable argument, if any.
+   * @param callback result callback, if any.
+   */
+  private CapptainCommand(int type, String[] args, Bundle extras, Parcelable parcelable,
+    Callback<?> callback)
+  {
+    mType = type;
+    mArgs = args;
+    mExtras = extras;
+    mParcelable = parcelable;
+    mCallback = callback;
+  }
+
+  /**
+   * Init a command without arguments.
+   * @param type command type.
+   */
+  CapptainCommand(int type)
+  {
+    this(type, null, null, null, null);
+  }
+
+  /**
+   * Init a command with string and bundle arguments.
+   * @param type command type.
+   * @param extras bundle argument, if any.
+   * @param args string arguments in API order.
+   */
+  CapptainCommand(int type, Bundle extras, String... args)
+  {
+    this(type, args, extras, null, null);
+  }
+
+  /**
+   * Init an event command from a committed recorder, extras are built when the command is sent.
+   * @param recorder committed recorder.
+   */
+  CapptainCommand(CapptainEventRecorder recorder)
+  {
+    this(recorder.getCommandType(), recorder.getArgs(), null, null, null);
+    mRecorder = recorder;
+  }
+
+  /**
+   * Init a configure command.
+   * @param configuration configuration.
+   */
+  CapptainCommand(CapptainConfiguration configuration)
+  {
+    this(CONFIGURE, null, null, configuration, null);
+  }
+
+  /**
+   * Init a native push registration command.
+   * @param token native push token.
+   */
+  CapptainCommand(CapptainNativePushToken token)
+  {
+    this(REGISTER_NATIVE_PUSH, null, null, token, null);
+  }
+
+  /**
+   * Init a command returning a result.
+   * @param type command type.
+   * @param callback result callback.
+   */
+  CapptainCommand(int type, Callback<?> callback)
+  {
+    this(type, null, null, null, callback);
+  }
+
+  /**
+   * Get command type.
+   * @return command type.
+   */
+  int getType()
+  {
+    return mType;
+  }
+
+  /**
+   * Get the first string argument, which is the activity, job, event or error name.
+   * @return name, null if none.
+   */
+  String getName()
+  {
+    return mArgs == null ? null : mArgs[0];
+  }
+
+  /**
+   * Get the lane this command is queued in while the agent is not bound.
+   * @return lane.
+   */
+  int getLane()
+  {
+    switch (mType)
+    {
+      case START_ACTIVITY:
+      case END_ACTIVITY:
+      case START_JOB:
+      case END_JOB:
+        return LANE_SESSION;
+
+      case SEND_EVENT:
+      case SEND_SESSION_EVENT:
+      case SEND_JOB_EVENT:
+      case SEND_XMPP_MESSAGE:
+      case SEND_MESSAGE_TO_DEVICE:
+        return LANE_EVENTS;
+
+      case SEND_ERROR:
+      case SEND_SESSION_ERROR:
+      case SEND_JOB_ERROR:
+        return LANE_ERRORS;
+
+      default:
+        return LANE_CONTROL;
+    }
+  }
+
+  /**
+   * Get the parcelable argument.
+   * @return parcelable argument, null if none.
+   */
+  Parcelable getParcelable()
+  {
+    return mParcelable;
+  }
+
+  /**
+   * Check whether this command can be spooled on disk and replayed by another process.
+   * @return true if the command can be serialized.
+   */
+  boolean isPersistable()
+  {
+    return mCallback == null && mType != CHECK_INCOMING_MESSAGES;
+  }
+
+  /**
+   * Check if another command has the same bundle argument.
+   * @param cmd other command.
+   * @return true if both bundles have the same values, a missing bundle being empty.
+   */
+  boolean hasSameExtras(CapptainCommand cmd)
+  {
+    buildExtras();
+    cmd.buildExtras();
+    return equals(mExtras, cmd.mExtras);
+  }
+
+  /**
+   * Compare bundles by value.
+   * @param a a bundle, may be null.
+   * @param b another bundle, may be null.
+   * @return true if both bundles have the same keys and values, null being empty.
+   */
+  private static boolean equals(Bundle a, Bundle b)
+  {
+    if (a == null || a.isEmpty())
+      return b == null || b.isEmpty();
+    if (b == null || !a.keySet().equals(b.keySet()))
+      return false;
+    for (String key : a.keySet())
+    {
+      Object value = a.get(key);
+      Object other = b.get(key);
+      if (value instanceof Bundle && other instanceof Bundle)
+      {
+        if (!equals((Bundle) value, (Bundle) other))
+          return false;
+      }
+
+      /* Deep equality handles arrays */
+      else if (!Arrays.deepEquals(new Object[] { value }, new Object[] { other }))
+        return false;
+    }
+    return true;
+  }
+
+  /** Build extras from the recorder if any, and return the recorder to its pool */
+  private void buildExtras()
+  {
+    if (mRecorder != null)
+    {
+      mExtras = mRecorder.toBundle();
+      mRecorder.recycle();
+      mRecorder = null;
+    }
+  }
+
+  /**
+   * Call the Capptain service API.
+   * @param service Capptain service.
+   * @throws RemoteException if the call fails.
+   */
+  @SuppressWarnings("unchecked")
+  void execute(ICapptainService service) throws RemoteException
+  {
+    buildExtras();
+    switch (mType)
+    {
+      case START_ACTIVITY:
+        service.startActivity(mArgs[0], mExtras);
+        break;
+
+      case END_ACTIVITY:
+        service.endActivity();
+        break;
+
+      case START_JOB:
+        service.startJob(mArgs[0], mExtras);
+        break;
+
+      case END_JOB:
+        service.endJob(mArgs[0]);
+        break;
+
+      case SEND_EVENT:
+        service.sendEvent(mArgs[0], mExtras);
+        break;
+
+      case SEND_SESSION_EVENT:
+        service.sendSessionEvent(mArgs[0], mExtras);
+        break;
+
+      case SEND_JOB_EVENT:
+        service.sendJobEvent(mArgs[0], mArgs[1], mExtras);
+        break;
+
+      case SEND_ERROR:
+        service.sendError(mArgs[0], mExtras);
+        break;
+
+      case SEND_SESSION_ERROR:
+        service.sendSessionError(mArgs[0], mExtras);
+        break;
+
+      case SEND_JOB_ERROR:
+        service.sendJobError(mArgs[0], mArgs[1], mExtras);
+        break;
+
+      case SEND_XMPP_MESSAGE:
+        service.sendXMPPMessage(mExtras);
+        break;
+
+      case SEND_MESSAGE_TO_DEVICE:
+        service.sendMessageToDevice(mArgs[0], mArgs[1], mArgs[2]);
+        break;
+
+      case SEND_APP_INFO:
+        service.sendAppInfo(mExtras);
+        break;
+
+      case SEND_REACH_FEEDBACK:
+        service.sendReachFeedback(mArgs[0], mArgs[1], mArgs[2], mExtras);
+        break;
+
+      case CONFIGURE:
+        service.configure((CapptainConfiguration) mParcelable);
+        break;
+
+      case REGISTER_NATIVE_PUSH:
+        service.registerNativePush((CapptainNativePushToken) mParcelable);
+        break;
+
+      case GET_DEVICE_ID:
+        ((Callback<String>) mCallback).onResult(service.getDeviceId());
+        break;
+
+      case GET_INFO:
+        ((Callback<Bundle>) mCallback).onResult(service.getInfo());
+        break;
+
+      default:
+        /* Nothing to do, binding was enough */
+    }
+  }
+
+  /** Notify the callback, if any, that the call failed by passing a null result */
+  @SuppressWarnings("unchecked")
+  void fail()
+  {
+    if (mCallback != null)
+      ((Callback<Object>) mCallback).onResult(null);
+  }
+
+  /**
+   * Serialize this command. Parcel marshalling is not meant for long term storage, this is only
+   * used to survive process death until the next bind.
+   * @return serialized command.
+   * @throws RuntimeException if the arguments contain live objects like binders.
+   */
+  byte[] marshall()
+  {
+    buildExtras();
+    Parcel parcel = Parcel.obtain();
+    try
+    {
+      parcel.writeInt(mType);
+      parcel.writeStringArray(mArgs);
+      parcel.writeBundle(mExtras);
+      parcel.writeParcelable(mParcelable, 0);
+      return parcel.marshall();
+    }
+    finally
+    {
+      parcel.recycle();
+    }
+  }
+
+  /**
+   * Deserialize a command.
+   * @param data serialized command.
+   * @return command, null if the data cannot be decoded (e.g. written by another platform version).
+   */
+  static CapptainCommand unmarshall(byte[] data)
+  {
+    Parcel parcel = Parcel.obtain();
+    try
+    {
+      ClassLoader classLoader = CapptainCommand.class.getClassLoader();
+      parcel.unmarshall(data, 0, data.length);
+      parcel.setDataPosition(0);
+      int type = parcel.readInt();
+      String[] args = parcel.createStringArray();
+      Bundle extras = parcel.readBundle(classLoader);
+      Parcelable parcelable = parcel.readParcelable(classLoader);
+      return new CapptainCommand(type, args, extras, parcelable, null);
+    }
+    catch (RuntimeException e)
+    {
+      return null;
+    }
+    finally
+    {
+      parcel.recycle();
+    }
+  }
+}
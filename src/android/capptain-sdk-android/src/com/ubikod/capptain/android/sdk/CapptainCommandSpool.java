@@ -0,0 +1,455 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.android.sdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FIFO of serialized commands with a bounded capacity and an overflow policy. It is backed by a
+ * memory-mapped file so that commands survive process death until the agent binds to the service,
+ * or by a heap buffer if the file cannot be used. Each record carries a sequence number assigned by
+ * the caller, sequence numbers must increase so that several spools can be replayed in submission
+ * order. The records between head and tail must have increasing sequence numbers, anything else is
+ * treated as the end of the spool. A record is visible only once the tail is moved past it, a
+ * record interrupted by process death is thus ignored. The file is locked so that only one process
+ * uses it.
+ */
+final class CapptainCommandSpool
+{
+  /** Overflow policy: drop the oldest record */
+  static final int DROP_OLDEST = 0;
+
+  /** Overflow policy: drop the record being appended */
+  static final int DROP_NEWEST = 1;
+
+  /** Overflow policy: never drop, capacity is ignored */
+  static final int NEVER_DROP = 2;
+
+  /** File format marker */
+  private static final int MAGIC = 0x43415032;
+
+  /** Header offset of the magic number */
+  private static final int MAGIC_OFFSET = 0;
+
+  /** Header offset of the head position */
+  private static final int HEAD_OFFSET = 4;
+
+  /** Header offset of the tail position */
+  private static final int TAIL_OFFSET = 8;
+
+  /** Header size, records start there */
+  private static final int HEADER_SIZE = 12;
+
+  /** Record header size: length then sequence number */
+  private static final int RECORD_HEADER_SIZE = 12;
+
+  /** Initial buffer size */
+  private static final int INITIAL_SIZE = 16 * 1024;
+
+  /** File format marker of the single spool file of older versions */
+  private static final int LEGACY_MAGIC = 0x43415031;
+
+  /** Header size of the single spool file of older versions, it ends with the next sequence */
+  private static final int LEGACY_HEADER_SIZE = 20;
+
+  /** Maximum number of records */
+  private final int mCapacity;
+
+  /** Overflow policy */
+  private final int mPolicy;
+
+  /** Open file, null if backed by the heap */
+  private RandomAccessFile mRandomAccessFile;
+
+  /** Lock preventing another process from using the file */
+  private FileLock mLock;
+
+  /** Mapped file content or heap buffer */
+  private ByteBuffer mBuffer;
+
+  /** Position of the oldest record */
+  private int mHead;
+
+  /** Position after the newest record */
+  private int mTail;
+
+  /** Position of the last appended record if it can be removed, -1 otherwise */
+  private int mLast = -1;
+
+  /** Sequence number of the newest record, -1 if never appended */
+  private long mLastSequence = -1;
+
+  /** Number of records */
+  private int mSize;
+
+  /** Number of records dropped since the spool was opened */
+  private volatile int mDropped;
+
+  /**
+   * Open or create a spool backed by a file.
+   * @param file spool file.
+   * @param capacity maximum number of records.
+   * @param policy overflow policy.
+   * @throws IOException if the file cannot be mapped or is used by another process.
+   */
+  CapptainCommandSpool(File file, int capacity, int policy) throws IOException
+  {
+    mCapacity = capacity;
+    mPolicy = policy;
+    mRandomAccessFile = new RandomAccessFile(file, "rw");
+    mLock = mRandomAccessFile.getChannel().tryLock();
+    if (mLock == null)
+    {
+      mRandomAccessFile.close();
+      throw new IOException(file + " is used by another process");
+    }
+    map(Math.max(INITIAL_SIZE, (int) mRandomAccessFile.length()));
+    recover();
+  }
+
+  /**
+   * Create a spool backed by the heap, records are lost with the process.
+   * @param capacity maximum number of records.
+   * @param policy overflow policy.
+   */
+  CapptainCommandSpool(int capacity, int policy)
+  {
+    mCapacity = capacity;
+    mPolicy = policy;
+    mBuffer = ByteBuffer.allocate(INITIAL_SIZE);
+    mBuffer.putInt(MAGIC_OFFSET, MAGIC);
+    reset();
+  }
+
+  /**
+   * Map the file, or reallocate the heap buffer, with at least the specified size.
+   * @param size size to map.
+   * @throws IOException if the file cannot be mapped.
+   */
+  private void map(int size) throws IOException
+  {
+    if (mRandomAccessFile == null)
+    {
+      ByteBuffer buffer = ByteBuffer.allocate(size);
+      buffer.put(mBuffer.array(), 0, mBuffer.capacity());
+      mBuffer = buffer;
+      return;
+    }
+    if (mRandomAccessFile.length() < size)
+      mRandomAccessFile.setLength(size);
+    mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+  }
+
+  /** Read the header and validate records left by a previous process */
+  private void recover()
+  {
+    /* Reset spool if not initialized or written with another format */
+    if (mBuffer.getInt(MAGIC_OFFSET) != MAGIC)
+    {
+      mBuffer.putInt(MAGIC_OFFSET, MAGIC);
+      reset();
+      return;
+    }
+
+    /* Walk records, stopping at the first one that is truncated or out of sequence */
+    int head = mBuffer.getInt(HEAD_OFFSET);
+    int tail = mBuffer.getInt(TAIL_OFFSET);
+    if (head < HEADER_SIZE || tail > mBuffer.capacity() || head > tail)
+    {
+      reset();
+      return;
+    }
+    int position = head;
+    int size = 0;
+    while (position + RECORD_HEADER_SIZE <= tail)
+    {
+      int length = mBuffer.getInt(position);
+      long sequence = mBuffer.getLong(position + 4);
+      int next = position + RECORD_HEADER_SIZE + length;
+      if (length < 0 || next > tail || sequence <= mLastSequence)
+        break;
+      mLastSequence = sequence;
+      position = next;
+      size++;
+    }
+    mHead = head;
+    mTail = position;
+    mSize = size;
+    if (size == 0)
+      reset();
+    else
+      writePositions();
+  }
+
+  /** Empty the spool */
+  private void reset()
+  {
+    mHead = HEADER_SIZE;
+    mTail = HEADER_SIZE;
+    mSize = 0;
+    mLast = -1;
+    writePositions();
+  }
+
+  /** Persist head and tail */
+  private void writePositions()
+  {
+    mBuffer.putInt(HEAD_OFFSET, mHead);
+    mBuffer.putInt(TAIL_OFFSET, mTail);
+  }
+
+  /**
+   * Get the number of spooled records.
+   * @return number of records.
+   */
+  int size()
+  {
+    return mSize;
+  }
+
+  /**
+   * Get the sequence number of the newest record, including the ones removed.
+   * @return sequence number, -1 if no record was ever seen.
+   */
+  long getLastSequence()
+  {
+    return mLastSequence;
+  }
+
+  /**
+   * Get the number of records dropped because the spool was full since it was opened.
+   * @return number of dropped records.
+   */
+  int getDroppedCount()
+  {
+    return mDropped;
+  }
+
+  /**
+   * Append a record, applying the overflow policy if the spool is full.
+   * @param sequence sequence number, greater than all the previous ones.
+   * @param data serialized command.
+   * @return false if the record was dropped.
+   * @throws IOException if the file cannot be grown.
+   */
+  boolean append(long sequence, byte[] data) throws IOException
+  {
+    /* Apply overflow policy */
+    if (mPolicy != NEVER_DROP && mSize >= mCapacity)
+    {
+      mDropped++;
+      if (mPolicy == DROP_NEWEST)
+        return false;
+      remove();
+    }
+
+    /* Make room: reuse the space of removed records if possible, grow the buffer otherwise */
+    int needed = RECORD_HEADER_SIZE + data.length;
+    if (mTail + needed > mBuffer.capacity())
+    {
+      int used = mTail - mHead;
+      if (mHead - HEADER_SIZE >= used && HEADER_SIZE + used + needed <= mBuffer.capacity())
+        compact();
+      else
+        map(Math.max(mTail + needed, mBuffer.capacity() * 2));
+    }
+
+    /* Write record, then publish it by moving the tail */
+    mBuffer.putInt(mTail, data.length);
+    mBuffer.putLong(mTail + 4, sequence);
+    mBuffer.position(mTail + RECORD_HEADER_SIZE);
+    mBuffer.put(data);
+    mLast = mTail;
+    mTail += needed;
+    mLastSequence = sequence;
+    mSize++;
+    writePositions();
+    return true;
+  }
+
+  /**
+   * Move records at the start of the buffer. Only called when the destination does not overlap the
+   * records so that process death during the copy cannot corrupt them.
+   */
+  private void compact()
+  {
+    int used = mTail - mHead;
+    byte[] records = new byte[used];
+    mBuffer.position(mHead);
+    mBuffer.get(records);
+    mBuffer.position(HEADER_SIZE);
+    mBuffer.put(records);
+
+    /* The stale records after the moved ones have lower sequence numbers */
+    if (mLast >= 0)
+      mLast -= mHead - HEADER_SIZE;
+    mHead = HEADER_SIZE;
+    mTail = HEADER_SIZE + used;
+    writePositions();
+  }
+
+  /**
+   * Get the sequence number of the oldest record.
+   * @return sequence number, {@link Long#MAX_VALUE} if the spool is empty.
+   */
+  long peekSequence()
+  {
+    return mSize == 0 ? Long.MAX_VALUE : mBuffer.getLong(mHead + 4);
+  }
+
+  /**
+   * Get the oldest record without removing it.
+   * @return serialized command, null if the spool is empty.
+   */
+  byte[] peek()
+  {
+    if (mSize == 0)
+      return null;
+    byte[] data = new byte[mBuffer.getInt(mHead)];
+    mBuffer.position(mHead + RECORD_HEADER_SIZE);
+    mBuffer.get(data);
+    return data;
+  }
+
+  /** Remove the oldest record, if any */
+  void remove()
+  {
+    if (mSize == 0)
+      return;
+    if (mHead == mLast)
+      mLast = -1;
+    mHead += RECORD_HEADER_SIZE + mBuffer.getInt(mHead);
+    mSize--;
+    if (mSize == 0)
+      reset();
+    else
+      writePositions();
+  }
+
+  /**
+   * Remove the record appended last, only possible once after an append and if the record was not
+   * removed meanwhile.
+   * @return true if the record was removed.
+   */
+  boolean removeLast()
+  {
+    if (mLast < 0)
+      return false;
+    mTail = mLast;
+    mLast = -1;
+    mSize--;
+    if (mSize == 0)
+      reset();
+    else
+      writePositions();
+    return true;
+  }
+
+  /**
+   * Read the records of the single spool file written by older versions, in which all commands had
+   * consecutive sequence numbers.
+   * @param file spool file.
+   * @return records in order, empty if the file is missing or has another format.
+   * @throws IOException if the file cannot be read or is used by another process.
+   */
+  static List<byte[]> readLegacy(File file) throws IOException
+  {
+    List<byte[]> records = new ArrayList<byte[]>();
+    if (!file.exists())
+      return records;
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try
+    {
+      /* The old agent locked the whole file */
+      FileChannel channel = randomAccessFile.getChannel();
+      FileLock lock = channel.tryLock(0, Long.MAX_VALUE, true);
+      if (lock == null)
+        throw new IOException(file + " is used by another process");
+      try
+      {
+        long fileLength = randomAccessFile.length();
+        if (fileLength < LEGACY_HEADER_SIZE || fileLength > Integer.MAX_VALUE)
+          return records;
+        byte[] content = new byte[(int) fileLength];
+        randomAccessFile.readFully(content);
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        if (buffer.getInt(MAGIC_OFFSET) != LEGACY_MAGIC)
+          return records;
+
+        /* Walk records, stopping at the first one that is truncated or out of sequence */
+        int position = buffer.getInt(HEAD_OFFSET);
+        int tail = buffer.getInt(TAIL_OFFSET);
+        if (position < LEGACY_HEADER_SIZE || tail > content.length || position > tail)
+          return records;
+        long sequence = -1;
+        while (position + RECORD_HEADER_SIZE <= tail)
+        {
+          int length = buffer.getInt(position);
+          long recordSequence = buffer.getLong(position + 4);
+          int start = position + RECORD_HEADER_SIZE;
+          if (length < 0 || length > tail - start
+            || (sequence >= 0 && recordSequence != sequence + 1))
+            break;
+          byte[] record = new byte[length];
+          System.arraycopy(content, start, record, 0, length);
+          records.add(record);
+          sequence = recordSequence;
+          position = start + length;
+        }
+        return records;
+      }
+      finally
+      {
+        lock.release();
+      }
+    }
+    finally
+    {
+      randomAccessFile.close();
+    }
+  }
+
+  /** Remove all records */
+  void clear()
+  {
+    reset();
+  }
+
+  /** Close the spool, keeping the file */
+  void close()
+  {
+    try
+    {
+      if (mLock != null)
+        mLock.release();
+      if (mRandomAccessFile != null)
+        mRandomAccessFile.close();
+    }
+    catch (IOException e)
+    {
+      /* Ignore */
+    }
+    mLock = null;
+  }
+}
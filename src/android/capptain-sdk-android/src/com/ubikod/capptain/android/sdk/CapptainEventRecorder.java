@@ -0,0 +1,281 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.android.sdk;
+
+import android.os.Bundle;
+
+/**
+ * Typed builder of event extras that avoids allocating on the calling thread. Recorders are pooled
+ * and keep their buffers, primitive values are stored unboxed and the extras bundle is built only
+ * when the event is sent to the Capptain service (or spooled). Usage:
+ * 
+ * <pre>
+ * {@code CapptainAgent.getInstance(context).recordEvent("purchase").put("price", 499L)
+ *   .put("currency", "EUR").commit();}
+ * </pre>
+ * 
+ * A recorder must not be used anymore after {@link #commit()}. Recorders are not thread safe: a
+ * recorder must be filled and committed by a single thread.
+ */
+public final class CapptainEventRecorder
+{
+  /** Long value */
+  private static final byte TYPE_LONG = 0;
+
+  /** Double value */
+  private static final byte TYPE_DOUBLE = 1;
+
+  /** Boolean value */
+  private static final byte TYPE_BOOLEAN = 2;
+
+  /** String value */
+  private static final byte TYPE_STRING = 3;
+
+  /** Initial number of values a recorder can hold without growing */
+  private static final int INITIAL_CAPACITY = 8;
+
+  /** Maximum number of recycled recorders */
+  private static final int POOL_SIZE = 16;
+
+  /** Recycled recorders */
+  private static final CapptainEventRecorder[] sPool = new CapptainEventRecorder[POOL_SIZE];
+
+  /** Number of recycled recorders */
+  private static int sPoolSize;
+
+  /** Agent the event is sent to */
+  private CapptainAgent mAgent;
+
+  /** Command type, see {@link CapptainCommand} */
+  private int mCommandType;
+
+  /** Event name */
+  private String mName;
+
+  /** Job name, for job events */
+  private String mJobName;
+
+  /** Number of values */
+  private int mSize;
+
+  /** Value keys */
+  private String[] mKeys = new String[INITIAL_CAPACITY];
+
+  /** Value types */
+  private byte[] mTypes = new byte[INITIAL_CAPACITY];
+
+  /** Long and boolean values */
+  private long[] mLongs = new long[INITIAL_CAPACITY];
+
+  /** Double values */
+  private double[] mDoubles = new double[INITIAL_CAPACITY];
+
+  /** String values */
+  private String[] mStrings = new String[INITIAL_CAPACITY];
+
+  private CapptainEventRecorder()
+  {
+    /* Use obtain */
+  }
+
+  /**
+   * Get a recorder from the pool.
+   * @param agent agent the event is sent to.
+   * @param commandType command type, see {@link CapptainCommand}.
+   * @param name event name.
+   * @param jobName job name, for job events.
+   * @return empty recorder.
+   */
+  static CapptainEventRecorder obtain(CapptainAgent agent, int commandType, String name,
+    String jobName)
+  {
+    CapptainEventRecorder recorder = null;
+    synchronized (sPool)
+    {
+      if (sPoolSize > 0)
+      {
+        recorder = sPool[--sPoolSize];
+        sPool[sPoolSize] = null;
+      }
+    }
+    if (recorder == null)
+      recorder = new CapptainEventRecorder();
+    recorder.mAgent = agent;
+    recorder.mCommandType = commandType;
+    recorder.mName = name;
+    recorder.mJobName = jobName;
+    return recorder;
+  }
+
+  /** Clear values and return this recorder to the pool, keeping its buffers */
+  void recycle()
+  {
+    for (int i = 0; i < mSize; i++)
+    {
+      mKeys[i] = null;
+      mStrings[i] = null;
+    }
+    mSize = 0;
+    mAgent = null;
+    mName = null;
+    mJobName = null;
+    synchronized (sPool)
+    {
+      if (sPoolSize < POOL_SIZE)
+        sPool[sPoolSize++] = this;
+    }
+  }
+
+  /**
+   * Add a long value.
+   * @param key extra key, must match the <tt>^[a-zA-Z][a-zA-Z_0-9]*</tt> regular expression.
+   * @param value value.
+   * @return this recorder.
+   */
+  public CapptainEventRecorder put(String key, long value)
+  {
+    mLongs[add(key, TYPE_LONG)] = value;
+    return this;
+  }
+
+  /**
+   * Add a double value.
+   * @param key extra key, must match the <tt>^[a-zA-Z][a-zA-Z_0-9]*</tt> regular expression.
+   * @param value value.
+   * @return this recorder.
+   */
+  public CapptainEventRecorder put(String key, double value)
+  {
+    mDoubles[add(key, TYPE_DOUBLE)] = value;
+    return this;
+  }
+
+  /**
+   * Add a boolean value.
+   * @param key extra key, must match the <tt>^[a-zA-Z][a-zA-Z_0-9]*</tt> regular expression.
+   * @param value value.
+   * @return this recorder.
+   */
+  public CapptainEventRecorder put(String key, boolean value)
+  {
+    mLongs[add(key, TYPE_BOOLEAN)] = value ? 1 : 0;
+    return this;
+  }
+
+  /**
+   * Add a string value.
+   * @param key extra key, must match the <tt>^[a-zA-Z][a-zA-Z_0-9]*</tt> regular expression.
+   * @param value value.
+   * @return this recorder.
+   */
+  public CapptainEventRecorder put(String key, String value)
+  {
+    mStrings[add(key, TYPE_STRING)] = value;
+    return this;
+  }
+
+  /**
+   * Send the event. The recorder must not be used afterwards. Extras are encoded into JSON before
+   * being sent to the server, the encoded limit is 1024 characters.
+   */
+  public void commit()
+  {
+    mAgent.commit(this);
+  }
+
+  /**
+   * Get command type.
+   * @return command type, see {@link CapptainCommand}.
+   */
+  int getCommandType()
+  {
+    return mCommandType;
+  }
+
+  /**
+   * Get the string arguments of the command.
+   * @return event name, followed by job name for job events.
+   */
+  String[] getArgs()
+  {
+    if (mJobName == null)
+      return new String[] { mName };
+    return new String[] { mName, mJobName };
+  }
+
+  /**
+   * Build extras, called once when the event is sent.
+   * @return extras, null if no value was recorded.
+   */
+  Bundle toBundle()
+  {
+    if (mSize == 0)
+      return null;
+    Bundle extras = new Bundle();
+    for (int i = 0; i < mSize; i++)
+      switch (mTypes[i])
+      {
+        case TYPE_LONG:
+          extras.putLong(mKeys[i], mLongs[i]);
+          break;
+
+        case TYPE_DOUBLE:
+          extras.putDouble(mKeys[i], mDoubles[i]);
+          break;
+
+        case TYPE_BOOLEAN:
+          extras.putBoolean(mKeys[i], mLongs[i] != 0);
+          break;
+
+        default:
+          extras.putString(mKeys[i], mStrings[i]);
+      }
+    return extras;
+  }
+
+  /**
+   * Reserve a value slot, growing buffers if needed.
+   * @param key value key.
+   * @param type value type.
+   * @return slot index.
+   */
+  private int add(String key, byte type)
+  {
+    if (mSize == mKeys.length)
+    {
+      int capacity = mSize * 2;
+      String[] keys = new String[capacity];
+      byte[] types = new byte[capacity];
+      long[] longs = new long[capacity];
+      double[] doubles = new double[capacity];
+      String[] strings = new String[capacity];
+      System.arraycopy(mKeys, 0, keys, 0, mSize);
+      System.arraycopy(mTypes, 0, types, 0, mSize);
+      System.arraycopy(mLongs, 0, longs, 0, mSize);
+      System.arraycopy(mDoubles, 0, doubles, 0, mSize);
+      System.arraycopy(mStrings, 0, strings, 0, mSize);
+      mKeys = keys;
+      mTypes = types;
+      mLongs = longs;
+      mDoubles = doubles;
+      mStrings = strings;
+    }
+    mKeys[mSize] = key;
+    mTypes[mSize] = type;
+    return mSize++;
+  }
+}
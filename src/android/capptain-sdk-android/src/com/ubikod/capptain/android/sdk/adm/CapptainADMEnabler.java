@@ -87,7 +87,7 @@ public class CapptainADMEnabler extends BroadcastReceiver
        * via a broadcast intent with the <tt>com.amazon.device.messaging.intent.REGISTRATION</tt>
        * action.
        */
-      if (CapptainUtils.getMetaData(context).getBoolean("capptain:adm:register"))
+      if (CapptainUtils.getMetaDataSnapshot(context).getBoolean("capptain:adm:register", false))
         try
         {
           Class<?> admClass = Class.forName("com.amazon.device.messaging.ADM");
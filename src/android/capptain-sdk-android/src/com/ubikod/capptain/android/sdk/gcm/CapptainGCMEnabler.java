@@ -65,7 +65,7 @@ public class CapptainGCMEnabler extends BroadcastReceiver
        * Request GCM registration identifier, this is asynchronous, the response is made via a
        * broadcast intent with the <tt>com.google.android.c2dm.intent.REGISTRATION</tt> action.
        */
-      String sender = CapptainUtils.getMetaData(context).getString("capptain:gcm:sender");
+      String sender = CapptainUtils.getMetaDataSnapshot(context).getString("capptain:gcm:sender");
       if (sender != null)
       {
         /* Launch registration process */
@@ -57,6 +57,7 @@ import android.widget.TextView;
 
 import com.ubikod.capptain.android.sdk.CapptainActivityManager;
 import com.ubikod.capptain.android.sdk.reach.v11.NotificationUtilsV11;
+import com.ubikod.capptain.utils.CapptainMetaData;
 import com.ubikod.capptain.utils.CapptainUtils;
 import com.ubikod.capptain.utils.ResourcesUtils;
 
@@ -220,7 +221,7 @@ public class CapptainDefaultNotifier implements CapptainNotifier
       if (notificationAreaView == null)
       {
         /* Check overlay is not disabled in this activity */
-        Bundle activityConfig = CapptainUtils.getActivityMetaData(activity);
+        CapptainMetaData activityConfig = CapptainUtils.getActivityMetaDataSnapshot(activity);
         if (!activityConfig.getBoolean(METADATA_NOTIFICATION_OVERLAY, true))
           return false;
 
@@ -58,7 +58,9 @@ import com.ubikod.capptain.android.sdk.CapptainAgent;
 import com.ubikod.capptain.android.sdk.CapptainAgent.Callback;
 import com.ubikod.capptain.android.sdk.reach.v11.NotificationUtilsV11;
 import com.ubikod.capptain.storage.CapptainStorage;
+import com.ubikod.capptain.storage.CapptainStorage.Row;
 import com.ubikod.capptain.storage.CapptainStorage.Scanner;
+import com.ubikod.capptain.storage.CapptainStorageConfiguration;
 
 /**
  * This is the class that manages the Reach functionalities. It listen messages thanks to
@@ -115,9 +117,12 @@ public class CapptainReachAgent
   /** Reach XML namespace */
   static final String REACH_NAMESPACE = "urn:ubikod:ermin:reach:0";
 
-  /** Download meta-data store */
+  /** Download meta-data store used by previous versions, download identifiers are now indexed */
   private static final String DOWNLOAD_SETTINGS = "capptain.reach.downloads";
 
+  /** First reach database version that does not use {@link #DOWNLOAD_SETTINGS} */
+  private static final int DB_VERSION_INDEXED_DOWNLOADS = 7;
+
   /** Unique instance */
   private static CapptainReachAgent sInstance;
 
@@ -250,6 +255,9 @@ public class CapptainReachAgent
   /** Datapush campaigns being broadcasted */
   private final Set<Long> mPendingDataPushes = new HashSet<Long>();
 
+  /** True once the download mapping of previous versions was checked in this process */
+  private boolean mLegacyDownloadsChecked;
+
   /**
    * Init the reach agent.
    * @param context application context.
@@ -284,7 +292,12 @@ public class CapptainReachAgent
     schema.put(NOTIFICATION_LAST_DISPLAYED_DATE, 1L);
     schema.put(NOTIFICATION_ACTIONED, 1);
     schema.put(CONTENT_DISPLAYED, 1);
-    mDB = new CapptainStorage(context, "capptain.reach.db", 6, "content", schema, null);
+    CapptainStorageConfiguration configuration = new CapptainStorageConfiguration();
+    configuration.setJournalMode(CapptainStorageConfiguration.JOURNAL_MODE_WAL);
+    configuration.setSynchronous(CapptainStorageConfiguration.SYNCHRONOUS_NORMAL);
+    configuration.addIndex(DOWNLOAD_ID);
+    mDB = new CapptainStorage(context, "capptain.reach.db", DB_VERSION_INDEXED_DOWNLOADS,
+      "content", schema, configuration, null);
 
     /* Retrieve device id */
     CapptainAgent.getInstance(context).getDeviceId(new Callback<String>()
@@ -411,8 +424,10 @@ public class CapptainReachAgent
    */
   public <T extends CapptainReachContent> T getContentByDownloadId(long downloadId)
   {
-    return getContent(mContext.getSharedPreferences(DOWNLOAD_SETTINGS, 0).getLong(
-      String.valueOf(downloadId), 0));
+    ContentValues values = mDB.findFirst(DOWNLOAD_ID, downloadId);
+    if (values == null)
+      return null;
+    return getContent(values.getAsLong(ID));
   }
 
   /**
@@ -506,10 +521,6 @@ public class CapptainReachAgent
     ContentValues values = new ContentValues();
     values.put(DOWNLOAD_ID, downloadId);
     mDB.update(content.getLocalId(), values);
-    mContext.getSharedPreferences(DOWNLOAD_SETTINGS, 0)
-      .edit()
-      .putLong(String.valueOf(downloadId), content.getLocalId())
-      .commit();
   }
 
   /**
@@ -718,16 +729,45 @@ public class CapptainReachAgent
     /* Change state */
     mScanning = true;
 
+    /*
+     * Drop the download mapping of previous versions once, when the database is upgraded from
+     * them: download identifiers are in the database.
+     */
+    if (!mLegacyDownloadsChecked)
+    {
+      mLegacyDownloadsChecked = true;
+      int previousVersion = mDB.getPreviousVersion();
+      if (previousVersion > 0 && previousVersion < DB_VERSION_INDEXED_DOWNLOADS)
+        mContext.getSharedPreferences(DOWNLOAD_SETTINGS, 0).edit().clear().commit();
+    }
+
     /* For all database rows */
     Scanner scanner = mDB.getScanner();
-    for (ContentValues values : scanner)
+    for (Row row : scanner.rows())
     {
-      /* Parsing may fail */
-      CapptainReachContent content = null;
+      /*
+       * Contents being processed are not notified again but may have expired meanwhile, their XML
+       * is read only if they are not in the cache.
+       */
+      Long localId = row.getAsLong(ID);
+      boolean pending = mPendingNotifications.contains(localId)
+        || mPendingDataPushes.contains(localId);
+      CapptainReachContent content = pending ? mContentCache.get(localId) : null;
+
+      /* Reading and parsing may fail */
       try
       {
         /* Parse content */
-        content = parseContent(values);
+        if (content == null)
+          content = parseContent(row.toValues());
+
+        /* Only check expiry of contents being processed */
+        if (pending)
+        {
+          if (content.hasExpired())
+            deleteContent(content);
+          continue;
+        }
 
         /* Possibly generate a notification */
         notifyContent(content, replaySystemNotifications);
@@ -743,7 +783,7 @@ public class CapptainReachAgent
 
         /* Otherwise we just delete */
         else
-          deleteContent(values.getAsLong(ID), values.getAsLong(DOWNLOAD_ID));
+          deleteContent(localId, row.getAsLong(DOWNLOAD_ID));
 
         /* In any case we continue parsing */
       }
@@ -953,17 +993,8 @@ public class CapptainReachAgent
     mPendingNotifications.remove(localId);
     mContentCache.remove(localId);
 
-    /* Delete associated download if any */
+    /* Cancel download and delete file if any */
     if (downloadId != null)
-    {
-      /* Delete mapping */
-      mContext.getSharedPreferences(DOWNLOAD_SETTINGS, 0)
-        .edit()
-        .remove(String.valueOf(downloadId))
-        .commit();
-
-      /* Cancel download and delete file */
       NotificationUtilsV11.deleteDownload(mContext, downloadId);
-    }
   }
 }
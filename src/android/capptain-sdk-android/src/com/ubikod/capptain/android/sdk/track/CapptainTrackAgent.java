@@ -156,8 +156,7 @@ public class CapptainTrackAgent
       throw new IllegalArgumentException("empty appId");
 
     /* Get ad servers configuration */
-    Bundle config = CapptainUtils.getMetaData(mContext);
-    String adServers = config.getString(ADSERVERS_CONFIG);
+    String adServers = CapptainUtils.getMetaDataSnapshot(mContext).getString(ADSERVERS_CONFIG);
 
     /* If ad servers configured */
     if (adServers != null)
@@ -92,7 +92,7 @@ public class CapptainTrackReceiver extends BroadcastReceiver
     else if ("com.android.vending.INSTALL_REFERRER".equals(intent.getAction()))
     {
       /* Forward this action to configured receivers */
-      String forwardList = CapptainUtils.getMetaData(context).getString(
+      String forwardList = CapptainUtils.getMetaDataSnapshot(context).getString(
         "capptain:track:installReferrerForwardList");
       if (forwardList != null)
         for (String component : forwardList.split(","))
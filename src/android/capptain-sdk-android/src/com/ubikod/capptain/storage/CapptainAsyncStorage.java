@@ -0,0 +1,351 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.storage;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.ContentValues;
+import android.os.Process;
+
+/**
+ * Asynchronous facade over a {@link CapptainStorage}. All operations run on a single background
+ * thread in submission order, so operations on a given row identifier are always applied in the
+ * order they were submitted. Consecutive writes are coalesced: consecutive puts are inserted in a
+ * single transaction and consecutive updates of the same row are merged into one update.
+ */
+public class CapptainAsyncStorage implements Closeable
+{
+  /** Put write */
+  private static final int PUT = 0;
+
+  /** Update write */
+  private static final int UPDATE = 1;
+
+  /** Delete write */
+  private static final int DELETE = 2;
+
+  /** Wrapped storage */
+  private final CapptainStorage mStorage;
+
+  /** Single writer thread */
+  private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+  {
+    @Override
+    public Thread newThread(final Runnable r)
+    {
+      return new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          Process.setThreadPriority(THREAD_PRIORITY_BACKGROUND);
+          r.run();
+        }
+      }, "CapptainStorage");
+    }
+  });
+
+  /** Writes that can still be coalesced, null if the next write must start a new batch */
+  private List<Write> mOpenBatch;
+
+  /** Pending write */
+  private static class Write
+  {
+    /** Write kind */
+    private final int mKind;
+
+    /** Row identifier, unused for puts */
+    private final long mId;
+
+    /** Values, unused for deletes */
+    private final ContentValues mValues;
+
+    /** Result once executed */
+    private Object mResult;
+
+    /** Error once executed */
+    private RuntimeException mError;
+
+    /** Future completed once executed */
+    private final FutureTask<Object> mFuture = new FutureTask<Object>(new Callable<Object>()
+    {
+      @Override
+      public Object call() throws Exception
+      {
+        if (mError != null)
+          throw mError;
+        return mResult;
+      }
+    });
+
+    /**
+     * Init write.
+     * @param kind write kind.
+     * @param id row identifier.
+     * @param values values.
+     */
+    private Write(int kind, long id, ContentValues values)
+    {
+      mKind = kind;
+      mId = id;
+      mValues = values;
+    }
+  }
+
+  /**
+   * Wrap a storage. Once wrapped, the storage should be accessed only through this facade to keep
+   * ordering guarantees.
+   * @param storage storage to wrap.
+   */
+  public CapptainAsyncStorage(CapptainStorage storage)
+  {
+    mStorage = storage;
+  }
+
+  /**
+   * Store an entry in background.
+   * @param values object describing the values to store.
+   * @return future database identifier.
+   */
+  public Future<Long> putAsync(ContentValues values)
+  {
+    return enqueue(new Write(PUT, 0, values));
+  }
+
+  /**
+   * Update an entry in background.
+   * @param id existing entry identifier.
+   * @param values values to update.
+   * @return future result, true if update was successful, false otherwise.
+   */
+  public Future<Boolean> updateAsync(long id, ContentValues values)
+  {
+    return enqueue(new Write(UPDATE, id, values));
+  }
+
+  /**
+   * Delete an entry in background.
+   * @param id database identifier.
+   * @return future completed once the entry is deleted.
+   */
+  public Future<Void> deleteAsync(long id)
+  {
+    return enqueue(new Write(DELETE, id, null));
+  }
+
+  /**
+   * Get an entry in background. All writes submitted before are visible.
+   * @param id identifier.
+   * @return future entry, null if not found.
+   */
+  public Future<ContentValues> getAsync(final long id)
+  {
+    return submitRead(new Callable<ContentValues>()
+    {
+      @Override
+      public ContentValues call() throws Exception
+      {
+        return mStorage.get(id);
+      }
+    });
+  }
+
+  /**
+   * Read all values in background. All writes submitted before are visible.
+   * @return future values.
+   */
+  public Future<List<ContentValues>> scanAsync()
+  {
+    return scanAsync(null, null, null, null, null);
+  }
+
+  /**
+   * Read a subset of values in background, see
+   * {@link CapptainStorage#getScanner(String[], String, String[], String, String)}. All writes
+   * submitted before are visible.
+   * @param columns columns to read, null to read all of them.
+   * @param selection optional SQL WHERE clause.
+   * @param selectionArgs arguments for the ? in selection.
+   * @param orderBy optional SQL ORDER BY clause.
+   * @param limit optional SQL LIMIT clause.
+   * @return future values.
+   */
+  public Future<List<ContentValues>> scanAsync(final String[] columns, final String selection,
+    final String[] selectionArgs, final String orderBy, final String limit)
+  {
+    return submitRead(new Callable<List<ContentValues>>()
+    {
+      @Override
+      public List<ContentValues> call() throws Exception
+      {
+        List<ContentValues> result = new ArrayList<ContentValues>();
+        CapptainStorage.Scanner scanner = mStorage.getScanner(columns, selection, selectionArgs,
+          orderBy, limit);
+        try
+        {
+          for (ContentValues values : scanner)
+            result.add(values);
+        }
+        finally
+        {
+          scanner.close();
+        }
+        return result;
+      }
+    });
+  }
+
+  /**
+   * Close the storage once all submitted operations are executed. No operation can be submitted
+   * afterwards.
+   */
+  @Override
+  public synchronized void close()
+  {
+    mOpenBatch = null;
+    mExecutor.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        mStorage.close();
+      }
+    });
+    mExecutor.shutdown();
+  }
+
+  /**
+   * Submit a read, this closes the current write batch so that later writes are not visible.
+   * @param read read operation.
+   * @return future result.
+   */
+  private synchronized <T> Future<T> submitRead(Callable<T> read)
+  {
+    mOpenBatch = null;
+    return mExecutor.submit(read);
+  }
+
+  /**
+   * Add a write to the current batch, scheduling a new batch if needed.
+   * @param write write to add.
+   * @return future result.
+   */
+  @SuppressWarnings("unchecked")
+  private synchronized <T> Future<T> enqueue(Write write)
+  {
+    if (mOpenBatch == null)
+    {
+      final List<Write> batch = new ArrayList<Write>();
+      mOpenBatch = batch;
+      mExecutor.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          /* Stop coalescing into this batch */
+          synchronized (CapptainAsyncStorage.this)
+          {
+            if (mOpenBatch == batch)
+              mOpenBatch = null;
+          }
+          execute(batch);
+        }
+      });
+    }
+    mOpenBatch.add(write);
+    return (Future<T>) (Future<?>) write.mFuture;
+  }
+
+  /**
+   * Execute a batch of writes in order, coalescing consecutive compatible writes.
+   * @param batch writes.
+   */
+  private void execute(List<Write> batch)
+  {
+    int size = batch.size();
+    int i = 0;
+    while (i < size)
+    {
+      Write write = batch.get(i);
+      int end = i + 1;
+      try
+      {
+        switch (write.mKind)
+        {
+          case PUT:
+          {
+            /* Insert consecutive puts in one transaction */
+            while (end < size && batch.get(end).mKind == PUT)
+              end++;
+            if (end - i == 1)
+              write.mResult = mStorage.put(write.mValues);
+            else
+            {
+              List<ContentValues> valuesList = new ArrayList<ContentValues>(end - i);
+              for (int j = i; j < end; j++)
+                valuesList.add(batch.get(j).mValues);
+              List<Long> ids = mStorage.putAll(valuesList);
+              for (int j = i; j < end; j++)
+                batch.get(j).mResult = ids.get(j - i);
+            }
+            break;
+          }
+
+          case UPDATE:
+          {
+            /* Merge consecutive updates of the same row, last values win */
+            ContentValues values = write.mValues;
+            while (end < size && batch.get(end).mKind == UPDATE && batch.get(end).mId == write.mId)
+            {
+              if (values == write.mValues)
+                values = new ContentValues(values);
+              values.putAll(batch.get(end).mValues);
+              end++;
+            }
+            Boolean updated = mStorage.update(write.mId, values);
+            for (int j = i; j < end; j++)
+              batch.get(j).mResult = updated;
+            break;
+          }
+
+          default:
+            mStorage.delete(write.mId);
+        }
+      }
+      catch (RuntimeException e)
+      {
+        for (int j = i; j < end; j++)
+          batch.get(j).mError = e;
+      }
+
+      /* Complete futures */
+      for (int j = i; j < end; j++)
+        batch.get(j).mFuture.run();
+      i = end;
+    }
+  }
+}
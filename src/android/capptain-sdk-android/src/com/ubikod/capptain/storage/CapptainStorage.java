@@ -17,42 +17,144 @@
 package com.ubikod.capptain.storage;
 
 import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.SystemClock;
 
 /**
- * Storage abstraction. Attempts to use SQLite and fails over in memory if an error occurs.
+ * Storage abstraction. Attempts to use SQLite and fails over in memory if an error occurs. While
+ * failed over, operations are also appended to a spill log file so that entries survive process
+ * death, and SQLite is retried periodically: once it works again, entries are migrated back to
+ * SQLite. Single operations are synchronized so that a storage can also be used through
+ * {@link CapptainAsyncStorage}.
  */
 public class CapptainStorage implements Closeable
 {
   /** Storage capacity in number of entries */
   private static final int CAPACITY = 300;
 
+  /** Minimum delay in ms between a SQLite failure and the next attempt to use SQLite again */
+  private static final long SQLITE_RETRY_DELAY = 60000;
+
+  /** Number of spill log records that triggers a compaction */
+  private static final int LOG_COMPACTION_THRESHOLD = 4 * CAPACITY;
+
+  /** Maximum number of compiled update statements, the least recently used one is closed */
+  private static final int UPDATE_STATEMENTS = 8;
+
+  /**
+   * First in-memory identifier when the SQLite identifiers are not known: far above the SQLite
+   * ones but in the int range, callers use identifiers as request codes.
+   */
+  private static final long IMDB_ID_BASE = 1L << 30;
+
   /** Application context */
   private final Context mContext;
 
   /** In-memory database if SQLite cannot be used */
   private Map<Long, ContentValues> mIMDB;
 
-  /** In-memory auto increment */
+  /** In-memory auto increment, just above the SQLite identifiers */
   private long mIMDBAutoInc;
 
+  /** Updates made while failed over to entries that were not in memory, they may be in SQLite */
+  private final Map<Long, ContentValues> mIMDBUpdated = new HashMap<Long, ContentValues>();
+
+  /** Identifiers deleted while failed over that were not in memory, they may exist in SQLite */
+  private final Set<Long> mIMDBDeleted = new HashSet<Long>();
+
+  /** True if cleared while failed over, before the changes in memory */
+  private boolean mIMDBCleared;
+
+  /** Highest identifier allocated by SQLite, null if not known yet */
+  private Long mMaxId;
+
+  /** Spill log persisting the in-memory database, null if not failed over or if the log failed */
+  private CapptainStorageLog mLog;
+
+  /** True once a spill log left by a previous instance has been checked */
+  private boolean mLogRecovered;
+
+  /** Last time SQLite failed, in elapsed real time */
+  private long mLastFailure;
+
+  /** Cached SQLite row count, null if not yet known */
+  private Long mCount;
+
   /** SQLite manager */
   private final SQLiteManager mManager;
 
+  /** Compiled delete by id statement, null if not yet compiled */
+  private SQLiteStatement mDeleteStatement;
+
+  /** Compiled update by id statements, by updated column set, in least recently used order */
+  private final Map<Set<String>, UpdateStatement> mUpdateStatements =
+    new LinkedHashMap<Set<String>, UpdateStatement>(UPDATE_STATEMENTS, 0.75f, true)
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Set<String>, UpdateStatement> eldest)
+      {
+        if (size() <= UPDATE_STATEMENTS)
+          return false;
+        eldest.getValue().mStatement.close();
+        return true;
+      }
+    };
+
+  /** Compiled update statement and the order in which it binds columns */
+  private static class UpdateStatement
+  {
+    /** Compiled statement */
+    private final SQLiteStatement mStatement;
+
+    /** Updated columns, in binding order */
+    private final String[] mColumns;
+
+    /**
+     * Init update statement.
+     * @param statement compiled statement.
+     * @param columns updated columns, in binding order.
+     */
+    private UpdateStatement(SQLiteStatement statement, String[] columns)
+    {
+      mStatement = statement;
+      mColumns = columns;
+    }
+  }
+
   /** Error listener */
   private final ErrorListener mErrorListener;
 
+  /** True once the error listener was called */
+  private boolean mErrorNotified;
+
   /** SQLite manager specification */
   private static class SQLiteManager extends SQLiteOpenHelper
   {
@@ -65,6 +167,12 @@ public class CapptainStorage implements Closeable
     /** Schema, e.g. a specimen with dummy values to have keys and their corresponding value's type */
     private final ContentValues mSchema;
 
+    /** SQLite tuning */
+    private final CapptainStorageConfiguration mConfiguration;
+
+    /** Schema version found when the database was last opened, 0 if created, -1 if not opened */
+    private int mPreviousVersion = -1;
+
     /**
      * Init SQLite manager.
      * @param context application context.
@@ -72,46 +180,233 @@ public class CapptainStorage implements Closeable
      * @param version schema version.
      * @param tableName table name.
      * @param schema specimen value.
+     * @param configuration SQLite tuning.
      */
     private SQLiteManager(Context context, String dbName, int version, String tableName,
-      ContentValues schema)
+      ContentValues schema, CapptainStorageConfiguration configuration)
     {
       super(context, dbName, null, version);
       mDBName = dbName;
       mTableName = tableName;
       mSchema = schema;
+      mConfiguration = configuration;
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db)
+    {
+      /* Not created nor migrated: the version is up to date */
+      if (mPreviousVersion < 0)
+        mPreviousVersion = db.getVersion();
+
+      /*
+       * Tuning is optional: on error, keep using the database with SQLite defaults. Keywords were
+       * checked against the values SQLite accepts when configured, numbers are integers.
+       */
+      try
+      {
+        /* Journal mode, WAL has a dedicated API that also enables concurrent readers */
+        String journalMode = mConfiguration.getJournalMode();
+        if (CapptainStorageConfiguration.JOURNAL_MODE_WAL.equalsIgnoreCase(journalMode)
+          && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+          enableWriteAheadLogging(db);
+        else if (journalMode != null)
+          execPragma(db, "journal_mode = " + journalMode);
+
+        /* Other pragmas */
+        String synchronous = mConfiguration.getSynchronous();
+        if (synchronous != null)
+          execPragma(db, "synchronous = " + synchronous);
+        Integer cacheSize = mConfiguration.getCacheSize();
+        if (cacheSize != null)
+          execPragma(db, "cache_size = " + cacheSize);
+      }
+      catch (RuntimeException e)
+      {
+        /* Ignore */
+      }
+
+      /* Secondary indexes of schema columns, lookups still work without them */
+      for (String column : mConfiguration.getIndexes())
+        if (mSchema.containsKey(column))
+          try
+          {
+            db.execSQL("CREATE INDEX IF NOT EXISTS `" + mTableName + "_" + column + "` ON `"
+              + mTableName + "` (`" + column + "`)");
+          }
+          catch (RuntimeException e)
+          {
+            /* Ignore */
+          }
+    }
+
+    /**
+     * Enable write-ahead logging.
+     * @param db SQLite database.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void enableWriteAheadLogging(SQLiteDatabase db)
+    {
+      db.enableWriteAheadLogging();
+    }
+
+    /**
+     * Execute a pragma, some of them return a row so we use a query.
+     * @param db SQLite database.
+     * @param pragma pragma without the PRAGMA keyword.
+     * @throws SQLException if an error occurs.
+     */
+    private void execPragma(SQLiteDatabase db, String pragma) throws SQLException
+    {
+      Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+      try
+      {
+        cursor.moveToFirst();
+      }
+      finally
+      {
+        cursor.close();
+      }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db)
     {
+      mPreviousVersion = 0;
+
+      /* Page size can only be changed before the first table is created */
+      Integer pageSize = mConfiguration.getPageSize();
+      if (pageSize != null)
+        execPragma(db, "page_size = " + pageSize);
+
       /* Generate a schema from specimen */
+      createTable(db);
+    }
+
+    /**
+     * Create the table from the schema specimen.
+     * @param db SQLite database.
+     */
+    private void createTable(SQLiteDatabase db)
+    {
       StringBuilder sql = new StringBuilder("CREATE TABLE `");
       sql.append(mTableName);
       sql.append("` (id INTEGER PRIMARY KEY AUTOINCREMENT");
       for (Entry<String, Object> col : mSchema.valueSet())
-      {
-        sql.append(", `").append(col.getKey()).append("` ");
-        Object val = col.getValue();
-        if (val instanceof Double || val instanceof Float)
-          sql.append("REAL");
-        else if (val instanceof Number || val instanceof Boolean)
-          sql.append("INTEGER");
-        else if (val instanceof byte[])
-          sql.append("BLOB");
-        else
-          sql.append("TEXT");
-      }
+        sql.append(", `").append(col.getKey()).append("` ").append(getType(col.getValue()));
       sql.append(");");
       db.execSQL(sql.toString());
     }
 
+    /**
+     * Get the SQLite column type of a specimen value.
+     * @param val specimen value.
+     * @return SQLite column type.
+     */
+    private static String getType(Object val)
+    {
+      if (val instanceof Double || val instanceof Float)
+        return "REAL";
+      else if (val instanceof Number || val instanceof Boolean)
+        return "INTEGER";
+      else if (val instanceof byte[])
+        return "BLOB";
+      else
+        return "TEXT";
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
     {
-      /* For now we upgrade by destroying the old table */
-      db.execSQL("DROP TABLE `" + mTableName + "`");
-      onCreate(db);
+      mPreviousVersion = oldVersion;
+      migrate(db);
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion)
+    {
+      mPreviousVersion = oldVersion;
+      migrate(db);
+    }
+
+    /**
+     * Migrate the existing table to the schema, keeping rows. New columns are added in place, rows
+     * are copied to a new table only if a column was removed or changed type.
+     * @param db SQLite database.
+     */
+    private void migrate(SQLiteDatabase db)
+    {
+      /* Read existing columns and their declared types */
+      Map<String, String> existing = new HashMap<String, String>();
+      Cursor cursor = db.rawQuery("PRAGMA table_info(`" + mTableName + "`)", null);
+      try
+      {
+        int nameIndex = cursor.getColumnIndexOrThrow("name");
+        int typeIndex = cursor.getColumnIndexOrThrow("type");
+        while (cursor.moveToNext())
+          existing.put(cursor.getString(nameIndex), cursor.getString(typeIndex).toUpperCase());
+      }
+      finally
+      {
+        cursor.close();
+      }
+
+      /* No table yet */
+      if (existing.isEmpty())
+      {
+        createTable(db);
+        return;
+      }
+
+      /* Diff with schema */
+      List<String> kept = new ArrayList<String>();
+      String idType = existing.remove("id");
+      if (idType != null)
+        kept.add("id");
+      boolean copy = !"INTEGER".equals(idType);
+      List<String> added = new ArrayList<String>();
+      for (Entry<String, Object> col : mSchema.valueSet())
+      {
+        String key = col.getKey();
+        String type = existing.remove(key);
+        if (type == null)
+          added.add(key);
+        else
+        {
+          kept.add(key);
+          if (!type.equals(getType(col.getValue())))
+            copy = true;
+        }
+      }
+      if (!existing.isEmpty())
+        copy = true;
+
+      /* Add columns in place if possible */
+      if (!copy)
+      {
+        for (String key : added)
+          db.execSQL("ALTER TABLE `" + mTableName + "` ADD COLUMN `" + key + "` "
+            + getType(mSchema.get(key)));
+        return;
+      }
+
+      /* Otherwise copy the kept columns into a new table */
+      String oldTableName = mTableName + "_old";
+      db.execSQL("ALTER TABLE `" + mTableName + "` RENAME TO `" + oldTableName + "`");
+      createTable(db);
+      if (!kept.isEmpty())
+      {
+        StringBuilder columns = new StringBuilder();
+        for (String key : kept)
+        {
+          if (columns.length() > 0)
+            columns.append(", ");
+          columns.append('`').append(key).append('`');
+        }
+        db.execSQL("INSERT INTO `" + mTableName + "` (" + columns + ") SELECT " + columns
+          + " FROM `" + oldTableName + "`");
+      }
+      db.execSQL("DROP TABLE `" + oldTableName + "`");
     }
 
     /**
@@ -123,6 +418,15 @@ public class CapptainStorage implements Closeable
       return mDBName;
     }
 
+    /**
+     * Get the schema version found when the database was last opened.
+     * @return previous schema version, 0 if the database was created, -1 if not opened yet.
+     */
+    private int getPreviousVersion()
+    {
+      return mPreviousVersion;
+    }
+
     /**
      * Get table name.
      * @return table name.
@@ -140,6 +444,15 @@ public class CapptainStorage implements Closeable
     {
       return mSchema;
     }
+
+    /**
+     * Get SQLite tuning.
+     * @return SQLite tuning.
+     */
+    private CapptainStorageConfiguration getConfiguration()
+    {
+      return mConfiguration;
+    }
   }
 
   /** Listener specification, each callback is called only once per instance */
@@ -160,10 +473,27 @@ public class CapptainStorage implements Closeable
    */
   public CapptainStorage(Context context, String dbName, int version, String tableName,
     ContentValues schema, ErrorListener errorListener)
+  {
+    this(context, dbName, version, tableName, schema, new CapptainStorageConfiguration(),
+      errorListener);
+  }
+
+  /**
+   * Init a database with SQLite tuning.
+   * @param context application context.
+   * @param dbName database (file) name.
+   * @param version schema version.
+   * @param tableName table name.
+   * @param schema specimen value.
+   * @param configuration SQLite tuning.
+   * @param errorListener optional error listener.
+   */
+  public CapptainStorage(Context context, String dbName, int version, String tableName,
+    ContentValues schema, CapptainStorageConfiguration configuration, ErrorListener errorListener)
   {
     /* Prepare SQLite manager */
     mContext = context;
-    mManager = new SQLiteManager(context, dbName, version, tableName, schema);
+    mManager = new SQLiteManager(context, dbName, version, tableName, schema, configuration);
     mErrorListener = errorListener;
   }
 
@@ -175,28 +505,84 @@ public class CapptainStorage implements Closeable
   private SQLiteDatabase getDatabase() throws SQLException
   {
     /* Try opening database */
+    SQLiteDatabase db;
     try
     {
-      return mManager.getWritableDatabase();
+      db = mManager.getWritableDatabase();
     }
     catch (SQLException sqle)
     {
       /* First error, try to delete database (may be corrupted) */
+      closeStatements();
       mContext.deleteDatabase(mManager.getDBName());
+      mCount = null;
 
       /* Retry, let exception thrown if it fails this time */
-      return mManager.getWritableDatabase();
+      db = mManager.getWritableDatabase();
     }
+
+    /* Read the identifiers in use once, in-memory identifiers are allocated above them */
+    if (mMaxId == null)
+      readMaxId(db);
+
+    /* Migrate entries spilled by a previous instance that failed over in memory */
+    if (!mLogRecovered)
+    {
+      recoverLog(db);
+      mLogRecovered = true;
+    }
+    return db;
   }
 
   /**
-   * Switch to in memory management, trigger error listener.
-   * @param operation operation that triggered the error.
-   * @param sqle error that triggered the switch.
+   * Read the highest identifier ever allocated by SQLite, including the ones of deleted rows that
+   * callers may still reference.
+   * @param db SQLite database.
+   * @throws SQLException if an error occurs.
+   */
+  private void readMaxId(SQLiteDatabase db) throws SQLException
+  {
+    String table = mManager.getTableName();
+    long maxId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(id), 0) FROM `" + table + "`",
+      null);
+    try
+    {
+      maxId = Math.max(maxId, DatabaseUtils.longForQuery(db,
+        "SELECT IFNULL(MAX(seq), 0) FROM sqlite_sequence WHERE name = ?", new String[] { table }));
+    }
+    catch (SQLException sqle)
+    {
+      /* No sequence table if no row was ever inserted */
+    }
+    mMaxId = maxId;
+  }
+
+  /**
+   * Record an identifier allocated by SQLite or migrated to SQLite.
+   * @param id identifier.
+   */
+  private void updateMaxId(long id)
+  {
+    if (mMaxId == null || id > mMaxId)
+      mMaxId = id;
+  }
+
+  /**
+   * Get spill log file.
+   * @return spill log file.
+   */
+  private File getLogFile()
+  {
+    return mContext.getDatabasePath(mManager.getDBName() + ".spill");
+  }
+
+  /**
+   * Create an in-memory database.
+   * @return an empty in-memory database.
    */
-  private void switchToInMemory(String operation, SQLException sqle)
+  private static Map<Long, ContentValues> newIMDB()
   {
-    mIMDB = new LinkedHashMap<Long, ContentValues>()
+    return new LinkedHashMap<Long, ContentValues>()
     {
       private static final long serialVersionUID = 1L;
 
@@ -206,8 +592,184 @@ public class CapptainStorage implements Closeable
         return size() > CAPACITY;
       };
     };
-    if (mErrorListener != null)
+  }
+
+  /**
+   * Switch to in memory management, trigger error listener.
+   * @param operation operation that triggered the error.
+   * @param sqle error that triggered the switch.
+   */
+  private synchronized void switchToInMemory(String operation, SQLException sqle)
+  {
+    /* Already failed over, e.g. a scanner opened before the switch failing */
+    if (mIMDB != null)
+      return;
+
+    /* Switch, allocating identifiers above the SQLite ones */
+    closeStatements();
+    mCount = null;
+    mLastFailure = SystemClock.elapsedRealtime();
+    mIMDB = newIMDB();
+    mIMDBUpdated.clear();
+    mIMDBDeleted.clear();
+    mIMDBCleared = false;
+    mIMDBAutoInc = Math.max(mIMDBAutoInc, mMaxId == null ? IMDB_ID_BASE : mMaxId + 1);
+
+    /* Open spill log, resuming the changes spilled by a previous instance if any */
+    try
+    {
+      mLog = new CapptainStorageLog(getLogFile());
+      mIMDBAutoInc = Math.max(mIMDBAutoInc, mLog.replay(mIMDB, mIMDBUpdated, mIMDBDeleted) + 1);
+      mIMDBCleared = mLog.isCleared();
+    }
+    catch (IOException e)
+    {
+      /* Keep going in memory only */
+      mLog = null;
+    }
+    mLogRecovered = true;
+    if (mErrorListener != null && !mErrorNotified)
+    {
+      mErrorNotified = true;
       mErrorListener.onError(operation, sqle);
+    }
+  }
+
+  /**
+   * Append an in-memory operation to the spill log, compacting it if needed.
+   * @param op spill log operation.
+   * @param id entry identifier.
+   * @param values values for put and update, null otherwise.
+   */
+  private void log(byte op, long id, ContentValues values)
+  {
+    if (mLog != null)
+      try
+      {
+        mLog.append(op, id, values);
+        if (mLog.getRecordCount() > LOG_COMPACTION_THRESHOLD)
+          mLog.compact(mIMDB.values(), mIMDBUpdated, mIMDBDeleted, mIMDBCleared);
+      }
+      catch (IOException e)
+      {
+        /* Keep going in memory only */
+        mLog.delete();
+        mLog = null;
+      }
+  }
+
+  /**
+   * If failed over in memory and enough time elapsed since the last failure, try SQLite again and
+   * merge the in-memory changes back to SQLite if it works.
+   */
+  private synchronized void retrySQLite()
+  {
+    /* Nothing to do if using SQLite or if the last failure is too recent */
+    if (mIMDB == null || SystemClock.elapsedRealtime() - mLastFailure < SQLITE_RETRY_DELAY)
+      return;
+    mLastFailure = SystemClock.elapsedRealtime();
+    try
+    {
+      migrate(getDatabase(), mIMDB.values(), mIMDBUpdated, mIMDBDeleted, mIMDBCleared);
+      mIMDB = null;
+      mIMDBUpdated.clear();
+      mIMDBDeleted.clear();
+      mIMDBCleared = false;
+      if (mLog != null)
+      {
+        mLog.delete();
+        mLog = null;
+      }
+    }
+    catch (SQLException sqle)
+    {
+      /* Still failing, stay in memory */
+    }
+  }
+
+  /**
+   * Merge the changes spilled in the log file by a previous instance into SQLite.
+   * @param db SQLite database.
+   * @throws SQLException if an error occurs.
+   */
+  private void recoverLog(SQLiteDatabase db) throws SQLException
+  {
+    File file = getLogFile();
+    if (CapptainStorageLog.exists(file))
+    {
+      /* Read log, an unreadable log cannot be recovered */
+      Map<Long, ContentValues> entries = newIMDB();
+      Map<Long, ContentValues> updated = new HashMap<Long, ContentValues>();
+      Set<Long> deleted = new HashSet<Long>();
+      boolean cleared = false;
+      try
+      {
+        CapptainStorageLog log = new CapptainStorageLog(file);
+        log.replay(entries, updated, deleted);
+        cleared = log.isCleared();
+        log.close();
+      }
+      catch (IOException e)
+      {
+        entries.clear();
+        updated.clear();
+        deleted.clear();
+      }
+
+      /* Merge then delete log */
+      migrate(db, entries.values(), updated, deleted, cleared);
+      file.delete();
+    }
+  }
+
+  /**
+   * Merge the changes made while failed over into SQLite, keeping the rows that were in SQLite
+   * before the failure. Deletions are applied first, then updates of SQLite rows, then in-memory
+   * entries are written with their identifiers, which were allocated above the SQLite ones.
+   * Merging the same changes again has no further effect.
+   * @param db SQLite database.
+   * @param entries entries put while failed over, they contain their identifier.
+   * @param updated updates made while failed over to entries that are not in the entries.
+   * @param deleted identifiers deleted while failed over that are not in the entries.
+   * @param cleared true if the storage was cleared while failed over, before the other changes.
+   * @throws SQLException if an error occurs.
+   */
+  private void migrate(SQLiteDatabase db, Collection<ContentValues> entries,
+    Map<Long, ContentValues> updated, Collection<Long> deleted, boolean cleared)
+    throws SQLException
+  {
+    String table = mManager.getTableName();
+    mCount = null;
+    db.beginTransaction();
+    try
+    {
+      if (cleared)
+        db.delete(table, null, null);
+      else
+        for (Long id : deleted)
+          db.delete(table, "id = ?", toArgs(id));
+      for (Entry<Long, ContentValues> update : updated.entrySet())
+        db.update(table, compress(update.getValue()), "id = ?", toArgs(update.getKey()));
+      for (ContentValues values : entries)
+      {
+        db.replaceOrThrow(table, null, compress(values));
+        updateMaxId(values.getAsLong("id"));
+      }
+
+      /* Purge oldest entries if capacity reached */
+      purge(db);
+      db.setTransactionSuccessful();
+    }
+    catch (SQLException sqle)
+    {
+      /* Rolled back, count unknown */
+      mCount = null;
+      throw sqle;
+    }
+    finally
+    {
+      db.endTransaction();
+    }
   }
 
   /**
@@ -215,24 +777,24 @@ public class CapptainStorage implements Closeable
    * @param values object describing the values to store.
    * @return database identifier.
    */
-  public Long put(ContentValues values)
+  public synchronized Long put(ContentValues values)
   {
+    /* Try SQLite again if failed over */
+    retrySQLite();
+
     /* Try SQLite */
     if (mIMDB == null)
       try
       {
         /* Insert data */
-        long id = getDatabase().insertOrThrow(mManager.getTableName(), null, values);
+        SQLiteDatabase db = getDatabase();
+        long count = getCount(db);
+        long id = db.insertOrThrow(mManager.getTableName(), null, compress(values));
+        mCount = count + 1;
+        updateMaxId(id);
 
         /* Purge oldest entry if capacity reached */
-        Cursor cursor = getCursor();
-        int count = cursor.getCount();
-        if (count > CAPACITY)
-        {
-          cursor.moveToNext();
-          delete(cursor.getLong(0));
-        }
-        cursor.close();
+        purge(db);
 
         /* Return id */
         return id;
@@ -245,27 +807,190 @@ public class CapptainStorage implements Closeable
     /* If failed over in-memory */
     values.put("id", mIMDBAutoInc);
     mIMDB.put(mIMDBAutoInc, values);
+    log(CapptainStorageLog.PUT, mIMDBAutoInc, values);
     return mIMDBAutoInc++;
   }
 
   /**
-   * Update an entry.
-   * @param id existing entry identifier.
-   * @param values values to update.
-   * @return true if update was successful, false otherwise.
+   * Store several entries at once. With SQLite, all the rows are inserted in a single transaction
+   * and capacity is enforced only once at the end.
+   * @param valuesList objects describing the values to store, in insertion order.
+   * @return database identifiers, in the same order as the values.
    */
-  public boolean update(long id, ContentValues values)
+  public synchronized List<Long> putAll(Collection<ContentValues> valuesList)
   {
+    List<Long> ids = new ArrayList<Long>(valuesList.size());
+
+    /* Try SQLite again if failed over */
+    retrySQLite();
+
     /* Try SQLite */
     if (mIMDB == null)
       try
       {
-        /* Update data */
-        int updated = getDatabase().update(mManager.getTableName(), values, "id = " + id, null);
+        /* Insert all data in one transaction */
+        SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try
+        {
+          long count = getCount(db);
+          for (ContentValues values : valuesList)
+          {
+            long id = db.insertOrThrow(mManager.getTableName(), null, compress(values));
+            ids.add(id);
+            mCount = ++count;
+            updateMaxId(id);
+          }
 
-        /* Return success */
-        return updated > 0;
-      }
+          /* Purge oldest entries if capacity reached */
+          purge(db);
+          db.setTransactionSuccessful();
+        }
+        finally
+        {
+          db.endTransaction();
+        }
+
+        /* Return ids */
+        return ids;
+      }
+      catch (SQLException sqle)
+      {
+        /* The transaction was rolled back, every row goes in memory */
+        ids.clear();
+        switchToInMemory("putAll", sqle);
+      }
+
+    /* If failed over in-memory */
+    for (ContentValues values : valuesList)
+    {
+      values.put("id", mIMDBAutoInc);
+      mIMDB.put(mIMDBAutoInc, values);
+      log(CapptainStorageLog.PUT, mIMDBAutoInc, values);
+      ids.add(mIMDBAutoInc++);
+    }
+    return ids;
+  }
+
+  /**
+   * Start a batch of insertions. Nothing is written before {@link Batch#commit()} is called.
+   * @return a new batch.
+   */
+  public Batch beginBatch()
+  {
+    return new Batch();
+  }
+
+  /**
+   * Batch specification: values are buffered then written with {@link CapptainStorage#putAll}.
+   */
+  public class Batch
+  {
+    /** Buffered values */
+    private final List<ContentValues> mValues = new ArrayList<ContentValues>();
+
+    /**
+     * Add an entry to the batch.
+     * @param values object describing the values to store.
+     * @return this batch.
+     */
+    public Batch put(ContentValues values)
+    {
+      mValues.add(values);
+      return this;
+    }
+
+    /**
+     * Write all buffered entries, the batch is empty afterwards and can be reused.
+     * @return database identifiers, in the same order as the values were added.
+     */
+    public List<Long> commit()
+    {
+      List<Long> ids = putAll(mValues);
+      mValues.clear();
+      return ids;
+    }
+  }
+
+  /**
+   * Compress the configured text columns before writing them to SQLite.
+   * @param values values to write.
+   * @return values to store, the same object if there is nothing to compress.
+   */
+  private ContentValues compress(ContentValues values)
+  {
+    ContentValues stored = values;
+    for (String column : mManager.getConfiguration().getCompressedColumns())
+    {
+      Object value = values.get(column);
+      if (value instanceof String)
+      {
+        if (stored == values)
+          stored = new ContentValues(values);
+        stored.put(column, CapptainStorageCompression.compress((String) value));
+      }
+    }
+    return stored;
+  }
+
+  /**
+   * Get the SQLite row count, counting rows only the first time.
+   * @param db SQLite database.
+   * @return row count.
+   * @throws SQLException if an error occurs.
+   */
+  private long getCount(SQLiteDatabase db) throws SQLException
+  {
+    if (mCount == null)
+      mCount = DatabaseUtils.queryNumEntries(db, mManager.getTableName());
+    return mCount;
+  }
+
+  /**
+   * Delete the oldest rows exceeding capacity with a single statement. Relies on the cached row
+   * count so it does not scan the table.
+   * @param db SQLite database.
+   * @throws SQLException if an error occurs.
+   */
+  private void purge(SQLiteDatabase db) throws SQLException
+  {
+    long excess = getCount(db) - CAPACITY;
+    if (excess > 0)
+    {
+      String table = "`" + mManager.getTableName() + "`";
+      db.execSQL("DELETE FROM " + table + " WHERE id IN (SELECT id FROM " + table
+        + " ORDER BY id LIMIT " + excess + ")");
+      mCount = (long) CAPACITY;
+    }
+  }
+
+  /**
+   * Update an entry.
+   * @param id existing entry identifier.
+   * @param values values to update.
+   * @return true if update was successful, false otherwise.
+   */
+  public synchronized boolean update(long id, ContentValues values)
+  {
+    /* Try SQLite again if failed over */
+    retrySQLite();
+
+    /* Try SQLite */
+    if (mIMDB == null)
+      try
+      {
+        /* Update data */
+        SQLiteDatabase db = getDatabase();
+        ContentValues stored = compress(values);
+        int updated;
+        if (stored.size() > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+          updated = executeUpdate(db, id, stored);
+        else
+          updated = db.update(mManager.getTableName(), stored, "id = ?", toArgs(id));
+
+        /* Return success */
+        return updated > 0;
+      }
       catch (SQLException sqle)
       {
         switchToInMemory("update", sqle);
@@ -273,9 +998,21 @@ public class CapptainStorage implements Closeable
 
     /* If failed over in-memory */
     ContentValues existing = mIMDB.get(id);
-    if (existing == null)
-      return false;
-    existing.putAll(values);
+    if (existing != null)
+      existing.putAll(values);
+
+    /* Otherwise the entry may be in SQLite: update it when merging back, if it can exist */
+    else
+    {
+      if (mIMDBCleared || mIMDBDeleted.contains(id) || mMaxId != null && id > mMaxId)
+        return false;
+      ContentValues update = mIMDBUpdated.get(id);
+      if (update == null)
+        mIMDBUpdated.put(id, new ContentValues(values));
+      else
+        update.putAll(values);
+    }
+    log(CapptainStorageLog.UPDATE, id, values);
     return true;
   }
 
@@ -283,22 +1020,118 @@ public class CapptainStorage implements Closeable
    * Delete an entry from the database.
    * @param id database identifier.
    */
-  public void delete(long id)
+  public synchronized void delete(long id)
   {
+    /* Try SQLite again if failed over */
+    retrySQLite();
+
     /* Try SQLite */
     if (mIMDB == null)
       try
       {
-        getDatabase().delete(mManager.getTableName(), "id = " + id, null);
+        SQLiteDatabase db = getDatabase();
+        int deleted;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+          deleted = executeDelete(db, id);
+        else
+          deleted = db.delete(mManager.getTableName(), "id = ?", toArgs(id));
+        if (deleted > 0 && mCount != null)
+          mCount--;
+        return;
       }
       catch (SQLException sqle)
       {
         switchToInMemory("delete", sqle);
       }
 
-    /* If failed over in-memory */
-    else
-      mIMDB.remove(id);
+    /* If failed over in-memory, remember deletions of entries that may be in SQLite */
+    mIMDBUpdated.remove(id);
+    if (mIMDB.remove(id) == null)
+      mIMDBDeleted.add(id);
+    log(CapptainStorageLog.DELETE, id, null);
+  }
+
+  /**
+   * Update a row with a compiled statement, compiled once per updated column list.
+   * @param db SQLite database.
+   * @param id existing entry identifier.
+   * @param values values to update, not empty.
+   * @return number of updated rows.
+   * @throws SQLException if an error occurs.
+   */
+  @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+  private int executeUpdate(SQLiteDatabase db, long id, ContentValues values) throws SQLException
+  {
+    /*
+     * The updated column set is the cache key: the lookup hashes the cached hash codes of the
+     * column names without building a sorted copy or a string. The caller can change its values
+     * afterwards so the set is copied when stored as a key.
+     */
+    UpdateStatement update = mUpdateStatements.get(values.keySet());
+    if (update == null)
+    {
+      Set<String> columns = new HashSet<String>(values.keySet());
+      String[] order = columns.toArray(new String[columns.size()]);
+      StringBuilder sql = new StringBuilder("UPDATE `");
+      sql.append(mManager.getTableName()).append("` SET ");
+      for (int i = 0; i < order.length; i++)
+      {
+        if (i > 0)
+          sql.append(", ");
+        sql.append('`').append(order[i]).append("` = ?");
+      }
+      sql.append(" WHERE id = ?");
+      update = new UpdateStatement(db.compileStatement(sql.toString()), order);
+      mUpdateStatements.put(columns, update);
+    }
+
+    /* Bind and execute */
+    SQLiteStatement statement = update.mStatement;
+    String[] columns = update.mColumns;
+    for (int i = 0; i < columns.length; i++)
+      DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+    statement.bindLong(columns.length + 1, id);
+    return statement.executeUpdateDelete();
+  }
+
+  /**
+   * Delete a row with a compiled statement.
+   * @param db SQLite database.
+   * @param id database identifier.
+   * @return number of deleted rows.
+   * @throws SQLException if an error occurs.
+   */
+  @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+  private int executeDelete(SQLiteDatabase db, long id) throws SQLException
+  {
+    if (mDeleteStatement == null)
+      mDeleteStatement = db.compileStatement("DELETE FROM `" + mManager.getTableName()
+        + "` WHERE id = ?");
+    mDeleteStatement.bindLong(1, id);
+    return mDeleteStatement.executeUpdateDelete();
+  }
+
+  /**
+   * Build selection arguments for an identifier so that SQLite can reuse its compiled query.
+   * @param id database identifier.
+   * @return selection arguments.
+   */
+  private static String[] toArgs(long id)
+  {
+    return new String[] { String.valueOf(id) };
+  }
+
+  /** Close compiled statements, they are compiled again on next use. */
+  private void closeStatements()
+  {
+    if (mDeleteStatement != null)
+    {
+      mDeleteStatement.close();
+      mDeleteStatement = null;
+    }
+    for (UpdateStatement update : mUpdateStatements.values())
+      update.mStatement.close();
+    mUpdateStatements.clear();
   }
 
   /**
@@ -306,20 +1139,38 @@ public class CapptainStorage implements Closeable
    * @param id identifier.
    * @return entry or null if not found.
    */
-  public ContentValues get(long id)
+  public synchronized ContentValues get(long id)
   {
+    /* Try SQLite again if failed over */
+    retrySQLite();
+
     /* Try SQLite */
     if (mIMDB == null)
       try
       {
-        Cursor cursor = getDatabase().query(mManager.getTableName(), null, "id = " + id, null,
+        Cursor cursor = getDatabase().query(mManager.getTableName(), null, "id = ?", toArgs(id),
           null, null, null);
-        ContentValues values;
-        if (cursor.moveToFirst())
-          values = buildValues(cursor);
-        else
-          values = null;
-        cursor.close();
+        ContentValues values = null;
+        boolean unreadable = false;
+        try
+        {
+          if (cursor.moveToFirst())
+            values = buildValues(cursor, getDecoders(cursor));
+        }
+        catch (IllegalArgumentException e)
+        {
+          /* Corrupted compressed value */
+          e.printStackTrace();
+          unreadable = true;
+        }
+        finally
+        {
+          cursor.close();
+        }
+
+        /* The row cannot be read anymore, delete it */
+        if (unreadable)
+          delete(id);
         return values;
       }
       catch (SQLException sqle)
@@ -351,36 +1202,275 @@ public class CapptainStorage implements Closeable
    */
   public Scanner getScanner()
   {
-    return new Scanner();
+    return new Scanner(null, null, null, null, null);
+  }
+
+  /**
+   * Get a scanner to iterate over the values having a column equal to the specified value. The
+   * lookup uses the column index if declared with {@link CapptainStorageConfiguration#addIndex}.
+   * @param column column name.
+   * @param value value to match, null to match missing values.
+   * @return a scanner to iterate over matching values, in identifier order.
+   */
+  public Scanner getScanner(String column, Object value)
+  {
+    String selection;
+    String[] selectionArgs;
+    if (value == null)
+    {
+      selection = "`" + column + "` IS NULL";
+      selectionArgs = null;
+    }
+    else
+    {
+      selection = "`" + column + "` = ?";
+      selectionArgs = new String[] { String.valueOf(value) };
+    }
+    return new Scanner(null, selection, selectionArgs, "id", null);
+  }
+
+  /**
+   * Get the first entry (with the lowest identifier) having a column equal to the specified value.
+   * The lookup uses the column index if declared with {@link CapptainStorageConfiguration#addIndex}.
+   * @param column column name.
+   * @param value value to match, null to match missing values.
+   * @return entry or null if not found.
+   */
+  public ContentValues findFirst(String column, Object value)
+  {
+    Scanner scanner = getScanner(column, value);
+    try
+    {
+      Iterator<ContentValues> iterator = scanner.iterator();
+      return iterator.hasNext() ? iterator.next() : null;
+    }
+    finally
+    {
+      scanner.close();
+    }
+  }
+
+  /**
+   * Check if an in-memory entry matches a column value.
+   * @param values entry.
+   * @param column column name.
+   * @param value value to match, null to match missing values.
+   * @return true if matching.
+   */
+  private static boolean matches(ContentValues values, String column, Object value)
+  {
+    Object actual = values.get(column);
+    if (actual == null || value == null)
+      return actual == value;
+
+    /* Compare as SQLite would do on bound arguments, e.g. Integer 1 matches Long 1 */
+    return String.valueOf(actual).equals(String.valueOf(value));
+  }
+
+  /**
+   * Get a scanner to iterate over a subset of values. When failed over in memory, entries are
+   * returned in identifier order whatever the ORDER BY clause, the projection is applied and so
+   * are the limit and selections made of <tt>column = ?</tt>, <tt>column IS NULL</tt> and
+   * <tt>column IS NOT NULL</tt> terms joined by AND (column names can be quoted with backticks).
+   * Other selections and limits cannot be evaluated in memory: no entry is returned for them.
+   * @param columns columns to read, null to read all of them.
+   * @param selection optional SQL WHERE clause (excluding the WHERE keyword), can use ? arguments.
+   * @param selectionArgs arguments for the ? in selection.
+   * @param orderBy optional SQL ORDER BY clause (excluding the ORDER BY keywords).
+   * @param limit optional SQL LIMIT clause (excluding the LIMIT keyword).
+   * @return a scanner to iterate over the selected values.
+   */
+  public Scanner getScanner(String[] columns, String selection, String[] selectionArgs,
+    String orderBy, String limit)
+  {
+    return new Scanner(columns, selection, selectionArgs, orderBy, limit);
+  }
+
+  /** Selection term that can be evaluated in memory */
+  private static final Pattern SELECTION_TERM = Pattern.compile(
+    "`?(\\w+)`?\\s*(?:(=)\\s*\\?|IS\\s+(NOT\\s+)?NULL)", Pattern.CASE_INSENSITIVE);
+
+  /** Separator of selection terms */
+  private static final Pattern SELECTION_AND = Pattern.compile("\\s+AND\\s+",
+    Pattern.CASE_INSENSITIVE);
+
+  /** Limit clause that can be evaluated in memory: count, offset and count, or count and offset */
+  private static final Pattern LIMIT = Pattern.compile(
+    "(\\d{1,9})(?:\\s*,\\s*(\\d{1,9})|\\s+OFFSET\\s+(\\d{1,9}))?", Pattern.CASE_INSENSITIVE);
+
+  /** Decode column as a string */
+  private static final int DECODE_STRING = 0;
+
+  /** Decode column as a long */
+  private static final int DECODE_LONG = 1;
+
+  /** Decode column as an integer */
+  private static final int DECODE_INT = 2;
+
+  /** Decode column as a short */
+  private static final int DECODE_SHORT = 3;
+
+  /** Decode column as a double */
+  private static final int DECODE_DOUBLE = 4;
+
+  /** Decode column as a float */
+  private static final int DECODE_FLOAT = 5;
+
+  /** Decode column as a blob */
+  private static final int DECODE_BLOB = 6;
+
+  /** Decode column as compressed text */
+  private static final int DECODE_COMPRESSED = 7;
+
+  /**
+   * Resolve the decoder of each cursor column from the schema.
+   * @param cursor cursor.
+   * @return decoder for each column index.
+   */
+  private int[] getDecoders(Cursor cursor)
+  {
+    int[] decoders = new int[cursor.getColumnCount()];
+    for (int i = 0; i < decoders.length; i++)
+    {
+      String key = cursor.getColumnName(i);
+      Object specimen = mManager.getSchema().get(key);
+      if (key.equals("id"))
+        decoders[i] = DECODE_LONG;
+      else if (mManager.getConfiguration().getCompressedColumns().contains(key))
+        decoders[i] = DECODE_COMPRESSED;
+      else if (specimen instanceof byte[])
+        decoders[i] = DECODE_BLOB;
+      else if (specimen instanceof Double)
+        decoders[i] = DECODE_DOUBLE;
+      else if (specimen instanceof Float)
+        decoders[i] = DECODE_FLOAT;
+      else if (specimen instanceof Integer)
+        decoders[i] = DECODE_INT;
+      else if (specimen instanceof Long)
+        decoders[i] = DECODE_LONG;
+      else if (specimen instanceof Short)
+        decoders[i] = DECODE_SHORT;
+      else
+        decoders[i] = DECODE_STRING;
+    }
+    return decoders;
+  }
+
+  /**
+   * Decode a column at the current cursor position.
+   * @param cursor cursor.
+   * @param decoders decoders as returned by {@link #getDecoders(Cursor)}.
+   * @param i column index.
+   * @return decoded value, null if SQL NULL.
+   */
+  private static Object decode(Cursor cursor, int[] decoders, int i)
+  {
+    if (cursor.isNull(i))
+      return null;
+    switch (decoders[i])
+    {
+      case DECODE_LONG:
+        return cursor.getLong(i);
+
+      case DECODE_INT:
+        return cursor.getInt(i);
+
+      case DECODE_SHORT:
+        return cursor.getShort(i);
+
+      case DECODE_DOUBLE:
+        return cursor.getDouble(i);
+
+      case DECODE_FLOAT:
+        return cursor.getFloat(i);
+
+      case DECODE_BLOB:
+        return cursor.getBlob(i);
+
+      case DECODE_COMPRESSED:
+        return decodeCompressed(cursor, i);
+
+      default:
+        return cursor.getString(i);
+    }
+  }
+
+  /**
+   * Decode a compressed text column at the current cursor position. Rows written before
+   * compression was enabled hold TEXT: they are read as strings, reading them as blobs would
+   * include the NUL terminator.
+   * @param cursor cursor.
+   * @param i column index, not NULL.
+   * @return text value.
+   */
+  private static String decodeCompressed(Cursor cursor, int i)
+  {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+    {
+      if (!isBlob(cursor, i))
+        return cursor.getString(i);
+      return CapptainStorageCompression.decode(cursor.getBlob(i));
+    }
+
+    /* Column types cannot be read before Honeycomb, the marker tells compressed values apart */
+    byte[] raw = cursor.getBlob(i);
+    if (CapptainStorageCompression.isCompressed(raw))
+      return CapptainStorageCompression.decode(raw);
+    return cursor.getString(i);
+  }
+
+  /**
+   * Check the storage class of a column at the current cursor position.
+   * @param cursor cursor.
+   * @param i column index.
+   * @return true if the value is a blob.
+   */
+  @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+  private static boolean isBlob(Cursor cursor, int i)
+  {
+    return cursor.getType(i) == Cursor.FIELD_TYPE_BLOB;
   }
 
   /** Convert a cursor to a content values */
-  private ContentValues buildValues(Cursor cursor)
+  private ContentValues buildValues(Cursor cursor, int[] decoders)
   {
     ContentValues values = new ContentValues();
-    for (int i = 0; i < cursor.getColumnCount(); i++)
+    for (int i = 0; i < decoders.length; i++)
     {
       if (cursor.isNull(i))
         continue;
       String key = cursor.getColumnName(i);
-      if (key.equals("id"))
-        values.put(key, cursor.getLong(0));
-      else
+      switch (decoders[i])
       {
-        Object specimen = mManager.getSchema().get(key);
-        if (specimen instanceof byte[])
-          values.put(key, cursor.getBlob(i));
-        else if (specimen instanceof Double)
-          values.put(key, cursor.getDouble(i));
-        else if (specimen instanceof Float)
-          values.put(key, cursor.getFloat(i));
-        else if (specimen instanceof Integer)
-          values.put(key, cursor.getInt(i));
-        else if (specimen instanceof Long)
+        case DECODE_LONG:
           values.put(key, cursor.getLong(i));
-        else if (specimen instanceof Short)
+          break;
+
+        case DECODE_INT:
+          values.put(key, cursor.getInt(i));
+          break;
+
+        case DECODE_SHORT:
           values.put(key, cursor.getShort(i));
-        else
+          break;
+
+        case DECODE_DOUBLE:
+          values.put(key, cursor.getDouble(i));
+          break;
+
+        case DECODE_FLOAT:
+          values.put(key, cursor.getFloat(i));
+          break;
+
+        case DECODE_BLOB:
+          values.put(key, cursor.getBlob(i));
+          break;
+
+        case DECODE_COMPRESSED:
+          values.put(key, decodeCompressed(cursor, i));
+          break;
+
+        default:
           values.put(key, cursor.getString(i));
       }
     }
@@ -388,13 +1478,113 @@ public class CapptainStorage implements Closeable
   }
 
   /**
-   * Get a cursor on all database rows.
-   * @return cursor on all database rows.
-   * @throws SQLException if an error occurs.
+   * Row view, reused by {@link Scanner#rows()} for every row: it must not be kept after moving to
+   * the next row. Values are decoded only when accessed.
    */
-  private Cursor getCursor() throws SQLException
+  public class Row
   {
-    return getDatabase().query(mManager.getTableName(), null, null, null, null, null, null);
+    /** Scanner iterating on this row */
+    private Scanner mScanner;
+
+    /** Cursor positioned on the current row, null when failed over in memory */
+    private Cursor mCursor;
+
+    /** Decoders of the cursor columns */
+    private int[] mDecoders;
+
+    /** Indexes of the cursor columns by name */
+    private Map<String, Integer> mColumnIndexes;
+
+    /** Current values when failed over in memory */
+    private ContentValues mValues;
+
+    /**
+     * Get a value.
+     * @param key column name.
+     * @return value, null if missing, not part of the projection or unreadable: an unreadable row
+     *         is deleted when the scanner is closed.
+     */
+    public Object get(String key)
+    {
+      if (mCursor == null)
+        return mValues.get(key);
+      Integer i = mColumnIndexes.get(key);
+      if (i == null)
+        return null;
+      try
+      {
+        return decode(mCursor, mDecoders, i);
+      }
+      catch (IllegalArgumentException e)
+      {
+        mScanner.onUnreadable(e);
+        return null;
+      }
+    }
+
+    /**
+     * Get a value as a string.
+     * @param key column name.
+     * @return value, null if missing or not part of the projection.
+     */
+    public String getAsString(String key)
+    {
+      Object value = get(key);
+      return value == null ? null : value.toString();
+    }
+
+    /**
+     * Get a value as a long.
+     * @param key column name.
+     * @return value, null if missing, not part of the projection or not a number.
+     */
+    public Long getAsLong(String key)
+    {
+      Object value = get(key);
+      return value instanceof Number ? ((Number) value).longValue() : null;
+    }
+
+    /**
+     * Get a value as an integer.
+     * @param key column name.
+     * @return value, null if missing, not part of the projection or not a number.
+     */
+    public Integer getAsInteger(String key)
+    {
+      Object value = get(key);
+      return value instanceof Number ? ((Number) value).intValue() : null;
+    }
+
+    /**
+     * Get a value as a byte array.
+     * @param key column name.
+     * @return value, null if missing, not part of the projection or not a blob.
+     */
+    public byte[] getAsByteArray(String key)
+    {
+      Object value = get(key);
+      return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    /**
+     * Copy the row.
+     * @return a new content values object containing all the columns of the projection, null if
+     *         the row is unreadable: it is deleted when the scanner is closed.
+     */
+    public ContentValues toValues()
+    {
+      if (mCursor == null)
+        return new ContentValues(mValues);
+      try
+      {
+        return buildValues(mCursor, mDecoders);
+      }
+      catch (IllegalArgumentException e)
+      {
+        mScanner.onUnreadable(e);
+        return null;
+      }
+    }
   }
 
   /**
@@ -402,9 +1592,144 @@ public class CapptainStorage implements Closeable
    */
   public class Scanner implements Iterable<ContentValues>, Closeable
   {
+    /** Projection, null for all columns */
+    private final String[] mColumns;
+
+    /** Optional WHERE clause */
+    private final String mSelection;
+
+    /** Arguments for WHERE clause */
+    private final String[] mSelectionArgs;
+
+    /** Optional ORDER BY clause */
+    private final String mOrderBy;
+
+    /** Optional LIMIT clause */
+    private final String mLimit;
+
     /** SQLite cursor */
     private Cursor cursor;
 
+    /** Cursor column decoders */
+    private int[] mDecoders;
+
+    /** Cursor column indexes by name */
+    private Map<String, Integer> mColumnIndexes;
+
+    /** Identifiers of the rows that could not be decoded, deleted on close */
+    private final Set<Long> mUnreadable = new HashSet<Long>();
+
+    /**
+     * Init scanner.
+     * @param columns columns to read, null to read all of them.
+     * @param selection optional WHERE clause.
+     * @param selectionArgs arguments for WHERE clause.
+     * @param orderBy optional ORDER BY clause.
+     * @param limit optional LIMIT clause.
+     */
+    private Scanner(String[] columns, String selection, String[] selectionArgs, String orderBy,
+      String limit)
+    {
+      retrySQLite();
+      mColumns = columns;
+      mSelection = selection;
+      mSelectionArgs = selectionArgs;
+      mOrderBy = orderBy;
+      mLimit = limit;
+    }
+
+    /**
+     * Get in-memory entries to iterate on, see
+     * {@link CapptainStorage#getScanner(String[], String, String[], String, String)}.
+     * @return selected in-memory entries, projected.
+     */
+    private Collection<ContentValues> getIMDBValues()
+    {
+      /* Nothing to evaluate */
+      if (mColumns == null && mSelection == null && mLimit == null)
+        return mIMDB.values();
+      List<ContentValues> selected = new ArrayList<ContentValues>();
+
+      /* Parse limit */
+      int offset = 0;
+      int count = Integer.MAX_VALUE;
+      if (mLimit != null)
+      {
+        Matcher limit = LIMIT.matcher(mLimit.trim());
+        if (!limit.matches())
+          return selected;
+        count = Integer.parseInt(limit.group(1));
+        if (limit.group(2) != null)
+        {
+          offset = count;
+          count = Integer.parseInt(limit.group(2));
+        }
+        else if (limit.group(3) != null)
+          offset = Integer.parseInt(limit.group(3));
+      }
+
+      /* Parse selection: column and argument per term, null argument for IS [NOT] NULL */
+      String[] terms = mSelection == null ? new String[0] : SELECTION_AND.split(mSelection.trim());
+      String[] columns = new String[terms.length];
+      boolean[] isNull = new boolean[terms.length];
+      String[] args = new String[terms.length];
+      int argIndex = 0;
+      for (int i = 0; i < terms.length; i++)
+      {
+        Matcher term = SELECTION_TERM.matcher(terms[i]);
+        if (!term.matches())
+          return selected;
+        columns[i] = term.group(1);
+        if (term.group(2) != null)
+        {
+          if (mSelectionArgs == null || argIndex >= mSelectionArgs.length
+            || mSelectionArgs[argIndex] == null)
+            return selected;
+          args[i] = mSelectionArgs[argIndex++];
+        }
+        else
+          isNull[i] = term.group(3) == null;
+      }
+
+      /* Select, skip offset, limit and project */
+      for (ContentValues values : mIMDB.values())
+      {
+        if (selected.size() >= count)
+          break;
+        boolean match = true;
+        for (int i = 0; i < terms.length && match; i++)
+          if (args[i] != null)
+            match = matches(values, columns[i], args[i]);
+          else
+            match = (values.get(columns[i]) == null) == isNull[i];
+        if (!match)
+          continue;
+        if (offset > 0)
+          offset--;
+        else
+          selected.add(project(values));
+      }
+      return selected;
+    }
+
+    /**
+     * Apply the projection to an in-memory entry.
+     * @param values entry.
+     * @return the entry itself if there is no projection, otherwise a copy with only the columns
+     *         of the projection.
+     */
+    private ContentValues project(ContentValues values)
+    {
+      if (mColumns == null)
+        return values;
+      ContentValues projected = new ContentValues(values);
+      List<String> columns = Arrays.asList(mColumns);
+      for (String key : values.keySet())
+        if (!columns.contains(key))
+          projected.remove(key);
+      return projected;
+    }
+
     @Override
     public void close()
     {
@@ -418,6 +1743,47 @@ public class CapptainStorage implements Closeable
         {
           switchToInMemory("scan", sqle);
         }
+
+      /* Delete the rows that could not be read */
+      for (Long id : mUnreadable)
+        delete(id);
+      mUnreadable.clear();
+    }
+
+    /**
+     * Report that the current row could not be decoded (corrupted compressed value), it is deleted
+     * on close if its identifier is part of the projection.
+     * @param e decoding error.
+     */
+    private void onUnreadable(IllegalArgumentException e)
+    {
+      e.printStackTrace();
+      Integer idIndex = mColumnIndexes.get("id");
+      if (idIndex != null)
+        mUnreadable.add(cursor.getLong(idIndex));
+    }
+
+    /**
+     * Open cursor, or reset previous one.
+     * @throws SQLException if an error occurs.
+     */
+    private void openCursor() throws SQLException
+    {
+      synchronized (CapptainStorage.this)
+      {
+        if (cursor == null)
+        {
+          cursor = getDatabase().query(mManager.getTableName(), mColumns, mSelection,
+            mSelectionArgs, null, null, mOrderBy, mLimit);
+          mDecoders = getDecoders(cursor);
+          String[] names = cursor.getColumnNames();
+          mColumnIndexes = new HashMap<String, Integer>(names.length * 2);
+          for (int i = 0; i < names.length; i++)
+            mColumnIndexes.put(names[i], i);
+        }
+        else
+          cursor.requery();
+      }
     }
 
     @Override
@@ -427,50 +1793,85 @@ public class CapptainStorage implements Closeable
       if (mIMDB == null)
         try
         {
-          /* Open cursor, or reset previous one */
-          if (cursor == null)
-            cursor = getCursor();
-          else
-            cursor.requery();
-
-          /* Wrap cursor as iterator */
-          return new Iterator<ContentValues>()
+          openCursor();
+          return new CursorIterator<ContentValues>()
           {
-            /** If null, hasNext is not known yet */
-            Boolean hasNext;
-
             @Override
-            public boolean hasNext()
+            ContentValues current()
             {
-              if (hasNext == null)
-                try
-                {
-                  hasNext = cursor.moveToNext();
-                }
-                catch (SQLException sqle)
-                {
-                  /* Consider no next on error */
-                  hasNext = false;
+              try
+              {
+                return buildValues(cursor, mDecoders);
+              }
+              catch (IllegalArgumentException e)
+              {
+                onUnreadable(e);
+                return null;
+              }
+            }
+          };
+        }
+        catch (SQLException sqle)
+        {
+          switchToInMemory("scan", sqle);
+        }
 
-                  /* Make close do nothing */
-                  cursor = null;
+      /* Fail over in-memory */
+      return getIMDBValues().iterator();
+    }
 
-                  /* Switch to in memory DB */
-                  switchToInMemory("scan", sqle);
+    /**
+     * Iterate over rows without building a content values object per row. The same {@link Row}
+     * instance is returned for every row.
+     * @return row iterable.
+     */
+    public Iterable<Row> rows()
+    {
+      final Row row = new Row();
+      return new Iterable<Row>()
+      {
+        @Override
+        public Iterator<Row> iterator()
+        {
+          /* Try SQLite */
+          if (mIMDB == null)
+            try
+            {
+              openCursor();
+              row.mScanner = Scanner.this;
+              row.mDecoders = mDecoders;
+              row.mColumnIndexes = mColumnIndexes;
+              return new CursorIterator<Row>()
+              {
+                @Override
+                Row current()
+                {
+                  row.mCursor = cursor;
+                  return row;
                 }
-              return hasNext;
+              };
+            }
+            catch (SQLException sqle)
+            {
+              switchToInMemory("scan", sqle);
             }
 
+          /* Fail over in-memory */
+          final Iterator<ContentValues> values = getIMDBValues().iterator();
+          row.mCursor = null;
+          return new Iterator<Row>()
+          {
             @Override
-            public ContentValues next()
+            public boolean hasNext()
             {
-              /* Check next */
-              if (!hasNext())
-                throw new NoSuchElementException();
-              hasNext = null;
+              return values.hasNext();
+            }
 
-              /* Build object */
-              return buildValues(cursor);
+            @Override
+            public Row next()
+            {
+              row.mValues = values.next();
+              return row;
             }
 
             @Override
@@ -480,44 +1881,131 @@ public class CapptainStorage implements Closeable
             }
           };
         }
-        catch (SQLException sqle)
-        {
-          switchToInMemory("scan", sqle);
-        }
+      };
+    }
 
-      /* Fail over in-memory */
-      return mIMDB.values().iterator();
+    /** Wrap cursor as iterator, skipping the rows that cannot be read */
+    private abstract class CursorIterator<T> implements Iterator<T>
+    {
+      /** If null, hasNext is not known yet */
+      Boolean hasNext;
+
+      /** Object built for the next row */
+      T next;
+
+      /**
+       * Build the object for the current cursor position.
+       * @return object, null if the row cannot be read.
+       */
+      abstract T current();
+
+      @Override
+      public boolean hasNext()
+      {
+        if (hasNext == null)
+          try
+          {
+            next = null;
+            while (next == null && cursor.moveToNext())
+              next = current();
+            hasNext = next != null;
+          }
+          catch (SQLException sqle)
+          {
+            /* Consider no next on error */
+            hasNext = false;
+
+            /* Make close do nothing */
+            cursor = null;
+
+            /* Switch to in memory DB */
+            switchToInMemory("scan", sqle);
+          }
+        return hasNext;
+      }
+
+      @Override
+      public T next()
+      {
+        /* Check next */
+        if (!hasNext())
+          throw new NoSuchElementException();
+        hasNext = null;
+        return next;
+      }
+
+      @Override
+      public void remove()
+      {
+        throw new UnsupportedOperationException();
+      }
     }
   }
 
+  /**
+   * Get the schema version the database had before this instance opened it, to run one-time
+   * migrations of data stored outside the database. This opens the database.
+   * @return previous schema version: the current version if it was up to date, 0 if the database
+   *         was created, -1 if it could not be opened.
+   */
+  public synchronized int getPreviousVersion()
+  {
+    /* Try SQLite again if failed over */
+    retrySQLite();
+
+    /* Try SQLite */
+    if (mIMDB == null)
+      try
+      {
+        getDatabase();
+        return mManager.getPreviousVersion();
+      }
+      catch (SQLException sqle)
+      {
+        switchToInMemory("getPreviousVersion", sqle);
+      }
+
+    /* Unknown in memory */
+    return -1;
+  }
+
   /**
    * Clear database.
    */
-  public void clear()
+  public synchronized void clear()
   {
+    /* Try SQLite again if failed over */
+    retrySQLite();
+
     /* Try SQLite */
     if (mIMDB == null)
       try
       {
         getDatabase().delete(mManager.getTableName(), null, null);
+        mCount = 0L;
+        return;
       }
       catch (SQLException sqle)
       {
         switchToInMemory("clear", sqle);
       }
 
-    /* If failed over in-memory */
-    else
-      mIMDB.clear();
+    /* If failed over in-memory, SQLite rows will be deleted when merging back */
+    mIMDB.clear();
+    mIMDBUpdated.clear();
+    mIMDBDeleted.clear();
+    mIMDBCleared = true;
+    log(CapptainStorageLog.CLEAR, 0, null);
   }
 
   @Override
-  public void close()
+  public synchronized void close()
   {
     /* Try SQLite */
     if (mIMDB == null)
       try
       {
+        closeStatements();
         getDatabase().close();
       }
       catch (SQLException sqle)
@@ -525,11 +2013,20 @@ public class CapptainStorage implements Closeable
         switchToInMemory("close", sqle);
       }
 
-    /* Close in memory database */
+    /* Close in memory database, keeping the spill log for the next instance */
     else
     {
+      if (mLog != null)
+      {
+        mLog.close();
+        mLog = null;
+      }
+      mLogRecovered = false;
       mIMDB.clear();
       mIMDB = null;
+      mIMDBUpdated.clear();
+      mIMDBDeleted.clear();
+      mIMDBCleared = false;
     }
   }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate codec for compressed text columns. Compressed values are stored as blobs starting with a
+ * marker that text values never start with, so that rows written before compression was enabled
+ * are still read as plain text. The marker is followed by the length of the UTF-8 text so that
+ * decoding inflates into an array of the exact size.
+ */
+final class CapptainStorageCompression
+{
+  /** Marker of compressed values: a NUL character never starts text values */
+  private static final byte[] MARKER = { 0, 'Z' };
+
+  /** Header size: marker then big-endian length of the UTF-8 text */
+  private static final int HEADER_SIZE = MARKER.length + 4;
+
+  /** Buffer size used when deflating */
+  private static final int BUFFER_SIZE = 4096;
+
+  /** Maximum deflate compression ratio, bounds the length read from corrupted headers */
+  private static final int MAX_RATIO = 1032;
+
+  private CapptainStorageCompression()
+  {
+    /* Utils pattern: prevent instances */
+  }
+
+  /**
+   * Compress a text value.
+   * @param text text value.
+   * @return compressed value, starting with the header.
+   */
+  static byte[] compress(String text)
+  {
+    byte[] input = toUTF8(text);
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try
+    {
+      deflater.setInput(input);
+      deflater.finish();
+      ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2 + HEADER_SIZE);
+      output.write(MARKER, 0, MARKER.length);
+      for (int shift = 24; shift >= 0; shift -= 8)
+        output.write(input.length >>> shift);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      while (!deflater.finished())
+        output.write(buffer, 0, deflater.deflate(buffer));
+      return output.toByteArray();
+    }
+    finally
+    {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Check if a raw column value is compressed.
+   * @param raw raw column value.
+   * @return true if compressed.
+   */
+  static boolean isCompressed(byte[] raw)
+  {
+    return raw.length >= HEADER_SIZE && raw[0] == MARKER[0] && raw[1] == MARKER[1];
+  }
+
+  /**
+   * Decode a raw column value.
+   * @param raw raw column value, either compressed or plain UTF-8 text.
+   * @return text value.
+   * @throws IllegalArgumentException if compressed data is corrupted.
+   */
+  static String decode(byte[] raw)
+  {
+    if (!isCompressed(raw))
+      return fromUTF8(raw, 0, raw.length);
+    int length = 0;
+    for (int i = MARKER.length; i < HEADER_SIZE; i++)
+      length = length << 8 | raw[i] & 0xff;
+    if (length < 0 || length > (long) (raw.length - HEADER_SIZE) * MAX_RATIO)
+      throw new IllegalArgumentException("Invalid compressed value length: " + length);
+
+    /* One extra byte detects values longer than their header says */
+    byte[] bytes = new byte[length + 1];
+    int offset = 0;
+    Inflater inflater = new Inflater();
+    try
+    {
+      inflater.setInput(raw, HEADER_SIZE, raw.length - HEADER_SIZE);
+      while (!inflater.finished())
+      {
+        int read = inflater.inflate(bytes, offset, bytes.length - offset);
+        if (read == 0 && !inflater.finished())
+          throw new IllegalArgumentException("Truncated or corrupted compressed value");
+        offset += read;
+      }
+      if (offset != length)
+        throw new IllegalArgumentException("Compressed value length mismatch");
+      return fromUTF8(bytes, 0, length);
+    }
+    catch (DataFormatException e)
+    {
+      throw new IllegalArgumentException(e);
+    }
+    finally
+    {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Encode text in UTF-8.
+   * @param text text.
+   * @return UTF-8 bytes.
+   */
+  private static byte[] toUTF8(String text)
+  {
+    try
+    {
+      return text.getBytes("UTF-8");
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      /* UTF-8 is always supported */
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Decode UTF-8 text.
+   * @param bytes UTF-8 bytes.
+   * @param offset offset in bytes.
+   * @param length length to decode.
+   * @return text.
+   */
+  private static String fromUTF8(byte[] bytes, int offset, int length)
+  {
+    try
+    {
+      return new String(bytes, offset, length, "UTF-8");
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      /* UTF-8 is always supported */
+      throw new IllegalStateException(e);
+    }
+  }
+}
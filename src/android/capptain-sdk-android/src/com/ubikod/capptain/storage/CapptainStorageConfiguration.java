@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * SQLite tuning for a {@link CapptainStorage}. All the fields are optional, a <tt>null</tt> value
+ * keeps the SQLite default.
+ */
+public class CapptainStorageConfiguration
+{
+  /** Write-ahead logging journal mode: readers don't block writers and commits are cheaper */
+  public static final String JOURNAL_MODE_WAL = "WAL";
+
+  /** Default rollback journal mode */
+  public static final String JOURNAL_MODE_DELETE = "DELETE";
+
+  /** Synchronous level syncing only at critical moments, safe with WAL */
+  public static final String SYNCHRONOUS_NORMAL = "NORMAL";
+
+  /** Synchronous level syncing at every commit (SQLite default) */
+  public static final String SYNCHRONOUS_FULL = "FULL";
+
+  /** Journal modes SQLite accepts, the value is written in a PRAGMA statement */
+  private static final Set<String> JOURNAL_MODES = new HashSet<String>(Arrays.asList("DELETE",
+    "TRUNCATE", "PERSIST", "MEMORY", "WAL", "OFF"));
+
+  /** Synchronous levels SQLite accepts, the value is written in a PRAGMA statement */
+  private static final Set<String> SYNCHRONOUS_LEVELS = new HashSet<String>(Arrays.asList("OFF",
+    "NORMAL", "FULL", "EXTRA"));
+
+  /** Smallest page size SQLite accepts */
+  private static final int MIN_PAGE_SIZE = 512;
+
+  /** Largest page size SQLite accepts */
+  private static final int MAX_PAGE_SIZE = 65536;
+
+  /** Journal mode */
+  private String mJournalMode;
+
+  /** Synchronous level */
+  private String mSynchronous;
+
+  /** Page size in bytes */
+  private Integer mPageSize;
+
+  /** Cache size in pages */
+  private Integer mCacheSize;
+
+  /** Indexed columns */
+  private final List<String> mIndexes = new ArrayList<String>();
+
+  /** Compressed text columns */
+  private final Set<String> mCompressedColumns = new HashSet<String>();
+
+  /**
+   * Get journal mode.
+   * @return journal mode, null for SQLite default.
+   */
+  public String getJournalMode()
+  {
+    return mJournalMode;
+  }
+
+  /**
+   * Set journal mode, for example {@link #JOURNAL_MODE_WAL}.
+   * @param journalMode journal mode, null for SQLite default.
+   * @throws IllegalArgumentException if SQLite does not know the journal mode.
+   */
+  public void setJournalMode(String journalMode)
+  {
+    mJournalMode = checkKeyword(journalMode, JOURNAL_MODES);
+  }
+
+  /**
+   * Get synchronous level.
+   * @return synchronous level, null for SQLite default.
+   */
+  public String getSynchronous()
+  {
+    return mSynchronous;
+  }
+
+  /**
+   * Set synchronous level, for example {@link #SYNCHRONOUS_NORMAL}.
+   * @param synchronous synchronous level, null for SQLite default.
+   * @throws IllegalArgumentException if SQLite does not know the synchronous level.
+   */
+  public void setSynchronous(String synchronous)
+  {
+    mSynchronous = checkKeyword(synchronous, SYNCHRONOUS_LEVELS);
+  }
+
+  /**
+   * Check a pragma keyword.
+   * @param value keyword, case insensitive, can be null.
+   * @param keywords allowed keywords, upper case.
+   * @return keyword in upper case, null if value is null.
+   * @throws IllegalArgumentException if the keyword is not allowed.
+   */
+  private static String checkKeyword(String value, Set<String> keywords)
+  {
+    if (value == null)
+      return null;
+    String keyword = value.toUpperCase(Locale.US);
+    if (!keywords.contains(keyword))
+      throw new IllegalArgumentException("Unsupported value: " + value);
+    return keyword;
+  }
+
+  /**
+   * Get page size.
+   * @return page size in bytes, null for SQLite default.
+   */
+  public Integer getPageSize()
+  {
+    return mPageSize;
+  }
+
+  /**
+   * Set page size, it is applied only when the database is created.
+   * @param pageSize page size in bytes (power of 2 from 512 to 65536), null for SQLite default.
+   * @throws IllegalArgumentException if the page size is not supported.
+   */
+  public void setPageSize(Integer pageSize)
+  {
+    if (pageSize != null
+      && (pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1))
+      throw new IllegalArgumentException("Unsupported page size: " + pageSize);
+    mPageSize = pageSize;
+  }
+
+  /**
+   * Get cache size.
+   * @return cache size in pages, null for SQLite default.
+   */
+  public Integer getCacheSize()
+  {
+    return mCacheSize;
+  }
+
+  /**
+   * Set cache size.
+   * @param cacheSize cache size in pages, null for SQLite default.
+   */
+  public void setCacheSize(Integer cacheSize)
+  {
+    mCacheSize = cacheSize;
+  }
+
+  /**
+   * Get indexed columns.
+   * @return indexed columns.
+   */
+  public List<String> getIndexes()
+  {
+    return mIndexes;
+  }
+
+  /**
+   * Declare a secondary index on a schema column, created when the database is opened if missing.
+   * Lookups on that column with {@link CapptainStorage#findFirst(String, Object)} or
+   * {@link CapptainStorage#getScanner(String, Object)} then use the index.
+   * @param column column to index.
+   */
+  public void addIndex(String column)
+  {
+    mIndexes.add(column);
+  }
+
+  /**
+   * Get compressed text columns.
+   * @return compressed text columns.
+   */
+  public Set<String> getCompressedColumns()
+  {
+    return mCompressedColumns;
+  }
+
+  /**
+   * Store a text column deflated. Values are compressed when written and decompressed when read,
+   * rows written before compression was enabled are still readable. Compressed columns cannot be
+   * used in SQL selections. Compression saves disk space but reading a compressed value takes more
+   * time and heap than reading text: only compress large columns that are rarely read. A row whose
+   * compressed value cannot be decoded is treated as missing and deleted.
+   * @param column text column to compress.
+   */
+  public void addCompressedColumn(String column)
+  {
+    mCompressedColumns.add(column);
+  }
+}
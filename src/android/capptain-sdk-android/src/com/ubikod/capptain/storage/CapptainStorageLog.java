@@ -0,0 +1,473 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import android.content.ContentValues;
+
+/**
+ * Append-only log of storage operations, backed by a memory-mapped file. Used when SQLite fails so
+ * that entries survive process death until they can be migrated back to SQLite. Each record is
+ * written before its length, a record interrupted by process death is thus ignored on replay.
+ */
+final class CapptainStorageLog
+{
+  /** Put operation */
+  static final byte PUT = 1;
+
+  /** Update operation */
+  static final byte UPDATE = 2;
+
+  /** Delete operation */
+  static final byte DELETE = 3;
+
+  /** Clear operation */
+  static final byte CLEAR = 4;
+
+  /** Null value type tag */
+  private static final byte TYPE_NULL = 0;
+
+  /** String value type tag */
+  private static final byte TYPE_STRING = 1;
+
+  /** Long value type tag */
+  private static final byte TYPE_LONG = 2;
+
+  /** Integer value type tag */
+  private static final byte TYPE_INT = 3;
+
+  /** Short value type tag */
+  private static final byte TYPE_SHORT = 4;
+
+  /** Byte value type tag */
+  private static final byte TYPE_BYTE = 5;
+
+  /** Double value type tag */
+  private static final byte TYPE_DOUBLE = 6;
+
+  /** Float value type tag */
+  private static final byte TYPE_FLOAT = 7;
+
+  /** Boolean value type tag */
+  private static final byte TYPE_BOOLEAN = 8;
+
+  /** Blob value type tag */
+  private static final byte TYPE_BLOB = 9;
+
+  /** Initial mapped size */
+  private static final int INITIAL_SIZE = 64 * 1024;
+
+  /** Log file */
+  private final File mFile;
+
+  /** Open file */
+  private RandomAccessFile mRandomAccessFile;
+
+  /** Mapped file content */
+  private MappedByteBuffer mBuffer;
+
+  /** Number of records in the log */
+  private int mRecords;
+
+  /** True if a replayed record cleared the storage */
+  private boolean mCleared;
+
+  /**
+   * Open or create a log.
+   * @param file log file.
+   * @throws IOException if the file cannot be mapped.
+   */
+  CapptainStorageLog(File file) throws IOException
+  {
+    mFile = file;
+    map(Math.max(INITIAL_SIZE, (int) file.length()));
+  }
+
+  /**
+   * Check whether a log file contains records.
+   * @param file log file.
+   * @return true if the file exists and is not empty.
+   */
+  static boolean exists(File file)
+  {
+    return file.length() > 0;
+  }
+
+  /**
+   * Map the file with at least the specified size, keeping the current position.
+   * @param size size to map.
+   * @throws IOException if the file cannot be mapped.
+   */
+  private void map(int size) throws IOException
+  {
+    int position = mBuffer == null ? 0 : mBuffer.position();
+    if (mRandomAccessFile != null)
+      mRandomAccessFile.close();
+    mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+    if (mRandomAccessFile.length() < size)
+      mRandomAccessFile.setLength(size);
+    mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    mBuffer.position(position);
+  }
+
+  /**
+   * Get the number of records, including the ones replayed.
+   * @return number of records.
+   */
+  int getRecordCount()
+  {
+    return mRecords;
+  }
+
+  /**
+   * Replay all the records and position the log at its end.
+   * @param imdb map to fill with the entries put in the log, keyed by identifier.
+   * @param updated map to fill with the updates of entries that were not put in the log, keyed by
+   *          identifier: these entries may exist in SQLite.
+   * @param deleted set to fill with the identifiers deleted in the log that were not put in it,
+   *          these entries may still exist in SQLite.
+   * @return the highest identifier put, -1 if none.
+   */
+  long replay(Map<Long, ContentValues> imdb, Map<Long, ContentValues> updated, Set<Long> deleted)
+  {
+    long maxId = -1;
+    mBuffer.position(0);
+    mRecords = 0;
+    mCleared = false;
+    try
+    {
+      while (mBuffer.remaining() >= 4)
+      {
+        /* A zero length marks the end of the log */
+        int start = mBuffer.position();
+        int length = mBuffer.getInt();
+        if (length <= 0 || length > mBuffer.remaining())
+        {
+          mBuffer.position(start);
+          break;
+        }
+
+        /* Decode record */
+        byte[] record = new byte[length];
+        mBuffer.get(record);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte op = in.readByte();
+        long id = in.readLong();
+        ContentValues values = op == PUT || op == UPDATE ? readValues(in) : null;
+        mRecords++;
+
+        /* Apply */
+        switch (op)
+        {
+          case PUT:
+            imdb.put(id, values);
+            maxId = Math.max(maxId, id);
+            break;
+
+          case UPDATE:
+            ContentValues existing = imdb.get(id);
+            if (existing == null)
+              existing = updated.get(id);
+            if (existing != null)
+              existing.putAll(values);
+            else
+              updated.put(id, values);
+            break;
+
+          case DELETE:
+            updated.remove(id);
+            if (imdb.remove(id) == null)
+              deleted.add(id);
+            break;
+
+          case CLEAR:
+            imdb.clear();
+            updated.clear();
+            deleted.clear();
+            mCleared = true;
+            break;
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      /* Truncated record, ignore the end of the log */
+    }
+    catch (BufferUnderflowException e)
+    {
+      /* Truncated record, ignore the end of the log */
+    }
+    return maxId;
+  }
+
+  /**
+   * Check whether the replayed records cleared the storage, in which case the SQLite rows must be
+   * deleted before migrating the replayed entries back.
+   * @return true if a clear record was replayed.
+   */
+  boolean isCleared()
+  {
+    return mCleared;
+  }
+
+  /**
+   * Append a record.
+   * @param op operation.
+   * @param id entry identifier.
+   * @param values values for put and update, null otherwise.
+   * @throws IOException if an error occurs.
+   */
+  void append(byte op, long id, ContentValues values) throws IOException
+  {
+    /* Encode record */
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(record);
+    out.writeByte(op);
+    out.writeLong(id);
+    if (values != null)
+      writeValues(out, values);
+    out.flush();
+    byte[] data = record.toByteArray();
+
+    /* Grow mapping if needed, keeping room for the end marker */
+    int needed = mBuffer.position() + 4 + data.length + 4;
+    if (needed > mBuffer.capacity())
+      map(Math.max(needed, mBuffer.capacity() * 2));
+
+    /* Write data before length so that an interrupted write is ignored on replay */
+    int start = mBuffer.position();
+    mBuffer.position(start + 4);
+    mBuffer.put(data);
+    int end = mBuffer.position();
+    mBuffer.putInt(0);
+    mBuffer.putInt(start, data.length);
+    mBuffer.position(end);
+    mRecords++;
+  }
+
+  /**
+   * Rewrite the log as a snapshot of the specified state.
+   * @param entries current entries, they must contain their identifier under the "id" key.
+   * @param updated updates of entries that are not in the entries, keyed by identifier.
+   * @param deleted identifiers deleted that are not in the entries.
+   * @param cleared true if the storage was cleared before the other changes.
+   * @throws IOException if an error occurs.
+   */
+  void compact(Collection<ContentValues> entries, Map<Long, ContentValues> updated,
+    Collection<Long> deleted, boolean cleared) throws IOException
+  {
+    /* Write snapshot in a new file */
+    File tmpFile = new File(mFile.getPath() + ".tmp");
+    tmpFile.delete();
+    CapptainStorageLog snapshot = new CapptainStorageLog(tmpFile);
+    if (cleared)
+      snapshot.append(CLEAR, 0, null);
+    for (Long id : deleted)
+      snapshot.append(DELETE, id, null);
+    for (Entry<Long, ContentValues> update : updated.entrySet())
+      snapshot.append(UPDATE, update.getKey(), update.getValue());
+    for (ContentValues values : entries)
+      snapshot.append(PUT, values.getAsLong("id"), values);
+    snapshot.close();
+
+    /* Replace current log */
+    close();
+    if (!tmpFile.renameTo(mFile))
+      throw new IOException("Cannot replace " + mFile);
+    mBuffer = null;
+    map(Math.max(INITIAL_SIZE, (int) mFile.length()));
+    mBuffer.position(snapshot.mBuffer.position());
+    mRecords = snapshot.mRecords;
+  }
+
+  /** Close the log, keeping the file */
+  void close()
+  {
+    try
+    {
+      if (mRandomAccessFile != null)
+        mRandomAccessFile.close();
+    }
+    catch (IOException e)
+    {
+      /* Ignore */
+    }
+    mRandomAccessFile = null;
+  }
+
+  /** Close and delete the log */
+  void delete()
+  {
+    close();
+    mFile.delete();
+  }
+
+  /**
+   * Serialize values.
+   * @param out output.
+   * @param values values.
+   * @throws IOException if an error occurs.
+   */
+  private static void writeValues(DataOutputStream out, ContentValues values) throws IOException
+  {
+    out.writeShort(values.size());
+    for (Entry<String, Object> entry : values.valueSet())
+    {
+      out.writeUTF(entry.getKey());
+      Object value = entry.getValue();
+      if (value == null)
+        out.writeByte(TYPE_NULL);
+      else if (value instanceof String)
+      {
+        /* writeUTF is limited to 64KB, use raw UTF-8 bytes */
+        out.writeByte(TYPE_STRING);
+        byte[] bytes = ((String) value).getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      else if (value instanceof Long)
+      {
+        out.writeByte(TYPE_LONG);
+        out.writeLong((Long) value);
+      }
+      else if (value instanceof Integer)
+      {
+        out.writeByte(TYPE_INT);
+        out.writeInt((Integer) value);
+      }
+      else if (value instanceof Short)
+      {
+        out.writeByte(TYPE_SHORT);
+        out.writeShort((Short) value);
+      }
+      else if (value instanceof Byte)
+      {
+        out.writeByte(TYPE_BYTE);
+        out.writeByte((Byte) value);
+      }
+      else if (value instanceof Double)
+      {
+        out.writeByte(TYPE_DOUBLE);
+        out.writeDouble((Double) value);
+      }
+      else if (value instanceof Float)
+      {
+        out.writeByte(TYPE_FLOAT);
+        out.writeFloat((Float) value);
+      }
+      else if (value instanceof Boolean)
+      {
+        out.writeByte(TYPE_BOOLEAN);
+        out.writeBoolean((Boolean) value);
+      }
+      else if (value instanceof byte[])
+      {
+        out.writeByte(TYPE_BLOB);
+        byte[] bytes = (byte[]) value;
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      else
+        throw new IOException("Unsupported type: " + value.getClass());
+    }
+  }
+
+  /**
+   * Deserialize values.
+   * @param in input.
+   * @return values.
+   * @throws IOException if an error occurs.
+   */
+  private static ContentValues readValues(DataInputStream in) throws IOException
+  {
+    int size = in.readShort();
+    ContentValues values = new ContentValues(size);
+    for (int i = 0; i < size; i++)
+    {
+      String key = in.readUTF();
+      byte type = in.readByte();
+      switch (type)
+      {
+        case TYPE_NULL:
+          values.putNull(key);
+          break;
+
+        case TYPE_STRING:
+        {
+          byte[] bytes = new byte[in.readInt()];
+          in.readFully(bytes);
+          values.put(key, new String(bytes, "UTF-8"));
+          break;
+        }
+
+        case TYPE_LONG:
+          values.put(key, in.readLong());
+          break;
+
+        case TYPE_INT:
+          values.put(key, in.readInt());
+          break;
+
+        case TYPE_SHORT:
+          values.put(key, in.readShort());
+          break;
+
+        case TYPE_BYTE:
+          values.put(key, in.readByte());
+          break;
+
+        case TYPE_DOUBLE:
+          values.put(key, in.readDouble());
+          break;
+
+        case TYPE_FLOAT:
+          values.put(key, in.readFloat());
+          break;
+
+        case TYPE_BOOLEAN:
+          values.put(key, in.readBoolean());
+          break;
+
+        case TYPE_BLOB:
+        {
+          byte[] bytes = new byte[in.readInt()];
+          in.readFully(bytes);
+          values.put(key, bytes);
+          break;
+        }
+
+        default:
+          throw new IOException("Unknown type: " + type);
+      }
+    }
+    return values;
+  }
+}
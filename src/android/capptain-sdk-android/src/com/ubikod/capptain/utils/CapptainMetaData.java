@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.utils;
+
+import android.os.Bundle;
+
+/**
+ * Immutable snapshot of meta-data declared in <tt>AndroidManifest.xml</tt>, see
+ * {@link CapptainUtils#getMetaDataSnapshot(android.content.Context)}.
+ */
+public final class CapptainMetaData
+{
+  /** Meta-data values, never exposed */
+  private final Bundle mValues;
+
+  /**
+   * Init snapshot.
+   * @param values meta-data values, must not be modified afterwards.
+   */
+  CapptainMetaData(Bundle values)
+  {
+    /*
+     * The bundle of ApplicationInfo.metaData is unparcelled on first access, which modifies it:
+     * force it now so that the snapshot is only read once published to other threads.
+     */
+    values.size();
+    mValues = values;
+  }
+
+  /**
+   * Check if a meta-data is declared.
+   * @param key meta-data name.
+   * @return true if declared.
+   */
+  public boolean containsKey(String key)
+  {
+    return mValues.containsKey(key);
+  }
+
+  /**
+   * Get a string meta-data.
+   * @param key meta-data name.
+   * @return value, null if not declared or not a string.
+   */
+  public String getString(String key)
+  {
+    return mValues.getString(key);
+  }
+
+  /**
+   * Get a boolean meta-data.
+   * @param key meta-data name.
+   * @param defaultValue value to return if not declared or not a boolean.
+   * @return value.
+   */
+  public boolean getBoolean(String key, boolean defaultValue)
+  {
+    return mValues.getBoolean(key, defaultValue);
+  }
+
+  /**
+   * Get an integer meta-data.
+   * @param key meta-data name.
+   * @param defaultValue value to return if not declared or not an integer.
+   * @return value.
+   */
+  public int getInt(String key, int defaultValue)
+  {
+    return mValues.getInt(key, defaultValue);
+  }
+
+  /**
+   * Copy meta-data values.
+   * @return a new bundle that can be modified by the caller.
+   */
+  public Bundle toBundle()
+  {
+    return new Bundle(mValues);
+  }
+}
@@ -22,10 +22,16 @@ import static android.Manifest.permission.ACCESS_NETWORK_STATE;
 import static android.Manifest.permission.INTERNET;
 import static android.content.pm.PackageManager.GET_META_DATA;
 import static android.content.pm.PackageManager.PERMISSION_GRANTED;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import android.app.Activity;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
@@ -38,6 +44,37 @@ import com.ubikod.capptain.ICapptainService;
 /** Utility functions */
 public final class CapptainUtils
 {
+  /** Cached result of the service resolution, valid only if sServiceResolved is true */
+  private static ComponentName sService;
+
+  /** True if sService is valid */
+  private static boolean sServiceResolved;
+
+  /** Incremented when the cache is invalidated, to discard resolutions started before */
+  private static int sServiceGeneration;
+
+  /** True once the receiver invalidating the cache on package changes is registered */
+  private static boolean sPackageReceiverRegistered;
+
+  /** Maximum number of activities whose meta-data is cached */
+  private static final int ACTIVITY_META_DATA_CACHE_SIZE = 32;
+
+  /** Application meta-data, loaded once as it can only change when the process is restarted */
+  private static CapptainMetaData sMetaData;
+
+  /** Activity meta-data by component, least recently used first */
+  private static final Map<ComponentName, CapptainMetaData> sActivityMetaData = new LinkedHashMap<ComponentName, CapptainMetaData>(
+    16, 0.75f, true)
+  {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<ComponentName, CapptainMetaData> eldest)
+    {
+      return size() > ACTIVITY_META_DATA_CACHE_SIZE;
+    }
+  };
+
   private CapptainUtils()
   {
     /* Prevent instantiation */
@@ -58,12 +95,104 @@ public final class CapptainUtils
   }
 
   /**
-   * Get the most suitable Capptain service intent to bind to.
+   * Get the most suitable Capptain service intent to bind to. The resolution is cached until a
+   * package is added, removed, replaced or changed on the device.
    * @param context any application context.
    * @return an explicit intent that can used to bind to the service or null if no such intent can
    *         be resolved.
    */
   public static Intent resolveCapptainService(Context context)
+  {
+    /* Use cache if valid */
+    int generation;
+    synchronized (CapptainUtils.class)
+    {
+      if (sServiceResolved)
+        return buildServiceIntent(context, sService);
+      generation = sServiceGeneration;
+    }
+
+    /* Resolve, and cache the result only if we can watch package changes */
+    ComponentName service = resolveCapptainServiceComponent(context);
+    synchronized (CapptainUtils.class)
+    {
+      if (generation == sServiceGeneration && registerPackageReceiver(context))
+      {
+        sService = service;
+        sServiceResolved = true;
+      }
+    }
+    return buildServiceIntent(context, service);
+  }
+
+  /**
+   * Invalidate the cached result of {@link #resolveCapptainService(Context)}. This is done
+   * automatically when packages change, but a receiver of package changes may need to call this
+   * to ensure resolution is up to date whatever the broadcast delivery order.
+   */
+  public static synchronized void invalidateCapptainServiceCache()
+  {
+    sServiceResolved = false;
+    sService = null;
+    sServiceGeneration++;
+  }
+
+  /**
+   * Register a receiver invalidating the service resolution cache on package changes, if not
+   * already done. Must be called while holding the class lock.
+   * @param context any application context.
+   * @return true if the receiver is registered.
+   */
+  private static boolean registerPackageReceiver(Context context)
+  {
+    if (!sPackageReceiverRegistered)
+      try
+      {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.getApplicationContext().registerReceiver(new BroadcastReceiver()
+        {
+          @Override
+          public void onReceive(Context context, Intent intent)
+          {
+            invalidateCapptainServiceCache();
+          }
+        }, filter);
+        sPackageReceiverRegistered = true;
+      }
+      catch (RuntimeException e)
+      {
+        /* Cannot watch package changes in this context, don't cache */
+      }
+    return sPackageReceiverRegistered;
+  }
+
+  /**
+   * Build the intent to bind to the Capptain service.
+   * @param context any application context.
+   * @param service service component, may be null.
+   * @return explicit intent, null if service is null.
+   */
+  private static Intent buildServiceIntent(Context context, ComponentName service)
+  {
+    if (service == null)
+      return null;
+    Intent intent = new Intent(ICapptainService.class.getName(), Uri.parse("capptain://"
+      + context.getPackageName()));
+    intent.setComponent(service);
+    return intent;
+  }
+
+  /**
+   * Get the most suitable Capptain service component by querying the package manager.
+   * @param context any application context.
+   * @return service component, null if none.
+   */
+  private static ComponentName resolveCapptainServiceComponent(Context context)
   {
     /* Build the base intent */
     String packageName = context.getPackageName();
@@ -71,12 +200,12 @@ public final class CapptainUtils
       + packageName));
 
     /* Check if we need location permissions */
-    Bundle config = getMetaData(context);
-    boolean realTimeLocationReport = config.getBoolean("capptain:locationReport:realTime");
-    boolean needNetworkLocation = config.getBoolean("capptain:locationReport:lazyArea")
+    CapptainMetaData config = getMetaDataSnapshot(context);
+    boolean realTimeLocationReport = config.getBoolean("capptain:locationReport:realTime", false);
+    boolean needNetworkLocation = config.getBoolean("capptain:locationReport:lazyArea", false)
       || realTimeLocationReport;
     boolean needGpsLocation = realTimeLocationReport
-      && config.getBoolean("capptain:locationReport:realTime:fine");
+      && config.getBoolean("capptain:locationReport:realTime:fine", false);
 
     /* Check services that can handle it */
     PackageManager packageManager = context.getPackageManager();
@@ -155,27 +284,51 @@ public final class CapptainUtils
       /* Catch "Package manager has died": make service resolution fail in that case. */
     }
 
-    /* if a service was found */
-    if (bestService != null)
-    {
-      /* Make the intent explicit */
-      intent.setComponent(bestService);
-      return intent;
-    }
-
-    /* Otherwise return null intent */
-    else
-      return null;
+    return bestService;
   }
 
   /**
    * Get application meta-data of the current package name.
    * @param context application context.
-   * @return meta-data, may be empty but never null.
+   * @return meta-data, may be empty but never null. This is a copy that can be modified.
    */
   public static Bundle getMetaData(Context context)
   {
-    return getMetaData(context, context.getPackageName());
+    return getMetaDataSnapshot(context).toBundle();
+  }
+
+  /**
+   * Get application meta-data of the current package name. The package manager is queried only the
+   * first time in the process.
+   * @param context application context.
+   * @return meta-data snapshot, may be empty but never null.
+   */
+  public static CapptainMetaData getMetaDataSnapshot(Context context)
+  {
+    synchronized (CapptainUtils.class)
+    {
+      if (sMetaData != null)
+        return sMetaData;
+    }
+    try
+    {
+      Bundle config = context.getPackageManager().getApplicationInfo(context.getPackageName(),
+        PackageManager.GET_META_DATA).metaData;
+      CapptainMetaData metaData = new CapptainMetaData(config == null ? new Bundle() : config);
+      synchronized (CapptainUtils.class)
+      {
+        sMetaData = metaData;
+      }
+      return metaData;
+    }
+    catch (Exception e)
+    {
+      /*
+       * NameNotFoundException or in some rare scenario an undocumented "RuntimeException: Package
+       * manager has died.", probably caused by a system app process crash. Don't cache.
+       */
+      return new CapptainMetaData(new Bundle());
+    }
   }
 
   /**
@@ -208,26 +361,46 @@ public final class CapptainUtils
   /**
    * Get activity meta-data.
    * @param activity activity to get meta-data from.
-   * @return meta-data, may be empty but never null.
+   * @return meta-data, may be empty but never null. This is a copy that can be modified.
    */
   public static Bundle getActivityMetaData(Activity activity)
   {
-    Bundle config;
+    return getActivityMetaDataSnapshot(activity).toBundle();
+  }
+
+  /**
+   * Get activity meta-data. The meta-data of recently used activity classes are cached so that
+   * switching between activities does not query the package manager.
+   * @param activity activity to get meta-data from.
+   * @return meta-data snapshot, may be empty but never null.
+   */
+  public static CapptainMetaData getActivityMetaDataSnapshot(Activity activity)
+  {
+    ComponentName component = activity.getComponentName();
+    synchronized (sActivityMetaData)
+    {
+      CapptainMetaData metaData = sActivityMetaData.get(component);
+      if (metaData != null)
+        return metaData;
+    }
     try
     {
-      config = activity.getPackageManager().getActivityInfo(activity.getComponentName(),
-        GET_META_DATA).metaData;
-      if (config == null)
-        config = new Bundle();
+      PackageManager packageManager = activity.getPackageManager();
+      Bundle config = packageManager.getActivityInfo(component, GET_META_DATA).metaData;
+      CapptainMetaData metaData = new CapptainMetaData(config == null ? new Bundle() : config);
+      synchronized (sActivityMetaData)
+      {
+        sActivityMetaData.put(component, metaData);
+      }
+      return metaData;
     }
     catch (Exception e)
     {
       /*
        * NameNotFoundException or in some rare scenario an undocumented "RuntimeException: Package
-       * manager has died.", probably caused by a system app process crash.
+       * manager has died.", probably caused by a system app process crash. Don't cache.
        */
-      config = new Bundle();
+      return new CapptainMetaData(new Bundle());
     }
-    return config;
   }
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.android.sdk;
+
+import java.util.Random;
+
+/**
+ * Replays command traces against the adaptive unbind delay of {@link CapptainBindPolicy} and
+ * against the former fixed 30s delay, and reports the number of binds and the time spent bound.
+ * Each bind replays the configuration and the pending commands, time bound keeps the service
+ * process alive. Runs as a plain Java program.
+ */
+public class CapptainBindPolicyBenchmark
+{
+  /** Former fixed unbind delay */
+  private static final long FIXED_TIMEOUT = 30000;
+
+  /** Trace duration */
+  private static final long DURATION = 3600000;
+
+  public static void main(String[] args)
+  {
+    report("burst of 5 every 8s", bursts(8000, 5, 200));
+    report("burst of 5 every 40s", bursts(40000, 5, 200));
+    report("one every 2s", bursts(2000, 1, 0));
+    report("one every 5min", bursts(300000, 1, 0));
+    report("random, 20s mean gap", random(20000));
+
+    /* Cost of the policy on the agent thread */
+    CapptainBindPolicy policy = new CapptainBindPolicy();
+    long[] trace = random(20000);
+    int iterations = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < 200; i++)
+      for (long time : trace)
+      {
+        policy.onCommand(time + i * DURATION);
+        iterations++;
+      }
+    long nanos = System.nanoTime() - start;
+    System.out.println("onCommand: " + nanos / iterations + " ns/call");
+  }
+
+  /**
+   * Build a trace of bursts.
+   * @param period time between bursts.
+   * @param size commands per burst.
+   * @param gap time between the commands of a burst.
+   * @return command times.
+   */
+  private static long[] bursts(long period, int size, long gap)
+  {
+    int count = (int) (DURATION / period) * size;
+    long[] times = new long[count];
+    for (int i = 0; i < count; i++)
+      times[i] = 1 + (i / size) * period + (i % size) * gap;
+    return times;
+  }
+
+  /**
+   * Build a trace with exponentially distributed gaps.
+   * @param mean mean gap.
+   * @return command times.
+   */
+  private static long[] random(long mean)
+  {
+    Random random = new Random(42);
+    int count = (int) (DURATION / mean);
+    long[] times = new long[count];
+    long now = 1;
+    for (int i = 0; i < count; i++)
+    {
+      now += (long) (-mean * Math.log(1 - random.nextDouble()));
+      times[i] = now;
+    }
+    return times;
+  }
+
+  /**
+   * Replay a trace with both policies and print the results.
+   * @param name trace name.
+   * @param times command times.
+   */
+  private static void report(String name, long[] times)
+  {
+    long[] fixed = replay(times, null);
+    long[] adaptive = replay(times, new CapptainBindPolicy());
+    System.out.println(name + " (" + times.length + " commands): fixed " + fixed[0] + " binds, "
+      + fixed[1] / 1000 + "s bound; adaptive " + adaptive[0] + " binds, " + adaptive[1] / 1000
+      + "s bound");
+  }
+
+  /**
+   * Replay a trace: the service is unbound when no command was sent during the unbind delay.
+   * @param times command times.
+   * @param policy adaptive policy, null for the fixed delay.
+   * @return number of binds and time bound.
+   */
+  private static long[] replay(long[] times, CapptainBindPolicy policy)
+  {
+    long binds = 0;
+    long bound = 0;
+    long unbindTime = 0;
+    long lastTime = 0;
+    for (long time : times)
+    {
+      if (time >= unbindTime)
+      {
+        binds++;
+        if (lastTime > 0)
+          bound += unbindTime - lastTime;
+      }
+      else
+        bound += time - lastTime;
+      long timeout = FIXED_TIMEOUT;
+      if (policy != null)
+      {
+        policy.onCommand(time);
+        timeout = policy.getUnbindTimeout();
+      }
+      unbindTime = time + timeout;
+      lastTime = time;
+    }
+    bound += unbindTime - lastTime;
+    return new long[] { binds, bound };
+  }
+}
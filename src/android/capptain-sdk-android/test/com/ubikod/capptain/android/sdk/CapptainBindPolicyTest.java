@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.android.sdk;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CapptainBindPolicyTest
+{
+  /** Policy under test */
+  private CapptainBindPolicy mPolicy;
+
+  @Before
+  public void setUp()
+  {
+    mPolicy = new CapptainBindPolicy();
+  }
+
+  /**
+   * Send commands at a fixed interval.
+   * @param start time of the first command.
+   * @param gap interval between commands.
+   * @param count number of commands.
+   * @return time of the last command.
+   */
+  private long sendCommands(long start, long gap, int count)
+  {
+    long now = start;
+    for (int i = 0; i < count; i++)
+    {
+      now = start + i * gap;
+      mPolicy.onCommand(now);
+    }
+    return now;
+  }
+
+  @Test
+  public void defaultTimeoutUntilGapsAreKnown()
+  {
+    assertEquals(30000, mPolicy.getUnbindTimeout());
+    mPolicy.onCommand(1000);
+    assertEquals(30000, mPolicy.getUnbindTimeout());
+  }
+
+  @Test
+  public void frequentCommandsShortenTimeout()
+  {
+    sendCommands(1000, 2000, 20);
+    assertEquals(6000, mPolicy.getUnbindTimeout());
+  }
+
+  @Test
+  public void timeoutNeverBelowMinimum()
+  {
+    sendCommands(1000, 1500, 50);
+    assertEquals(5000, mPolicy.getUnbindTimeout());
+  }
+
+  @Test
+  public void gapsWithinBurstsAreIgnored()
+  {
+    long now = 1000;
+    for (int burst = 0; burst < 20; burst++)
+      now = sendCommands(now + 6000, 200, 5);
+    assertEquals(18000, mPolicy.getUnbindTimeout());
+  }
+
+  @Test
+  public void timeoutCoversThreeAverageGaps()
+  {
+    long now = 1000;
+    for (int burst = 0; burst < 10; burst++)
+      now = sendCommands(now + 15000, 0, 1);
+    assertEquals(45000, mPolicy.getUnbindTimeout());
+  }
+
+  @Test
+  public void rareCommandsReleaseQuickly()
+  {
+    sendCommands(1000, 300000, 5);
+    assertEquals(5000, mPolicy.getUnbindTimeout());
+  }
+
+  @Test
+  public void smallChangesAreIgnored()
+  {
+    long now = sendCommands(1000, 10000, 20);
+    assertEquals(30000, mPolicy.getUnbindTimeout());
+
+    /* A slightly longer gap moves the target by less than the hysteresis band */
+    mPolicy.onCommand(now + 12000);
+    assertEquals(30000, mPolicy.getUnbindTimeout());
+  }
+
+  @Test
+  public void bindMetrics()
+  {
+    assertEquals(0, mPolicy.getBindCount());
+    assertEquals(0, mPolicy.getAverageBindLatency());
+    assertEquals(0, mPolicy.getBoundTime(1000));
+
+    mPolicy.onBind(1000);
+    mPolicy.onConnected(1040);
+    assertEquals(500, mPolicy.getBoundTime(1540));
+    mPolicy.onUnbound(2040);
+
+    mPolicy.onBind(5000);
+    mPolicy.onConnected(5020);
+    mPolicy.onUnbound(6020);
+
+    assertEquals(2, mPolicy.getBindCount());
+    assertEquals(30, mPolicy.getAverageBindLatency());
+    assertEquals(2000, mPolicy.getBoundTime(10000));
+  }
+
+  @Test
+  public void reconnectionWithoutBindKeepsLatency()
+  {
+    mPolicy.onBind(1000);
+    mPolicy.onConnected(1100);
+
+    /* Service process restarted: connected again without a new bind request */
+    mPolicy.onUnbound(2000);
+    mPolicy.onConnected(3000);
+    mPolicy.onUnbound(4000);
+
+    assertEquals(1, mPolicy.getBindCount());
+    assertEquals(100, mPolicy.getAverageBindLatency());
+    assertEquals(1900, mPolicy.getBoundTime(5000));
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.android.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.Test;
+
+/**
+ * Counts the bytes allocated per event by {@link CapptainEventRecorder}, with the allocation
+ * counters of the JVM (skipped if the JVM cannot report them). The calling thread obtains and fills
+ * a pooled recorder, {@link CapptainAgent#commit(CapptainEventRecorder)} hands it over in a pooled
+ * message, then the agent thread builds the command and recycles the recorder once sent. Totals are
+ * divided by the number of events, the cost of reading the counters stays below one byte per event.
+ */
+public class CapptainEventRecorderTest
+{
+  /** Events per measure */
+  private static final int EVENTS = 20000;
+
+  /** Events recorded before measuring, filling the pool and compiling the code */
+  private static final int WARM_UP = 20000;
+
+  /** Events in flight between the calling thread and the agent thread, below the pool size */
+  private static final int IN_FLIGHT = 8;
+
+  /** Thread counters, looked up once as the lookup allocates */
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  /**
+   * Get the bytes allocated so far by the current thread.
+   * @return allocated bytes.
+   */
+  private static long allocatedBytes()
+  {
+    long id = Thread.currentThread().getId();
+    return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(id);
+  }
+
+  /**
+   * Record an event like the calling thread does before committing.
+   * @param i event index.
+   * @return filled recorder.
+   */
+  private static CapptainEventRecorder record(int i)
+  {
+    return CapptainEventRecorder.obtain(null, CapptainCommand.SEND_EVENT, "purchase", null)
+      .put("price", 499L + i).put("ratio", 0.5 * i).put("firstTime", i == 0)
+      .put("currency", "EUR");
+  }
+
+  /**
+   * Run code on a dedicated thread, like the agent thread, and wait for it.
+   * @param runnable code to run.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  private static void runOnAgentThread(Runnable runnable) throws InterruptedException
+  {
+    Thread thread = new Thread(runnable, "CapptainAgent");
+    thread.start();
+    thread.join();
+  }
+
+  @Test
+  public void callingThreadDoesNotAllocate()
+  {
+    assumeTrue(THREADS instanceof com.sun.management.ThreadMXBean);
+    CapptainEventRecorder[] recorders = new CapptainEventRecorder[IN_FLIGHT];
+    long bytes = 0;
+    for (int i = 0; i < WARM_UP + EVENTS; i += IN_FLIGHT)
+    {
+      /* Obtain and fill recorders, measured once the pool is filled */
+      long start = allocatedBytes();
+      for (int j = 0; j < IN_FLIGHT; j++)
+        recorders[j] = record(i + j);
+      if (i >= WARM_UP)
+        bytes += allocatedBytes() - start;
+
+      /* The agent thread recycles them once sent */
+      for (int j = 0; j < IN_FLIGHT; j++)
+        recorders[j].recycle();
+    }
+    assertEquals(0, bytes / EVENTS);
+  }
+
+  @Test
+  public void agentThreadOnlyAllocatesTheCommand() throws InterruptedException
+  {
+    assumeTrue(THREADS instanceof com.sun.management.ThreadMXBean);
+    final CapptainEventRecorder[] recorders = new CapptainEventRecorder[IN_FLIGHT];
+    final CapptainCommand[] commands = new CapptainCommand[IN_FLIGHT];
+    final long[] bytes = new long[3];
+    for (int i = 0; i < WARM_UP + EVENTS; i += IN_FLIGHT)
+    {
+      for (int j = 0; j < IN_FLIGHT; j++)
+        recorders[j] = record(i + j);
+      final boolean measured = i >= WARM_UP;
+      runOnAgentThread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          /* Commands of committed recorders, the extras are built later when sent */
+          long start = allocatedBytes();
+          for (int j = 0; j < IN_FLIGHT; j++)
+            commands[j] = new CapptainCommand(recorders[j]);
+          long commandBytes = allocatedBytes() - start;
+
+          /* Recycling after sending */
+          start = allocatedBytes();
+          for (int j = 0; j < IN_FLIGHT; j++)
+            recorders[j].recycle();
+          long recycleBytes = allocatedBytes() - start;
+
+          /* Reference: a command and its one element argument array, nothing else */
+          start = allocatedBytes();
+          for (int j = 0; j < IN_FLIGHT; j++)
+            commands[j] = new CapptainCommand(CapptainCommand.SEND_EVENT, null, "purchase");
+          long referenceBytes = allocatedBytes() - start;
+          if (measured)
+          {
+            bytes[0] += commandBytes;
+            bytes[1] += recycleBytes;
+            bytes[2] += referenceBytes;
+          }
+        }
+      });
+    }
+    assertTrue(bytes[0] / EVENTS > 0);
+    assertEquals(bytes[2] / EVENTS, bytes[0] / EVENTS);
+    assertEquals(0, bytes[1] / EVENTS);
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Measures the storage write and lookup paths against the code they replaced: single puts versus
+ * {@link CapptainStorage#putAll} and batches, compiled statements versus SQL built per call for
+ * get, update and delete, and a mixed reach workload with SQLite defaults versus WAL. Runs with the
+ * Robolectric runner, SQLite being the desktop one: figures compare code paths, absolute values
+ * differ on devices. Not part of the test suite, the class name does not end with Test.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CapptainStorageBenchmark
+{
+  /** Database name */
+  private static final String DB_NAME = "benchmark.db";
+
+  /** Table name */
+  private static final String TABLE = "content";
+
+  /** Rows per measure */
+  private static final int ROWS = 500;
+
+  /** Measured runs, after as many warm-up runs */
+  private static final int RUNS = 5;
+
+  /** Application context */
+  private Context mContext;
+
+  /** Storage under test */
+  private CapptainStorage mStorage;
+
+  @Before
+  public void setUp()
+  {
+    mContext = RuntimeEnvironment.application;
+    mContext.deleteDatabase(DB_NAME);
+  }
+
+  @After
+  public void tearDown()
+  {
+    if (mStorage != null)
+      mStorage.close();
+    mContext.deleteDatabase(DB_NAME);
+  }
+
+  /**
+   * Open a new storage.
+   * @param configuration SQLite tuning.
+   */
+  private void open(CapptainStorageConfiguration configuration)
+  {
+    if (mStorage != null)
+      mStorage.close();
+    mContext.deleteDatabase(DB_NAME);
+    ContentValues schema = new ContentValues();
+    schema.put("ci", "");
+    schema.put("xml", "");
+    schema.put("status", 1);
+    mStorage = new CapptainStorage(mContext, DB_NAME, 1, TABLE, schema, configuration, null);
+  }
+
+  /**
+   * Build a reach-like row.
+   * @param i row index.
+   * @return row.
+   */
+  private static ContentValues row(int i)
+  {
+    ContentValues values = new ContentValues();
+    values.put("ci", "campaign-" + i);
+    values.put("xml", "<announcement id='" + i + "'><title>Summer sale</title>"
+      + "<body>Up to 50% off on all summer items, only this week in stores.</body></announcement>");
+    values.put("status", 0);
+    return values;
+  }
+
+  /**
+   * Open the storage file with another connection, as the former SQL built per call did not use
+   * compiled statements.
+   * @return database.
+   */
+  private SQLiteDatabase openRaw()
+  {
+    return SQLiteDatabase.openDatabase(mContext.getDatabasePath(DB_NAME).getPath(), null, 0);
+  }
+
+  /**
+   * Print a measure.
+   * @param name operation.
+   * @param nanos total nanoseconds over the measured runs.
+   * @param ops total operations over the measured runs.
+   */
+  private static void print(String name, long nanos, long ops)
+  {
+    System.out.println(name + ": " + nanos / ops + " ns/op, " + ops * 1000000000L / nanos
+      + " ops/s");
+  }
+
+  @Test
+  public void puts()
+  {
+    long single = 0;
+    long all = 0;
+    long batch = 0;
+    for (int run = 0; run < RUNS * 2; run++)
+    {
+      boolean measured = run >= RUNS;
+
+      /* One implicit transaction per row */
+      open(new CapptainStorageConfiguration());
+      long start = System.nanoTime();
+      for (int i = 0; i < ROWS; i++)
+        mStorage.put(row(i));
+      if (measured)
+        single += System.nanoTime() - start;
+
+      /* One transaction for all rows */
+      open(new CapptainStorageConfiguration());
+      List<ContentValues> rows = new ArrayList<ContentValues>(ROWS);
+      start = System.nanoTime();
+      for (int i = 0; i < ROWS; i++)
+        rows.add(row(i));
+      mStorage.putAll(rows);
+      if (measured)
+        all += System.nanoTime() - start;
+
+      /* Same with the batch API, committed every 50 rows like a reach burst */
+      open(new CapptainStorageConfiguration());
+      start = System.nanoTime();
+      CapptainStorage.Batch rowBatch = mStorage.beginBatch();
+      for (int i = 0; i < ROWS; i++)
+      {
+        rowBatch.put(row(i));
+        if (i % 50 == 49)
+          rowBatch.commit();
+      }
+      rowBatch.commit();
+      if (measured)
+        batch += System.nanoTime() - start;
+    }
+    long rows = (long) ROWS * RUNS;
+    print("put", single, rows);
+    print("putAll", all, rows);
+    print("batch of 50", batch, rows);
+  }
+
+  @Test
+  public void statementCache()
+  {
+    long[] compiled = new long[3];
+    long[] built = new long[3];
+    ContentValues update = new ContentValues();
+    update.put("status", 1);
+    for (int run = 0; run < RUNS * 2; run++)
+    {
+      boolean measured = run >= RUNS;
+      open(new CapptainStorageConfiguration());
+      List<ContentValues> rows = new ArrayList<ContentValues>(ROWS);
+      for (int i = 0; i < ROWS * 2; i++)
+        rows.add(row(i));
+      List<Long> ids = mStorage.putAll(rows);
+
+      /* Compiled statements of the storage, on the first half of the rows */
+      long start = System.nanoTime();
+      for (int i = 0; i < ROWS; i++)
+        mStorage.get(ids.get(i));
+      long get = System.nanoTime();
+      for (int i = 0; i < ROWS; i++)
+        mStorage.update(ids.get(i), update);
+      long updated = System.nanoTime();
+      for (int i = 0; i < ROWS; i++)
+        mStorage.delete(ids.get(i));
+      long end = System.nanoTime();
+      if (measured)
+      {
+        compiled[0] += get - start;
+        compiled[1] += updated - get;
+        compiled[2] += end - updated;
+      }
+      mStorage.close();
+      mStorage = null;
+
+      /* Former SQL built per call, on the other half */
+      SQLiteDatabase db = openRaw();
+      start = System.nanoTime();
+      for (int i = ROWS; i < ROWS * 2; i++)
+      {
+        Cursor cursor = db.query(TABLE, null, "id = " + ids.get(i), null, null, null, null);
+        cursor.moveToFirst();
+        cursor.close();
+      }
+      get = System.nanoTime();
+      for (int i = ROWS; i < ROWS * 2; i++)
+        db.update(TABLE, update, "id = " + ids.get(i), null);
+      updated = System.nanoTime();
+      for (int i = ROWS; i < ROWS * 2; i++)
+        db.delete(TABLE, "id = " + ids.get(i), null);
+      end = System.nanoTime();
+      db.close();
+      if (measured)
+      {
+        built[0] += get - start;
+        built[1] += updated - get;
+        built[2] += end - updated;
+      }
+    }
+    long ops = (long) ROWS * RUNS;
+    print("get, SQL per call", built[0], ops);
+    print("get, compiled", compiled[0], ops);
+    print("update, SQL per call", built[1], ops);
+    print("update, compiled", compiled[1], ops);
+    print("delete, SQL per call", built[2], ops);
+    print("delete, compiled", compiled[2], ops);
+  }
+
+  /**
+   * Run a reach-like workload: each new content is stored, the contents are scanned as when
+   * restoring them, and the statuses of the two previous contents are updated as when they are
+   * displayed then acted upon.
+   * @param configuration SQLite tuning.
+   * @return total nanoseconds over the measured runs.
+   */
+  private long mixed(CapptainStorageConfiguration configuration)
+  {
+    long total = 0;
+    ContentValues update = new ContentValues();
+    for (int run = 0; run < RUNS * 2; run++)
+    {
+      open(configuration);
+      long start = System.nanoTime();
+      List<Long> ids = new ArrayList<Long>(ROWS);
+      for (int i = 0; i < ROWS; i++)
+      {
+        ids.add(mStorage.put(row(i)));
+        if (i % 10 == 0)
+        {
+          CapptainStorage.Scanner scanner = mStorage.getScanner();
+          for (CapptainStorage.Row row : scanner.rows())
+            row.getAsInteger("status");
+          scanner.close();
+        }
+        for (int j = Math.max(0, i - 2); j < i; j++)
+        {
+          update.put("status", i - j);
+          mStorage.update(ids.get(j), update);
+        }
+      }
+      if (run >= RUNS)
+        total += System.nanoTime() - start;
+    }
+    return total;
+  }
+
+  @Test
+  public void pragmas()
+  {
+    long defaults = mixed(new CapptainStorageConfiguration());
+    CapptainStorageConfiguration wal = new CapptainStorageConfiguration();
+    wal.setJournalMode(CapptainStorageConfiguration.JOURNAL_MODE_WAL);
+    wal.setSynchronous(CapptainStorageConfiguration.SYNCHRONOUS_NORMAL);
+    long tuned = mixed(wal);
+    long contents = (long) ROWS * RUNS;
+    print("reach workload, SQLite defaults", defaults, contents);
+    print("reach workload, WAL and synchronous NORMAL", tuned, contents);
+  }
+}
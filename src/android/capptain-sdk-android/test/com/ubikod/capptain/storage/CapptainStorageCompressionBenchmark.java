@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.storage;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Reports the stored size of typical reach contents with and without compression, and the heap
+ * allocated when a scan reads the xml column: as plain text before compression, as a compressed
+ * blob that is inflated when accessed after. A scan that does not access the column allocates
+ * nothing for it. Runs as a plain Java program.
+ */
+public class CapptainStorageCompressionBenchmark
+{
+  /** Iterations per measure, after as many warm-up iterations */
+  private static final int ITERATIONS = 5000;
+
+  public static void main(String[] args) throws UnsupportedEncodingException
+  {
+    report("announcement", announcement(0));
+    report("poll", poll());
+    report("announcement with 8KB image", announcement(8192));
+  }
+
+  /**
+   * Build an announcement.
+   * @param imageSize size of the notification image, 0 for no image.
+   * @return xml.
+   */
+  private static String announcement(int imageSize)
+  {
+    StringBuilder xml = new StringBuilder();
+    xml.append("<?xml version='1.0' encoding='UTF-8'?>");
+    xml.append("<announcement xmlns='urn:ubikod:ermin:reach:0' id='1234' type='text/html'>");
+    xml.append("<title>Summer sale</title><body>");
+    for (int i = 0; i < 10; i++)
+      xml.append("<p>Up to 50% off on all <b>summer</b> items, only this week in stores.</p>");
+    xml.append("</body><url>http://www.example.com/sale?utm_source=capptain</url>");
+    xml.append("<notification closeable='true' icon='true' sound='false' vibrate='false'>");
+    xml.append("<title>Summer sale</title><body>Up to 50% off</body>");
+    if (imageSize > 0)
+    {
+      /* Image bytes are already compressed, random bytes behave the same */
+      byte[] image = new byte[imageSize];
+      new Random(42).nextBytes(image);
+      xml.append("<image>").append(base64(image)).append("</image>");
+    }
+    xml.append("</notification></announcement>");
+    return xml.toString();
+  }
+
+  /**
+   * Build a poll.
+   * @return xml.
+   */
+  private static String poll()
+  {
+    StringBuilder xml = new StringBuilder();
+    xml.append("<?xml version='1.0' encoding='UTF-8'?>");
+    xml.append("<poll xmlns='urn:ubikod:ermin:reach:0' id='5678'><title>Survey</title>");
+    xml.append("<body>Tell us what you think</body><questions>");
+    for (int q = 0; q < 5; q++)
+    {
+      xml.append("<question id='q").append(q).append("'><title>Question ").append(q);
+      xml.append("</title><choices>");
+      for (int c = 0; c < 4; c++)
+        xml.append("<choice id='c").append(c).append("'>Answer ").append(c).append("</choice>");
+      xml.append("</choices></question>");
+    }
+    xml.append("</questions></poll>");
+    return xml.toString();
+  }
+
+  /**
+   * Encode bytes in base64.
+   * @param bytes bytes.
+   * @return base64 text.
+   */
+  private static String base64(byte[] bytes)
+  {
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i + 2 < bytes.length; i += 3)
+    {
+      int n = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | bytes[i + 2] & 0xff;
+      for (int shift = 18; shift >= 0; shift -= 6)
+        text.append(alphabet.charAt(n >> shift & 0x3f));
+    }
+    return text.toString();
+  }
+
+  /**
+   * Measure and print the stored size and the heap allocated to read a content.
+   * @param name content name.
+   * @param xml content.
+   * @throws UnsupportedEncodingException never.
+   */
+  private static void report(String name, String xml) throws UnsupportedEncodingException
+  {
+    final byte[] text = xml.getBytes("UTF-8");
+    final byte[] compressed = CapptainStorageCompression.compress(xml);
+
+    /* Reading TEXT copies the UTF-8 bytes out of the cursor window and decodes them */
+    long[] before = measure(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        CapptainStorageCompression.decode(Arrays.copyOf(text, text.length));
+      }
+    });
+
+    /* Reading a BLOB copies the compressed bytes out of the cursor window and inflates them */
+    long[] after = measure(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        CapptainStorageCompression.decode(Arrays.copyOf(compressed, compressed.length));
+      }
+    });
+    long[] compress = measure(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        CapptainStorageCompression.compress(new String(text));
+      }
+    });
+    System.out.println(name + ": stored " + text.length + " -> " + compressed.length
+      + " bytes; read " + before[1] + " -> " + after[1] + " bytes allocated, " + before[0]
+      + " -> " + after[0] + " ns; compress " + compress[0] + " ns");
+  }
+
+  /**
+   * Measure an operation.
+   * @param operation operation.
+   * @return nanoseconds and bytes allocated per operation.
+   */
+  private static long[] measure(Runnable operation)
+  {
+    for (int i = 0; i < ITERATIONS; i++)
+      operation.run();
+    long bytes = allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++)
+      operation.run();
+    long nanos = System.nanoTime() - start;
+    return new long[] { nanos / ITERATIONS, (allocatedBytes() - bytes) / ITERATIONS };
+  }
+
+  /**
+   * Get the bytes allocated so far by the current thread.
+   * @return allocated bytes, 0 if the JVM cannot report it.
+   */
+  private static long allocatedBytes()
+  {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean))
+      return 0;
+    long id = Thread.currentThread().getId();
+    return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(id);
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CapptainStorageCompressionTest
+{
+  /**
+   * Compress then decode a text value.
+   * @param text text value.
+   * @return decoded value.
+   */
+  private static String roundTrip(String text)
+  {
+    return CapptainStorageCompression.decode(CapptainStorageCompression.compress(text));
+  }
+
+  @Test
+  public void roundTrip()
+  {
+    for (String text : new String[] { "", "a", "<title>caf\u00e9 \u20ac \ud83d\ude00</title>" })
+      assertEquals(text, roundTrip(text));
+  }
+
+  @Test
+  public void largeRoundTrip()
+  {
+    /* Larger than the inflate buffer, mostly incompressible */
+    Random random = new Random(42);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 50000; i++)
+      text.append((char) ('A' + random.nextInt(26)));
+    String expected = text.toString();
+    assertEquals(expected, roundTrip(expected));
+  }
+
+  @Test
+  public void compressedValuesAreMarked()
+  {
+    assertTrue(CapptainStorageCompression.isCompressed(CapptainStorageCompression.compress("")));
+    assertTrue(CapptainStorageCompression.isCompressed(CapptainStorageCompression.compress("x")));
+  }
+
+  @Test
+  public void plainTextPassesThrough() throws UnsupportedEncodingException
+  {
+    String text = "<?xml version='1.0'?><reach/>";
+    byte[] raw = text.getBytes("UTF-8");
+    assertFalse(CapptainStorageCompression.isCompressed(raw));
+    assertFalse(CapptainStorageCompression.isCompressed(new byte[0]));
+    assertFalse(CapptainStorageCompression.isCompressed(new byte[] { 0, 'Z' }));
+    assertEquals(text, CapptainStorageCompression.decode(raw));
+  }
+
+  @Test
+  public void compressesReachXml()
+  {
+    StringBuilder xml = new StringBuilder("<reach>");
+    for (int i = 0; i < 50; i++)
+      xml.append("<choice id='").append(i).append("'>Choice</choice>");
+    String text = xml.append("</reach>").toString();
+    assertTrue(CapptainStorageCompression.compress(text).length < text.length() / 4);
+  }
+
+  @Test
+  public void truncatedValueIsRejected()
+  {
+    byte[] compressed = CapptainStorageCompression.compress("<reach><body>hello</body></reach>");
+    byte[] truncated = Arrays.copyOf(compressed, compressed.length - 4);
+    try
+    {
+      CapptainStorageCompression.decode(truncated);
+      fail();
+    }
+    catch (IllegalArgumentException e)
+    {
+      /* Expected */
+    }
+  }
+
+  @Test
+  public void corruptedValueIsRejected()
+  {
+    byte[] corrupted = { 0, 'Z', 0, 0, 0, 4, (byte) 0xff, (byte) 0xff, (byte) 0xff, 1 };
+    try
+    {
+      CapptainStorageCompression.decode(corrupted);
+      fail();
+    }
+    catch (IllegalArgumentException e)
+    {
+      /* Expected */
+    }
+  }
+
+  @Test
+  public void wrongLengthIsRejected()
+  {
+    byte[] compressed = CapptainStorageCompression.compress("<reach><body>hello</body></reach>");
+    for (int delta : new int[] { -1, 1 })
+    {
+      byte[] corrupted = compressed.clone();
+      corrupted[5] += delta;
+      try
+      {
+        CapptainStorageCompression.decode(corrupted);
+        fail();
+      }
+      catch (IllegalArgumentException e)
+      {
+        /* Expected */
+      }
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CapptainStorageConfigurationTest
+{
+  /** Configuration under test */
+  private CapptainStorageConfiguration mConfiguration;
+
+  @Before
+  public void setUp()
+  {
+    mConfiguration = new CapptainStorageConfiguration();
+  }
+
+  @Test
+  public void keywordsAreNormalized()
+  {
+    mConfiguration.setJournalMode("wal");
+    mConfiguration.setSynchronous("Normal");
+    assertEquals(CapptainStorageConfiguration.JOURNAL_MODE_WAL, mConfiguration.getJournalMode());
+    assertEquals(CapptainStorageConfiguration.SYNCHRONOUS_NORMAL, mConfiguration.getSynchronous());
+    mConfiguration.setJournalMode(null);
+    mConfiguration.setSynchronous(null);
+    assertNull(mConfiguration.getJournalMode());
+    assertNull(mConfiguration.getSynchronous());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownJournalMode()
+  {
+    mConfiguration.setJournalMode("WAL; DROP TABLE content");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownSynchronousLevel()
+  {
+    mConfiguration.setSynchronous("LAZY");
+  }
+
+  @Test
+  public void pageSizes()
+  {
+    mConfiguration.setPageSize(4096);
+    assertEquals(4096, (int) mConfiguration.getPageSize());
+    mConfiguration.setPageSize(null);
+    assertNull(mConfiguration.getPageSize());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void pageSizeNotPowerOfTwo()
+  {
+    mConfiguration.setPageSize(3000);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void pageSizeTooLarge()
+  {
+    mConfiguration.setPageSize(131072);
+  }
+}
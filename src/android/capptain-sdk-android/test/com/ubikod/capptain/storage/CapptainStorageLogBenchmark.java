@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentValues;
+
+/**
+ * Measures the cost of the spill log used while a storage is failed over to memory: appending
+ * reach-like rows, replaying them at startup and compacting them. Runs as a plain Java program,
+ * with an implementation of android.content.ContentValues on the classpath.
+ */
+public class CapptainStorageLogBenchmark
+{
+  /** Rows per run */
+  private static final int ROWS = 2000;
+
+  /** Measured runs, after as many warm-up runs */
+  private static final int RUNS = 10;
+
+  public static void main(String[] args) throws IOException
+  {
+    File file = File.createTempFile("benchmark", ".spill");
+    ContentValues[] rows = new ContentValues[ROWS];
+    for (int i = 0; i < ROWS; i++)
+      rows[i] = row(i);
+    long[] append = new long[2];
+    long[] replay = new long[2];
+    long[] compact = new long[2];
+    long size = 0;
+    for (int run = 0; run < 2 * RUNS; run++)
+    {
+      boolean measured = run >= RUNS;
+      file.delete();
+
+      /* Append */
+      long bytes = allocatedBytes();
+      long start = System.nanoTime();
+      CapptainStorageLog log = new CapptainStorageLog(file);
+      for (int i = 0; i < ROWS; i++)
+        log.append(CapptainStorageLog.PUT, i, rows[i]);
+      log.close();
+      add(measured, append, start, bytes);
+      size = file.length();
+
+      /* Replay */
+      Map<Long, ContentValues> entries = new LinkedHashMap<Long, ContentValues>();
+      Map<Long, ContentValues> updated = new HashMap<Long, ContentValues>();
+      Set<Long> deleted = new HashSet<Long>();
+      bytes = allocatedBytes();
+      start = System.nanoTime();
+      log = new CapptainStorageLog(file);
+      log.replay(entries, updated, deleted);
+      add(measured, replay, start, bytes);
+      if (entries.size() != ROWS)
+        throw new IllegalStateException("replayed " + entries.size() + " rows");
+
+      /* Compact */
+      bytes = allocatedBytes();
+      start = System.nanoTime();
+      log.compact(entries.values(), updated, deleted, false);
+      add(measured, compact, start, bytes);
+      log.close();
+    }
+    file.delete();
+    System.out.println(ROWS + " rows, " + size / ROWS + " bytes/row on disk");
+    print("append", append);
+    print("replay", replay);
+    print("compact", compact);
+  }
+
+  /**
+   * Build a row shaped like a reach content.
+   * @param i row index.
+   * @return row.
+   */
+  private static ContentValues row(int i)
+  {
+    StringBuilder payload = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?><reach>");
+    for (int j = 0; j < 20; j++)
+      payload.append("<item id='").append(i).append('-').append(j).append("'>Lorem ipsum</item>");
+    payload.append("</reach>");
+    ContentValues values = new ContentValues();
+    values.put("id", (long) i);
+    values.put("xml", payload.toString());
+    values.put("jid", "reach@capptain.com");
+    values.put("ci", "campaign-" + i);
+    values.put("status", 1);
+    values.put("expiry", System.currentTimeMillis());
+    values.putNull("notification_last_displayed_date");
+    return values;
+  }
+
+  /**
+   * Accumulate a measure.
+   * @param measured false during warm-up.
+   * @param total nanoseconds and bytes accumulated so far.
+   * @param start start time.
+   * @param bytes allocated bytes at start.
+   */
+  private static void add(boolean measured, long[] total, long start, long bytes)
+  {
+    if (measured)
+    {
+      total[0] += System.nanoTime() - start;
+      total[1] += allocatedBytes() - bytes;
+    }
+  }
+
+  /**
+   * Print a measure per row.
+   * @param name operation.
+   * @param total nanoseconds and bytes accumulated over the measured runs.
+   */
+  private static void print(String name, long[] total)
+  {
+    long rows = (long) ROWS * RUNS;
+    System.out.println(name + ": " + total[0] / rows + " ns/row, " + total[1] / rows
+      + " bytes/row allocated");
+  }
+
+  /**
+   * Get the bytes allocated so far by the current thread.
+   * @return allocated bytes, 0 if the JVM cannot report it.
+   */
+  private static long allocatedBytes()
+  {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean))
+      return 0;
+    long id = Thread.currentThread().getId();
+    return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(id);
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import android.content.ContentValues;
+
+@RunWith(RobolectricTestRunner.class)
+public class CapptainStorageLogTest
+{
+  /** Log file */
+  private File mFile;
+
+  /** Replayed entries */
+  private Map<Long, ContentValues> mEntries;
+
+  /** Replayed updates of entries that were not put in the log */
+  private Map<Long, ContentValues> mUpdated;
+
+  /** Replayed deletions */
+  private Set<Long> mDeleted;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    mFile = File.createTempFile("storage", ".spill");
+    mFile.delete();
+    mEntries = new LinkedHashMap<Long, ContentValues>();
+    mUpdated = new LinkedHashMap<Long, ContentValues>();
+    mDeleted = new HashSet<Long>();
+  }
+
+  @After
+  public void tearDown()
+  {
+    mFile.delete();
+    new File(mFile.getPath() + ".tmp").delete();
+  }
+
+  /**
+   * Build an entry.
+   * @param id identifier.
+   * @param text text value.
+   * @return entry.
+   */
+  private static ContentValues entry(long id, String text)
+  {
+    ContentValues values = new ContentValues();
+    values.put("id", id);
+    values.put("text", text);
+    return values;
+  }
+
+  /**
+   * Replay the log file in a new instance.
+   * @return the replayed log, open.
+   * @throws IOException if the file cannot be mapped.
+   */
+  private CapptainStorageLog replay() throws IOException
+  {
+    mEntries.clear();
+    mUpdated.clear();
+    mDeleted.clear();
+    CapptainStorageLog log = new CapptainStorageLog(mFile);
+    log.replay(mEntries, mUpdated, mDeleted);
+    return log;
+  }
+
+  @Test
+  public void emptyLog() throws IOException
+  {
+    assertFalse(CapptainStorageLog.exists(mFile));
+    CapptainStorageLog log = new CapptainStorageLog(mFile);
+    assertEquals(-1, log.replay(mEntries, mUpdated, mDeleted));
+    assertTrue(mEntries.isEmpty());
+    assertFalse(log.isCleared());
+    log.close();
+  }
+
+  @Test
+  public void valueTypes() throws IOException
+  {
+    ContentValues values = new ContentValues();
+    values.put("id", 5L);
+    values.put("string", "caf\u00e9");
+    values.put("long", Long.MIN_VALUE);
+    values.put("int", 42);
+    values.put("short", (short) -3);
+    values.put("byte", (byte) 7);
+    values.put("double", 1.5);
+    values.put("float", 2.5f);
+    values.put("boolean", true);
+    values.put("blob", new byte[] { 1, 2, 3 });
+    values.putNull("null");
+    CapptainStorageLog log = new CapptainStorageLog(mFile);
+    log.append(CapptainStorageLog.PUT, 5, values);
+    log.close();
+
+    assertEquals(5, replay().replay(mEntries, mUpdated, mDeleted));
+    ContentValues replayed = mEntries.get(5L);
+    assertEquals(values.size(), replayed.size());
+    for (String key : values.keySet())
+      if (!key.equals("blob"))
+        assertEquals(key, values.get(key), replayed.get(key));
+    assertArrayEquals(new byte[] { 1, 2, 3 }, replayed.getAsByteArray("blob"));
+  }
+
+  @Test
+  public void operations() throws IOException
+  {
+    CapptainStorageLog log = new CapptainStorageLog(mFile);
+    log.append(CapptainStorageLog.PUT, 10, entry(10, "a"));
+    log.append(CapptainStorageLog.PUT, 11, entry(11, "b"));
+    ContentValues update = new ContentValues();
+    update.put("text", "c");
+    log.append(CapptainStorageLog.UPDATE, 10, update);
+    log.append(CapptainStorageLog.DELETE, 11, null);
+    log.append(CapptainStorageLog.DELETE, 3, null);
+    log.close();
+
+    log = replay();
+    assertEquals(5, log.getRecordCount());
+    assertEquals(Collections.singleton(10L), mEntries.keySet());
+    assertEquals("c", mEntries.get(10L).getAsString("text"));
+    assertEquals(Collections.singleton(3L), mDeleted);
+    assertTrue(mUpdated.isEmpty());
+    assertFalse(log.isCleared());
+    log.close();
+  }
+
+  @Test
+  public void updateOfUnknownEntry() throws IOException
+  {
+    CapptainStorageLog log = new CapptainStorageLog(mFile);
+    ContentValues update = new ContentValues();
+    update.put("text", "a");
+    log.append(CapptainStorageLog.UPDATE, 3, update);
+    update.put("text", "b");
+    update.put("status", 1);
+    log.append(CapptainStorageLog.UPDATE, 3, update);
+    log.append(CapptainStorageLog.UPDATE, 4, update);
+    log.append(CapptainStorageLog.DELETE, 4, null);
+    log.close();
+
+    /* Updates of entries that may be in SQLite are merged, a deletion supersedes them */
+    log = replay();
+    assertTrue(mEntries.isEmpty());
+    assertEquals(Collections.singleton(3L), mUpdated.keySet());
+    assertEquals("b", mUpdated.get(3L).getAsString("text"));
+    assertEquals(1, (int) mUpdated.get(3L).getAsInteger("status"));
+    assertEquals(Collections.singleton(4L), mDeleted);
+    log.close();
+  }
+
+  @Test
+  public void clear() throws IOException
+  {
+    CapptainStorageLog log = new CapptainStorageLog(mFile);
+    log.append(CapptainStorageLog.PUT, 10, entry(10, "a"));
+    log.append(CapptainStorageLog.DELETE, 3, null);
+    log.append(CapptainStorageLog.CLEAR, 0, null);
+    log.append(CapptainStorageLog.PUT, 12, entry(12, "b"));
+    log.close();
+
+    log = replay();
+    assertTrue(log.isCleared());
+    assertEquals(Collections.singleton(12L), mEntries.keySet());
+    assertTrue(mUpdated.isEmpty());
+    assertTrue(mDeleted.isEmpty());
+    log.close();
+  }
+
+  @Test
+  public void appendAfterReplay() throws IOException
+  {
+    CapptainStorageLog log = new CapptainStorageLog(mFile);
+    log.append(CapptainStorageLog.PUT, 1, entry(1, "a"));
+    log.close();
+
+    log = replay();
+    log.append(CapptainStorageLog.PUT, 2, entry(2, "b"));
+    log.close();
+
+    replay().close();
+    assertEquals(Arrays.asList(1L, 2L), new ArrayList<Long>(mEntries.keySet()));
+  }
+
+  @Test
+  public void truncatedRecordIsIgnored() throws IOException
+  {
+    CapptainStorageLog log = new CapptainStorageLog(mFile);
+    log.append(CapptainStorageLog.PUT, 1, entry(1, "a"));
+    log.append(CapptainStorageLog.PUT, 2, entry(2, "b"));
+    log.close();
+
+    /* Corrupt the length of the second record as if its write was interrupted */
+    RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    int firstLength = file.readInt();
+    file.seek(4 + firstLength);
+    file.writeInt(Integer.MAX_VALUE);
+    file.close();
+
+    log = replay();
+    assertEquals(1, log.getRecordCount());
+    assertEquals(Collections.singleton(1L), mEntries.keySet());
+
+    /* The log resumes after the last valid record */
+    log.append(CapptainStorageLog.PUT, 3, entry(3, "c"));
+    log.close();
+    replay().close();
+    assertEquals(Arrays.asList(1L, 3L), new ArrayList<Long>(mEntries.keySet()));
+  }
+
+  @Test
+  public void growsBeyondInitialMapping() throws IOException
+  {
+    char[] chars = new char[10000];
+    Arrays.fill(chars, 'x');
+    String text = new String(chars);
+    CapptainStorageLog log = new CapptainStorageLog(mFile);
+    for (long id = 0; id < 50; id++)
+      log.append(CapptainStorageLog.PUT, id, entry(id, text));
+    log.close();
+
+    replay().close();
+    assertEquals(50, mEntries.size());
+    assertEquals(text, mEntries.get(49L).getAsString("text"));
+  }
+
+  @Test
+  public void compact() throws IOException
+  {
+    CapptainStorageLog log = new CapptainStorageLog(mFile);
+    for (long id = 10; id < 20; id++)
+      log.append(CapptainStorageLog.PUT, id, entry(id, "v" + id));
+    log.append(CapptainStorageLog.CLEAR, 0, null);
+    log.append(CapptainStorageLog.PUT, 20, entry(20, "a"));
+    log.append(CapptainStorageLog.DELETE, 5, null);
+    ContentValues update = new ContentValues();
+    update.put("text", "c");
+    log.append(CapptainStorageLog.UPDATE, 6, update);
+
+    /* Snapshot of the replayed state */
+    Map<Long, ContentValues> entries = new LinkedHashMap<Long, ContentValues>();
+    entries.put(20L, entry(20, "a"));
+    log.compact(entries.values(), Collections.singletonMap(6L, update), Collections.singleton(5L),
+      true);
+    assertEquals(4, log.getRecordCount());
+
+    /* Appending after compaction */
+    log.append(CapptainStorageLog.PUT, 21, entry(21, "b"));
+    log.close();
+
+    log = replay();
+    assertTrue(log.isCleared());
+    assertEquals(Arrays.asList(20L, 21L), new ArrayList<Long>(mEntries.keySet()));
+    assertEquals(Collections.singleton(5L), mDeleted);
+    assertEquals("c", mUpdated.get(6L).getAsString("text"));
+    assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    log.close();
+  }
+
+  @Test
+  public void delete() throws IOException
+  {
+    CapptainStorageLog log = new CapptainStorageLog(mFile);
+    log.append(CapptainStorageLog.PUT, 1, entry(1, "a"));
+    assertTrue(CapptainStorageLog.exists(mFile));
+    log.delete();
+    assertFalse(CapptainStorageLog.exists(mFile));
+  }
+}
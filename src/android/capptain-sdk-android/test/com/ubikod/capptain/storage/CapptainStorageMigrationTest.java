@@ -0,0 +1,320 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Opens databases written with each table shape older versions could leave behind and checks that
+ * the migration to the current schema keeps every row.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CapptainStorageMigrationTest
+{
+  /** Database name */
+  private static final String DB_NAME = "migration.db";
+
+  /** Table name */
+  private static final String TABLE = "content";
+
+  /** Schema version of the fixtures */
+  private static final int OLD_VERSION = 6;
+
+  /** Schema version opened by the tests */
+  private static final int VERSION = 7;
+
+  /** Shape generated from the reach schema before compression and indexes */
+  private static final String BASELINE = "CREATE TABLE `content` "
+    + "(id INTEGER PRIMARY KEY AUTOINCREMENT, `xml` TEXT, `jid` TEXT, `download_id` INTEGER, "
+    + "`notification_first_displayed_date` INTEGER, `notification_last_displayed_date` INTEGER, "
+    + "`notification_actioned` INTEGER, `content_displayed` INTEGER);";
+
+  /** Shape before download and notification tracking columns */
+  private static final String MISSING_COLUMNS = "CREATE TABLE `content` "
+    + "(id INTEGER PRIMARY KEY AUTOINCREMENT, `xml` TEXT, `jid` TEXT, "
+    + "`content_displayed` INTEGER);";
+
+  /** Shape with a column that is no longer in the schema */
+  private static final String REMOVED_COLUMN = "CREATE TABLE `content` "
+    + "(id INTEGER PRIMARY KEY AUTOINCREMENT, `xml` TEXT, `jid` TEXT, `download_id` INTEGER, "
+    + "`notification_first_displayed_date` INTEGER, `notification_last_displayed_date` INTEGER, "
+    + "`notification_actioned` INTEGER, `content_displayed` INTEGER, `obsolete` TEXT);";
+
+  /** Shape with a column of another type */
+  private static final String CHANGED_TYPE = "CREATE TABLE `content` "
+    + "(id INTEGER PRIMARY KEY AUTOINCREMENT, `xml` TEXT, `jid` TEXT, `download_id` INTEGER, "
+    + "`notification_first_displayed_date` INTEGER, `notification_last_displayed_date` INTEGER, "
+    + "`notification_actioned` INTEGER, `content_displayed` TEXT);";
+
+  /** Shape whose identifier is not a row id alias */
+  private static final String NON_INTEGER_ID = "CREATE TABLE `content` "
+    + "(id INT PRIMARY KEY, `xml` TEXT, `jid` TEXT, `download_id` INTEGER, "
+    + "`notification_first_displayed_date` INTEGER, `notification_last_displayed_date` INTEGER, "
+    + "`notification_actioned` INTEGER, `content_displayed` INTEGER);";
+
+  /** Application context */
+  private Context mContext;
+
+  /** Storage under test */
+  private CapptainStorage mStorage;
+
+  @Before
+  public void setUp()
+  {
+    mContext = RuntimeEnvironment.application;
+    mContext.deleteDatabase(DB_NAME);
+  }
+
+  @After
+  public void tearDown()
+  {
+    if (mStorage != null)
+      mStorage.close();
+    mContext.deleteDatabase(DB_NAME);
+  }
+
+  /**
+   * Get the current reach schema.
+   * @return schema specimen.
+   */
+  private static ContentValues schema()
+  {
+    ContentValues schema = new ContentValues();
+    schema.put("xml", "");
+    schema.put("jid", "");
+    schema.put("download_id", 1L);
+    schema.put("notification_first_displayed_date", 1L);
+    schema.put("notification_last_displayed_date", 1L);
+    schema.put("notification_actioned", 1);
+    schema.put("content_displayed", 1);
+    return schema;
+  }
+
+  /**
+   * Write a fixture database.
+   * @param version schema version of the fixture.
+   * @param createTable table shape, null for no table.
+   * @param columns columns of the inserted rows.
+   * @param rows values of the inserted rows, in column order.
+   */
+  private void fixture(int version, String createTable, String[] columns, Object[]... rows)
+  {
+    mContext.getDatabasePath(DB_NAME).getParentFile().mkdirs();
+    SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mContext.getDatabasePath(DB_NAME),
+      null);
+    try
+    {
+      if (createTable != null)
+        db.execSQL(createTable);
+      StringBuilder sql = new StringBuilder("INSERT INTO `" + TABLE + "` (");
+      StringBuilder params = new StringBuilder();
+      for (int i = 0; i < columns.length; i++)
+      {
+        sql.append(i == 0 ? "`" : ", `").append(columns[i]).append('`');
+        params.append(i == 0 ? "?" : ", ?");
+      }
+      sql.append(") VALUES (").append(params).append(')');
+      for (Object[] row : rows)
+        db.execSQL(sql.toString(), row);
+      db.setVersion(version);
+    }
+    finally
+    {
+      db.close();
+    }
+  }
+
+  /**
+   * Open the storage under test with the current schema.
+   * @param version schema version.
+   */
+  private void open(int version)
+  {
+    CapptainStorageConfiguration configuration = new CapptainStorageConfiguration();
+    configuration.addIndex("download_id");
+    configuration.addCompressedColumn("xml");
+    mStorage = new CapptainStorage(mContext, DB_NAME, version, TABLE, schema(), configuration,
+      null);
+  }
+
+  /**
+   * Get the columns of the table.
+   * @return column names.
+   */
+  private Set<String> columns()
+  {
+    Set<String> columns = new HashSet<String>();
+    SQLiteDatabase db = SQLiteDatabase.openDatabase(mContext.getDatabasePath(DB_NAME).getPath(),
+      null, SQLiteDatabase.OPEN_READONLY);
+    try
+    {
+      Cursor cursor = db.rawQuery("PRAGMA table_info(`" + TABLE + "`)", null);
+      try
+      {
+        while (cursor.moveToNext())
+          columns.add(cursor.getString(cursor.getColumnIndexOrThrow("name")));
+      }
+      finally
+      {
+        cursor.close();
+      }
+    }
+    finally
+    {
+      db.close();
+    }
+    return columns;
+  }
+
+  /** Check that a new row gets an identifier above the migrated ones and the index is usable */
+  private void assertWritable()
+  {
+    ContentValues values = new ContentValues();
+    values.put("xml", "<new/>");
+    values.put("download_id", 99L);
+    Long id = mStorage.put(values);
+    assertTrue(id > 20);
+    assertEquals("<new/>", mStorage.findFirst("download_id", 99L).getAsString("xml"));
+  }
+
+  @Test
+  public void baseline()
+  {
+    fixture(OLD_VERSION, BASELINE, new String[] { "id", "xml", "jid", "download_id",
+      "content_displayed" }, new Object[] { 10, "<a/>", "reach@a", 5, 1 }, new Object[] { 20,
+      "<b>caf\u00e9</b>", "reach@b", null, 0 });
+    open(VERSION);
+    assertEquals(OLD_VERSION, mStorage.getPreviousVersion());
+
+    /* Rows written as text before compression are read back as is */
+    ContentValues a = mStorage.get(10);
+    assertEquals("<a/>", a.getAsString("xml"));
+    assertEquals("reach@a", a.getAsString("jid"));
+    assertEquals(5L, (long) a.getAsLong("download_id"));
+    assertEquals(1, (int) a.getAsInteger("content_displayed"));
+    ContentValues b = mStorage.get(20);
+    assertEquals("<b>caf\u00e9</b>", b.getAsString("xml"));
+    assertNull(b.get("download_id"));
+    assertEquals(10L, (long) mStorage.findFirst("download_id", 5L).getAsLong("id"));
+    assertWritable();
+  }
+
+  @Test
+  public void missingColumns()
+  {
+    fixture(OLD_VERSION, MISSING_COLUMNS, new String[] { "id", "xml", "jid",
+      "content_displayed" }, new Object[] { 10, "<a/>", "reach@a", 1 }, new Object[] { 20,
+      "<b/>", "reach@b", 0 });
+    open(VERSION);
+    ContentValues a = mStorage.get(10);
+    assertEquals("<a/>", a.getAsString("xml"));
+    assertEquals(1, (int) a.getAsInteger("content_displayed"));
+    assertNull(a.get("download_id"));
+    assertNull(a.get("notification_actioned"));
+    assertEquals("<b/>", mStorage.get(20).getAsString("xml"));
+    assertTrue(columns().contains("notification_last_displayed_date"));
+    assertWritable();
+  }
+
+  @Test
+  public void removedColumn()
+  {
+    fixture(OLD_VERSION, REMOVED_COLUMN, new String[] { "id", "xml", "download_id", "obsolete" },
+      new Object[] { 10, "<a/>", 5, "x" }, new Object[] { 20, "<b/>", 6, "y" });
+    open(VERSION);
+    assertEquals("<a/>", mStorage.get(10).getAsString("xml"));
+    assertEquals(6L, (long) mStorage.get(20).getAsLong("download_id"));
+    assertFalse(mStorage.get(20).containsKey("obsolete"));
+    assertFalse(columns().contains("obsolete"));
+    assertWritable();
+  }
+
+  @Test
+  public void changedType()
+  {
+    fixture(OLD_VERSION, CHANGED_TYPE, new String[] { "id", "xml", "content_displayed" },
+      new Object[] { 10, "<a/>", "1" }, new Object[] { 20, "<b/>", "0" });
+    open(VERSION);
+    assertEquals(1, (int) mStorage.get(10).getAsInteger("content_displayed"));
+    assertEquals(0, (int) mStorage.get(20).getAsInteger("content_displayed"));
+    assertEquals("<b/>", mStorage.get(20).getAsString("xml"));
+    assertWritable();
+  }
+
+  @Test
+  public void nonIntegerId()
+  {
+    fixture(OLD_VERSION, NON_INTEGER_ID, new String[] { "id", "xml" }, new Object[] { 10,
+      "<a/>" }, new Object[] { 20, "<b/>" });
+    open(VERSION);
+    assertEquals("<a/>", mStorage.get(10).getAsString("xml"));
+    assertEquals("<b/>", mStorage.get(20).getAsString("xml"));
+    assertWritable();
+  }
+
+  @Test
+  public void missingTable()
+  {
+    fixture(OLD_VERSION, null, new String[0]);
+    open(VERSION);
+    assertTrue(mStorage.isEmpty());
+    assertTrue(columns().contains("download_id"));
+  }
+
+  @Test
+  public void downgrade()
+  {
+    fixture(VERSION + 1, BASELINE, new String[] { "id", "xml" }, new Object[] { 10, "<a/>" },
+      new Object[] { 20, "<b/>" });
+    open(VERSION);
+    assertEquals(VERSION + 1, mStorage.getPreviousVersion());
+    assertEquals("<a/>", mStorage.get(10).getAsString("xml"));
+    assertWritable();
+  }
+
+  @Test
+  public void upToDate()
+  {
+    open(VERSION);
+    ContentValues values = new ContentValues();
+    values.put("xml", "<a/>");
+    long id = mStorage.put(values);
+    mStorage.close();
+    mStorage = null;
+    open(VERSION);
+    assertEquals(VERSION, mStorage.getPreviousVersion());
+    assertEquals("<a/>", mStorage.get(id).getAsString("xml"));
+  }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2014 Capptain
+ * 
+ * Licensed under the CAPPTAIN SDK LICENSE (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *   https://app.capptain.com/#tos
+ *  
+ * This file is supplied "as-is." You bear the risk of using it.
+ * Capptain gives no express or implied warranties, guarantees or conditions.
+ * You may have additional consumer rights under your local laws which this agreement cannot change.
+ * To the extent permitted under your local laws, Capptain excludes the implied warranties of merchantability,
+ * fitness for a particular purpose and non-infringement.
+ */
+
+package com.ubikod.capptain.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import com.ubikod.capptain.storage.CapptainStorage.Row;
+import com.ubikod.capptain.storage.CapptainStorage.Scanner;
+
+@RunWith(RobolectricTestRunner.class)
+public class CapptainStorageTest
+{
+  /** Database name */
+  private static final String DB_NAME = "storage.db";
+
+  /** Table name */
+  private static final String TABLE = "content";
+
+  /** Schema version */
+  private static final int VERSION = 1;
+
+  /** Delay after which a failed over storage tries SQLite again */
+  private static final long RETRY_DELAY = 60000;
+
+  /** Application context */
+  private Context mContext;
+
+  /** Storage under test */
+  private CapptainStorage mStorage;
+
+  /** Operations that made the storage fail over */
+  private List<String> mErrors;
+
+  @Before
+  public void setUp()
+  {
+    mContext = RuntimeEnvironment.application;
+    mErrors = new ArrayList<String>();
+    mContext.deleteDatabase(DB_NAME);
+    mContext.getDatabasePath(DB_NAME + ".spill").delete();
+  }
+
+  @After
+  public void tearDown()
+  {
+    if (mStorage != null)
+      mStorage.close();
+    mContext.deleteDatabase(DB_NAME);
+    mContext.getDatabasePath(DB_NAME + ".spill").delete();
+  }
+
+  /** Open the storage under test with a compressed xml column */
+  private void open()
+  {
+    ContentValues schema = new ContentValues();
+    schema.put("xml", "");
+    schema.put("status", 1);
+    CapptainStorageConfiguration configuration = new CapptainStorageConfiguration();
+    configuration.addCompressedColumn("xml");
+    mStorage = new CapptainStorage(mContext, DB_NAME, VERSION, TABLE, schema, configuration,
+      new CapptainStorage.ErrorListener()
+      {
+        @Override
+        public void onError(String operation, SQLException sqle)
+        {
+          mErrors.add(operation);
+        }
+      });
+  }
+
+  /**
+   * Build an entry.
+   * @param xml xml value.
+   * @return entry.
+   */
+  private static ContentValues entry(String xml)
+  {
+    ContentValues values = new ContentValues();
+    values.put("xml", xml);
+    values.put("status", 0);
+    return values;
+  }
+
+  /**
+   * Execute SQL on the database file with another connection.
+   * @param sql SQL statement.
+   * @param args arguments.
+   */
+  private void execSQL(String sql, Object... args)
+  {
+    SQLiteDatabase db = SQLiteDatabase.openDatabase(mContext.getDatabasePath(DB_NAME).getPath(),
+      null, 0);
+    try
+    {
+      db.execSQL(sql, args);
+    }
+    finally
+    {
+      db.close();
+    }
+  }
+
+  /**
+   * Count the rows of the database file with another connection, the storage being closed.
+   * @return row count.
+   */
+  private long countRows()
+  {
+    SQLiteDatabase db = SQLiteDatabase.openDatabase(mContext.getDatabasePath(DB_NAME).getPath(),
+      null, 0);
+    try
+    {
+      return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM `" + TABLE + "`", null);
+    }
+    finally
+    {
+      db.close();
+    }
+  }
+
+  /**
+   * Store two entries then corrupt the compressed value of the first one.
+   * @return identifiers of the corrupted and of the valid entries.
+   */
+  private long[] corruptFirst()
+  {
+    open();
+    long corrupted = mStorage.put(entry("<a/>"));
+    long valid = mStorage.put(entry("<b/>"));
+    mStorage.close();
+    execSQL("UPDATE `" + TABLE + "` SET xml = ? WHERE id = ?", new byte[] { 0, 'Z', 0, 0, 0, 4,
+      1, 2, 3 }, corrupted);
+    open();
+    return new long[] { corrupted, valid };
+  }
+
+  /**
+   * Store two entries then make the storage fail over in memory by renaming its table with another
+   * connection.
+   * @return identifiers of the two entries stored in SQLite.
+   */
+  private long[] failOver()
+  {
+    open();
+    long first = mStorage.put(entry("<a/>"));
+    long second = mStorage.put(entry("<b/>"));
+    execSQL("ALTER TABLE `" + TABLE + "` RENAME TO `broken`");
+    return new long[] { first, second };
+  }
+
+  /**
+   * Change the entries while failed over.
+   * @param ids identifiers of the two entries stored in SQLite.
+   * @return identifier of the entry put while failed over.
+   */
+  private long changeInMemory(long[] ids)
+  {
+    /* Identifiers keep following the SQLite ones */
+    long third = mStorage.put(entry("<c/>"));
+    assertEquals(Arrays.asList("put"), mErrors);
+    assertEquals(ids[1] + 1, third);
+
+    /* Entries that are only in SQLite can be updated and deleted */
+    ContentValues update = new ContentValues();
+    update.put("status", 2);
+    assertTrue(mStorage.update(ids[1], update));
+    mStorage.delete(ids[0]);
+    assertTrue(mStorage.update(third, update));
+
+    /* But not entries that cannot exist */
+    assertFalse(mStorage.update(ids[0], update));
+    assertFalse(mStorage.update(third + 1, update));
+    return third;
+  }
+
+  /**
+   * Check the entries once the changes made while failed over are merged into SQLite.
+   * @param ids identifiers of the two entries stored in SQLite.
+   * @param third identifier of the entry put while failed over.
+   */
+  private void checkMerged(long[] ids, long third)
+  {
+    assertNull(mStorage.get(ids[0]));
+    assertEquals(2, (int) mStorage.get(ids[1]).getAsInteger("status"));
+    assertEquals("<b/>", mStorage.get(ids[1]).getAsString("xml"));
+    assertEquals(2, (int) mStorage.get(third).getAsInteger("status"));
+    assertEquals("<c/>", mStorage.get(third).getAsString("xml"));
+    assertEquals(third + 1, (long) mStorage.put(entry("<d/>")));
+    mStorage.close();
+    mStorage = null;
+    assertEquals(3, countRows());
+  }
+
+  @Test
+  public void failOverAndMerge()
+  {
+    long[] ids = failOver();
+    long third = changeInMemory(ids);
+
+    /* Merge when SQLite is tried again */
+    execSQL("ALTER TABLE `broken` RENAME TO `" + TABLE + "`");
+    SystemClock.setCurrentTimeMillis(SystemClock.elapsedRealtime() + RETRY_DELAY);
+    checkMerged(ids, third);
+  }
+
+  @Test
+  public void failOverAndRecoverSpilledChanges()
+  {
+    long[] ids = failOver();
+    long third = changeInMemory(ids);
+
+    /* Merge by the next instance */
+    mStorage.close();
+    execSQL("ALTER TABLE `broken` RENAME TO `" + TABLE + "`");
+    open();
+    checkMerged(ids, third);
+  }
+
+  @Test
+  public void updateStatementsAreEvicted()
+  {
+    /* More updated column sets than compiled statements kept */
+    ContentValues schema = new ContentValues();
+    for (int i = 0; i < 12; i++)
+      schema.put("c" + i, 0);
+    mStorage = new CapptainStorage(mContext, DB_NAME, VERSION, TABLE, schema, null);
+    long id = mStorage.put(schema);
+    for (int round = 1; round <= 2; round++)
+      for (int i = 0; i < 12; i++)
+      {
+        ContentValues update = new ContentValues();
+        update.put("c" + i, round);
+        assertTrue(mStorage.update(id, update));
+
+        /* Reusing the values with another column set must not alter the cached key */
+        update.put("c" + (11 - i), round);
+        assertTrue(mStorage.update(id, update));
+      }
+    ContentValues values = mStorage.get(id);
+    for (int i = 0; i < 12; i++)
+      assertEquals(2, (int) values.getAsInteger("c" + i));
+  }
+
+  @Test
+  public void getCorruptedRow()
+  {
+    long[] ids = corruptFirst();
+    assertNull(mStorage.get(ids[0]));
+    assertEquals("<b/>", mStorage.get(ids[1]).getAsString("xml"));
+    mStorage.close();
+    mStorage = null;
+    assertEquals(1, countRows());
+  }
+
+  @Test
+  public void scanCorruptedRow()
+  {
+    long[] ids = corruptFirst();
+    Scanner scanner = mStorage.getScanner();
+    List<Long> scanned = new ArrayList<Long>();
+    for (ContentValues values : scanner)
+      scanned.add(values.getAsLong("id"));
+    scanner.close();
+    assertEquals(1, scanned.size());
+    assertEquals(ids[1], (long) scanned.get(0));
+    mStorage.close();
+    mStorage = null;
+    assertEquals(1, countRows());
+  }
+
+  @Test
+  public void scanCorruptedRowLazily()
+  {
+    long[] ids = corruptFirst();
+    Scanner scanner = mStorage.getScanner();
+    List<String> xmls = new ArrayList<String>();
+    for (Row row : scanner.rows())
+    {
+      /* Columns that are not compressed are still readable */
+      assertEquals(0, (int) row.getAsInteger("status"));
+      xmls.add(row.getAsString("xml"));
+      if (row.getAsLong("id") == ids[0])
+        assertNull(row.toValues());
+    }
+    scanner.close();
+    assertEquals(2, xmls.size());
+    assertNull(xmls.get(0));
+    assertEquals("<b/>", xmls.get(1));
+    assertNull(mStorage.get(ids[0]));
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) Microsoft Corporation.  All rights reserved.
+ * Licensed under the MIT license. See License.txt in the project root for license information.
+ */
+
+package com.del7a.capptain;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the time and the heap allocated to decode typical extras and sendBatch arguments.
+ * Run it as a plain Java program, with an implementation of android.os.Bundle on the classpath.
+ */
+public class JsonBundleDecoderBenchmark {
+
+    private static final String EXTRAS = "{\"screen\":\"checkout\",\"items\":3,\"total\":42.5,"
+        + "\"premium\":true,\"tags\":[\"sale\",\"summer\"],\"user\":{\"id\":1234,\"country\":\"FR\"},"
+        + "\"label\":\"caf\\u00e9 \\\"deluxe\\\"\"}";
+
+    private static final String BATCH;
+    static {
+        StringBuilder batch = new StringBuilder("[[");
+        for (int i = 0; i < 50; i++) {
+            if (i > 0)
+                batch.append(',');
+            batch.append("{\"type\":\"sendEvent\",\"name\":\"event").append(i).append("\",\"extras\":")
+                .append(EXTRAS).append('}');
+        }
+        BATCH = batch.append("]]").toString();
+    }
+
+    public static void main(String[] args) {
+        if (JsonBundleDecoder.decode(EXTRAS) == null || JsonBundleDecoder.decodeBatch(BATCH) == null)
+            throw new IllegalStateException("benchmark input does not decode");
+        run("extras (" + EXTRAS.length() + " chars)", 100000, new Runnable() {
+            public void run() {
+                JsonBundleDecoder.decode(EXTRAS);
+            }
+        });
+        run("batch of 50 (" + BATCH.length() + " chars)", 2000, new Runnable() {
+            public void run() {
+                JsonBundleDecoder.decodeBatch(BATCH);
+            }
+        });
+    }
+
+    private static void run(String name, int iterations, Runnable decode) {
+        // warm up, then measure
+        for (int i = 0; i < iterations; i++)
+            decode.run();
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            decode.run();
+        long nanos = System.nanoTime() - start;
+        long bytes = startBytes < 0 ? -1 : allocatedBytes() - startBytes;
+        System.out.println(name + ": " + nanos / iterations + " ns/op, "
+            + (bytes < 0 ? "n/a" : bytes / iterations) + " bytes/op");
+    }
+
+    // Bytes allocated so far by the current thread, negative if the JVM cannot report it
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return Long.MIN_VALUE;
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) Microsoft Corporation.  All rights reserved.
+ * Licensed under the MIT license. See License.txt in the project root for license information.
+ */
+
+package com.del7a.capptain;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import android.os.Bundle;
+
+@RunWith(RobolectricTestRunner.class)
+public class JsonBundleDecoderTest {
+
+    @Test
+    public void numbers() {
+        Bundle b = JsonBundleDecoder.decode("{\"i\":42,\"n\":-7,\"big\":9223372036854775807,"
+            + "\"huge\":99999999999999999999,\"d\":1.5,\"e\":-1e3,\"z\":0,\"f\":0.25,\"x\":1E+2,"
+            + "\"y\":-0.5e-1}");
+        assertEquals(42L, b.get("i"));
+        assertEquals(-7L, b.get("n"));
+        assertEquals(Long.MAX_VALUE, b.get("big"));
+        assertEquals(1e20, b.get("huge"));
+        assertEquals(1.5, b.get("d"));
+        assertEquals(-1000.0, b.get("e"));
+        assertEquals(0L, b.get("z"));
+        assertEquals(0.25, b.get("f"));
+        assertEquals(100.0, b.get("x"));
+        assertEquals(-0.05, b.get("y"));
+    }
+
+    @Test
+    public void booleansAndNull() {
+        Bundle b = JsonBundleDecoder.decode("{\"t\":true,\"f\":false,\"n\":null}");
+        assertEquals(Boolean.TRUE, b.get("t"));
+        assertEquals(Boolean.FALSE, b.get("f"));
+        assertTrue(b.containsKey("n"));
+        assertNull(b.get("n"));
+    }
+
+    @Test
+    public void strings() {
+        Bundle b = JsonBundleDecoder.decode("{\"plain\":\"abc\",\"empty\":\"\","
+            + "\"escapes\":\"q\\\"b\\\\s\\/n\\nt\\tr\\rb\\bf\\f\",\"unicode\":\"\\u00e9\\u20AC\"}");
+        assertEquals("abc", b.get("plain"));
+        assertEquals("", b.get("empty"));
+        assertEquals("q\"b\\s/n\nt\tr\rb\bf\f", b.get("escapes"));
+        assertEquals("\u00e9\u20ac", b.get("unicode"));
+    }
+
+    @Test
+    public void nestedObjectsAreKeptAsText() {
+        Bundle b = JsonBundleDecoder.decode(
+            " { \"o\" : { \"p\" : { \"v\" : \"x\" } , \"e\" : { } } , \"k\" : 1 } ");
+        assertEquals("{ \"p\" : { \"v\" : \"x\" } , \"e\" : { } }", b.getString("o"));
+        assertEquals(1L, b.get("k"));
+        assertEquals("{}", JsonBundleDecoder.decode("{\"e\":{}}").getString("e"));
+    }
+
+    @Test
+    public void uniformArrays() {
+        Bundle b = JsonBundleDecoder.decode("{\"l\":[1,2],\"d\":[1.5,2],\"b\":[true,false],"
+            + "\"s\":[\"a\",\"b\"],\"empty\":[]}");
+        assertArrayEquals(new long[] { 1, 2 }, b.getLongArray("l"));
+        assertArrayEquals(new double[] { 1.5, 2 }, b.getDoubleArray("d"), 0);
+        boolean[] booleans = b.getBooleanArray("b");
+        assertTrue(booleans[0]);
+        assertFalse(booleans[1]);
+        assertArrayEquals(new String[] { "a", "b" }, b.getStringArray("s"));
+        assertEquals(0, b.getStringArray("empty").length);
+    }
+
+    @Test
+    public void otherArraysAreKeptAsText() {
+        Bundle b = JsonBundleDecoder.decode("{\"m\":[1,\"a\",[true],null],\"o\":[{\"k\":1},{}],"
+            + "\"n\":[\"a\",null],\"a\":[[1],[2]]}");
+        assertEquals("[1,\"a\",[true],null]", b.getString("m"));
+        assertEquals("[{\"k\":1},{}]", b.getString("o"));
+        assertEquals("[\"a\",null]", b.getString("n"));
+        assertEquals("[[1],[2]]", b.getString("a"));
+    }
+
+    @Test
+    public void malformed() {
+        String[] inputs = { "", "  ", "[1]", "\"a\"", "1", "{", "{\"a\"}", "{\"a\":}", "{\"a\":1,}",
+            "{a:1}", "{\"a\":1} x", "{\"a\":tru}", "{\"a\":nul}", "{\"a\":\"x}", "{\"a\":1-2}",
+            "{\"a\":-}", "{\"a\":[1,]}", "{\"a\":\"\\x\"}", "{\"a\":\"\\u12\"}", "{\"a\":\"\\u+123\"}",
+            "{\"a\":\"\\u00g0\"}", "{\"a\":\"\\", "{\"a\":01}", "{\"a\":-01}", "{\"a\":1.}",
+            "{\"a\":.5}", "{\"a\":+1}", "{\"a\":1e}", "{\"a\":1e+}", "{\"a\":1.e3}", "{\"a\":-.5}",
+            "{\"a\":[01]}", "{\"a\":{\"b\":1.}}" };
+        for (String input : inputs)
+            assertNull(input, JsonBundleDecoder.decode(input));
+        assertNull(JsonBundleDecoder.decode(null));
+    }
+
+    @Test
+    public void batch() {
+        Bundle[] commands = JsonBundleDecoder.decodeBatch(
+            "[[{\"type\":\"sendEvent\",\"name\":\"e\",\"extras\":{\"v\":2,\"o\":{\"w\":3}}},3,"
+            + "{\"type\":\"endActivity\"}],\"x\"]");
+        assertEquals(3, commands.length);
+        assertEquals("e", commands[0].getString("name"));
+        assertEquals(2L, commands[0].getBundle("extras").get("v"));
+        assertEquals("{\"w\":3}", commands[0].getBundle("extras").getString("o"));
+        assertNull(commands[1]);
+        assertEquals("endActivity", commands[2].getString("type"));
+        assertEquals(0, JsonBundleDecoder.decodeBatch("[[]]").length);
+        assertNull(JsonBundleDecoder.decodeBatch("[{}]"));
+        assertNull(JsonBundleDecoder.decodeBatch("[[{}]"));
+    }
+}
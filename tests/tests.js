@@ -50,6 +50,16 @@ exports.defineAutoTests = function () {
             expect(Capptain.getStatus).toBeDefined();
             expect(typeof Capptain.getStatus == 'function').toBe(true);
         });     
+
+        it("Capptain should contain a onEvent function", function () {
+            expect(Capptain.onEvent).toBeDefined();
+            expect(typeof Capptain.onEvent == 'function').toBe(true);
+        });
+
+        it("Capptain should contain a flush function", function () {
+            expect(Capptain.flush).toBeDefined();
+            expect(typeof Capptain.flush == 'function').toBe(true);
+        });
     });
 
     describe('Plugin Methods', function() {
@@ -66,6 +76,15 @@ exports.defineAutoTests = function () {
                 expect(info.pluginVersion).toBeDefined();
                 expect(info.pluginVersion == Capptain.pluginVersion).toBe(true);
         });
+
+        it("Capptain batched commands should succeed once flushed", function (done) {
+                Capptain.sendEvent("test", { key: "value" }, function () {
+                    done();
+                }, function (_error) {
+                    done.fail(_error);
+                });
+                Capptain.flush();
+        });
     });
 
  };
\ No newline at end of file
@@ -6,17 +6,40 @@
 module.exports = {
   
     pluginName : "Capptain",
-    pluginVersion : "1.0.4",
+    pluginVersion : "1.0.4",
+
+    // on android, commands are buffered and sent to the native side in a single call every batchInterval ms,
+    // their callbacks are called once the batch is sent. Activity changes are never buffered.
+    batchInterval : 500,
+    batchSize : 50,
+    _batch : [],
+    _batchCallbacks : [],
+    _batchTimer : null,
+
+    // data pushes, notification actions and redirect urls are streamed by the native side on android
+    _eventHandlers : [],
+    _subscribed : false,
 
     onOpenURL : function (_handler) {
       var _this = this;
       _this.openURLHandler  = _handler;
+      if (cordova.platformId == 'android') {
+        _this._subscribe();
+        return;
+      }
       cordova.exec(function( _url) {
         if (_url)
           _this.handleOpenURL(_url);
         }, undefined, _this.pluginName, 'checkRedirect', [] );
     },
 
+    // _handler receives events with a type: 'dataPush', 'notificationAction', 'redirect' or 'overflow',
+    // other platforms have no event stream and never call it
+    onEvent : function (_handler) {
+      this._eventHandlers.push(_handler);
+      this._subscribe();
+    },
+
     handleOpenURL : function(_url) {
       if (this.openURLHandler) {
         this.openURLHandler(_url);
@@ -24,27 +47,29 @@ module.exports = {
     },
 
     startActivity: function (_activityName,_extraInfos,_success,_failure) {
+       this.flush();
        cordova.exec(_success, _failure, this.pluginName, 'startActivity', [_activityName,JSON.stringify(_extraInfos)] );
     },
 
     endActivity: function (_success,_failure) {
+       this.flush();
        cordova.exec(_success, _failure, this.pluginName, 'endActivity', [] );
     },
 
     sendAppInfo: function (_appInfos,_success,_failure) {
-       cordova.exec(_success,_failure, this.pluginName, 'sendAppInfo', [JSON.stringify(_appInfos)] );
+       this._enqueue({ type: 'sendAppInfo', extras: _appInfos }, _success, _failure);
     },
 
     sendEvent: function (_eventName,_extraInfos,_success,_failure) {
-        cordova.exec(_success,_failure, this.pluginName, 'sendEvent', [_eventName,JSON.stringify(_extraInfos)] );
+        this._enqueue({ type: 'sendEvent', name: _eventName, extras: _extraInfos }, _success, _failure);
     },
 
     startJob: function (_jobName,_extraInfos,_success,_failure) {
-        cordova.exec(_success,_failure, this.pluginName, 'startJob',[_jobName, JSON.stringify(_extraInfos)] );
+        this._enqueue({ type: 'startJob', name: _jobName, extras: _extraInfos }, _success, _failure);
     },
 
     endJob: function (_jobName,_success,_failure) {
-        cordova.exec(_success,_failure, this.pluginName, 'endJob', [_jobName] );
+        this._enqueue({ type: 'endJob', name: _jobName }, _success, _failure);
     },
 
     getStatus: function (_success,_failure) {
@@ -55,5 +80,74 @@ module.exports = {
         cordova.exec(_success,_failure, this.pluginName, 'registerForPushNotification', [] );
     },
 
+    // sends the buffered commands now, called automatically on pause
+    flush: function () {
+        var _this = this;
+        if (_this._batchTimer) {
+            clearTimeout(_this._batchTimer);
+            _this._batchTimer = null;
+        }
+        if (_this._batch.length == 0)
+            return;
+
+        var commands = _this._batch;
+        var callbacks = _this._batchCallbacks;
+        _this._batch = [];
+        _this._batchCallbacks = [];
+
+        // on error, the native side returns the indexes of the invalid commands
+        var done = function (_failures) {
+            for (var i = 0; i < callbacks.length; i++) {
+                var failed = _failures !== undefined && (!Array.isArray(_failures) || _failures.indexOf(i) >= 0);
+                var callback = failed ? callbacks[i].failure : callbacks[i].success;
+                if (callback)
+                    callback(failed ? "invalid command " + commands[i].type : undefined);
+            }
+        };
+        cordova.exec(function () { done(); }, function (_failures) { done(_failures === undefined ? null : _failures); },
+            _this.pluginName, 'sendBatch', [commands] );
+    },
+
+    _subscribe: function () {
+        var _this = this;
+        if (_this._subscribed || cordova.platformId != 'android')
+            return;
+        _this._subscribed = true;
+
+        // events are delivered in arrays: several are sent at once after a pause
+        cordova.exec(function (_events) {
+            for (var i = 0; i < _events.length; i++) {
+                var event = _events[i];
+                if (event.type == 'redirect')
+                    _this.handleOpenURL(event.url);
+                for (var j = 0; j < _this._eventHandlers.length; j++)
+                    _this._eventHandlers[j](event);
+            }
+        }, function () {
+            _this._subscribed = false;
+        }, _this.pluginName, 'subscribe', [] );
+    },
+
+    _enqueue: function (_command,_success,_failure) {
+        var _this = this;
+
+        // other platforms have no sendBatch action
+        if (cordova.platformId != 'android') {
+            var args = _command.name === undefined ? [] : [_command.name];
+            if (_command.type != 'endJob')
+                args.push(JSON.stringify(_command.extras));
+            cordova.exec(_success, _failure, _this.pluginName, _command.type, args);
+            return;
+        }
+
+        _this._batch.push(_command);
+        _this._batchCallbacks.push({ success: _success, failure: _failure });
+        if (_this._batch.length >= _this.batchSize || !(_this.batchInterval > 0))
+            _this.flush();
+        else if (!_this._batchTimer)
+            _this._batchTimer = setTimeout(function () { _this.flush(); }, _this.batchInterval);
+    }
+
 };
 
+document.addEventListener('pause', function () { module.exports.flush(); }, false);